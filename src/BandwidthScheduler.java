@@ -0,0 +1,68 @@
+import java.util.*;
+
+// Shares one outgoing bandwidth budget between the active transfers in proportion to
+// their weight (higher priority = larger weight). Each transfer holds a Share, a token
+// bucket whose rate is recomputed whenever a transfer starts or finishes.
+// A budget of 0 means unlimited and acquire() never blocks.
+public class BandwidthScheduler {
+
+    private final long bytesPerSecond;
+    private final Set<Share> active = new HashSet<>();
+    private int totalWeight = 0;
+
+    public BandwidthScheduler(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public synchronized Share register(int weight) {
+        Share share = new Share(Math.max(1, weight));
+        active.add(share);
+        totalWeight += share.weight;
+        return share;
+    }
+
+    private synchronized void unregister(Share share) {
+        if (active.remove(share)) {
+            totalWeight -= share.weight;
+        }
+    }
+
+    private synchronized double rateFor(Share share) {
+        return totalWeight == 0 ? bytesPerSecond : (double) bytesPerSecond * share.weight / totalWeight;
+    }
+
+    public class Share implements AutoCloseable {
+        private final int weight;
+        private double tokens = 0;
+        private long lastRefill = System.nanoTime();
+
+        private Share(int weight) {
+            this.weight = weight;
+        }
+
+        // Blocks until `bytes` may be sent under this transfer's current share
+        public void acquire(int bytes) throws InterruptedException {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            long sleepNanos;
+            synchronized (this) {
+                double rate = rateFor(this);
+                long now = System.nanoTime();
+                // Allow bursts of up to 50ms worth of data
+                tokens = Math.min(tokens + (now - lastRefill) * rate / 1e9, Math.max(rate / 20, bytes));
+                lastRefill = now;
+                tokens -= bytes;
+                sleepNanos = tokens < 0 ? (long) (-tokens / rate * 1e9) : 0;
+            }
+            if (sleepNanos > 0) {
+                Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+            }
+        }
+
+        @Override
+        public void close() {
+            unregister(this);
+        }
+    }
+}
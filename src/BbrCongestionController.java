@@ -0,0 +1,155 @@
+// Simplified BBR: models the path as bottleneck bandwidth x round-trip propagation time
+// and sizes cwnd from that estimate instead of reacting to individual losses.
+// Pacing is not implemented, the window is the only control.
+public class BbrCongestionController implements CongestionController {
+
+    private static final double STARTUP_GAIN = 2.89;
+    private static final double CWND_GAIN = 2; // Headroom for delayed and aggregated ACKs
+    private static final double[] PROBE_BW_GAINS = {1.25, 0.75, 1, 1, 1, 1, 1, 1};
+    private static final int BW_FILTER_ROUNDS = 10;
+    private static final long RTPROP_EXPIRY_MS = 10000;
+    private static final int MIN_CWND = 4;
+
+    private enum Mode { STARTUP, DRAIN, PROBE_BW }
+
+    private Mode mode = Mode.STARTUP;
+    private double cwnd = MIN_CWND;
+
+    // Bottleneck bandwidth in segments per ms, windowed max over the last rounds
+    private final double[] bwSamples = new double[BW_FILTER_ROUNDS];
+    private int bwIndex = 0;
+    private double btlBw = 0;
+
+    private long rtProp = Long.MAX_VALUE; // Min RTT (ms)
+    private long rtPropStamp = 0;
+
+    // Round tracking, one round lasts roughly one rtProp
+    private long roundStart = 0;
+    private int deliveredInRound = 0;
+    private int cycleIndex = 0;
+
+    // Startup exits when bandwidth stops growing by 25% for three rounds
+    private double fullBw = 0;
+    private int fullBwCount = 0;
+
+    @Override
+    public synchronized boolean onAck(int ackNum, int ackedSegments, long sampleRtt) {
+        long now = System.currentTimeMillis();
+
+        if (sampleRtt > 0 && (sampleRtt <= rtProp || now - rtPropStamp > RTPROP_EXPIRY_MS)) {
+            rtProp = sampleRtt;
+            rtPropStamp = now;
+        }
+
+        if (roundStart == 0) {
+            roundStart = now;
+        }
+        deliveredInRound += ackedSegments;
+
+        long roundLength = rtProp == Long.MAX_VALUE ? 100 : Math.max(rtProp, 1);
+        long elapsed = now - roundStart;
+        if (elapsed >= roundLength) {
+            endRound((double) deliveredInRound / elapsed);
+            roundStart = now;
+            deliveredInRound = 0;
+        }
+
+        updateCwnd(ackedSegments);
+        return false;
+    }
+
+    private void endRound(double deliveryRate) {
+        bwSamples[bwIndex] = deliveryRate;
+        bwIndex = (bwIndex + 1) % BW_FILTER_ROUNDS;
+        btlBw = 0;
+        for (double sample : bwSamples) {
+            btlBw = Math.max(btlBw, sample);
+        }
+
+        switch (mode) {
+            case STARTUP:
+                if (btlBw >= fullBw * 1.25) {
+                    fullBw = btlBw;
+                    fullBwCount = 0;
+                } else if (++fullBwCount >= 3) {
+                    mode = Mode.DRAIN;
+                }
+                break;
+            case DRAIN:
+                // One round at the inverse gain empties the queue built during startup
+                mode = Mode.PROBE_BW;
+                cycleIndex = 0;
+                break;
+            case PROBE_BW:
+                cycleIndex = (cycleIndex + 1) % PROBE_BW_GAINS.length;
+                break;
+        }
+    }
+
+    private void updateCwnd(int ackedSegments) {
+        double bdp = bdp();
+        if (bdp <= 0) {
+            // No bandwidth estimate yet, grow like slow start
+            cwnd = Math.min(cwnd + ackedSegments, MAX_CWND);
+            return;
+        }
+        double target = CWND_GAIN * gain() * bdp;
+        if (mode == Mode.STARTUP) {
+            cwnd = Math.min(cwnd + ackedSegments, Math.max(target, cwnd));
+        } else {
+            cwnd = target;
+        }
+        cwnd = Math.max(MIN_CWND, Math.min(cwnd, MAX_CWND));
+    }
+
+    private double gain() {
+        switch (mode) {
+            case STARTUP:
+                return STARTUP_GAIN;
+            case DRAIN:
+                return 1 / STARTUP_GAIN;
+            default:
+                return PROBE_BW_GAINS[cycleIndex];
+        }
+    }
+
+    private double bdp() {
+        if (btlBw == 0 || rtProp == Long.MAX_VALUE) {
+            return 0;
+        }
+        return btlBw * rtProp;
+    }
+
+    @Override
+    public synchronized void onDuplicateAck() {
+        // BBR does not use duplicate ACKs as a congestion signal
+    }
+
+    @Override
+    public synchronized void onLoss(int highestSent) {
+        // Losses are repaired by the sender, the model is left untouched
+    }
+
+    @Override
+    public synchronized void onTimeout() {
+        cwnd = MIN_CWND;
+        roundStart = 0;
+        deliveredInRound = 0;
+    }
+
+    @Override
+    public synchronized int getCwnd() {
+        return Math.max(1, (int) cwnd);
+    }
+
+    @Override
+    public synchronized int getSsthresh() {
+        // BBR has no ssthresh, report the estimated BDP instead
+        return (int) Math.round(bdp());
+    }
+
+    @Override
+    public String getName() {
+        return "BBR";
+    }
+}
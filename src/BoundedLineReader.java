@@ -0,0 +1,114 @@
+import java.io.*;
+
+// readLine() for connections we do not trust: a line longer than maxLength is never held in
+// memory. As soon as it passes the limit readLine() throws LineTooLongException, and the next
+// call first skips the rest of that line a buffer at a time. Lines end at "\n", a "\r" right
+// before it is dropped.
+public class BoundedLineReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    public static class LineTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LineTooLongException(int maxLength) {
+            super("Line longer than " + maxLength + " characters");
+        }
+    }
+
+    private final Reader in;
+    private final int maxLength;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private final StringBuilder line = new StringBuilder();
+    private boolean discarding = false;
+    private long discarded = 0;
+
+    public BoundedLineReader(Reader in, int maxLength) {
+        this.in = in;
+        this.maxLength = maxLength;
+    }
+
+    public String readLine() throws IOException {
+        if (discarding && !skipLine()) {
+            return null;
+        }
+        line.setLength(0);
+        while (true) {
+            if (position == limit && !fill()) {
+                return line.length() > 0 ? line.toString() : null;
+            }
+            int end = indexOfNewline();
+            if (end >= 0) {
+                line.append(buffer, position, end - position);
+                position = end + 1;
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(--length);
+                }
+                if (length > maxLength) {
+                    discarded += length;
+                    throw new LineTooLongException(maxLength);
+                }
+                return line.toString();
+            }
+            line.append(buffer, position, limit - position);
+            position = limit;
+            // One more for a "\r" that may still come before the "\n"
+            if (line.length() > maxLength + 1) {
+                discarded += line.length();
+                line.setLength(0);
+                discarding = true;
+                throw new LineTooLongException(maxLength);
+            }
+        }
+    }
+
+    // Characters thrown away in oversized lines so far
+    public long getDiscarded() {
+        return discarded;
+    }
+
+    // False at the end of the stream
+    private boolean skipLine() throws IOException {
+        while (true) {
+            if (position == limit && !fill()) {
+                return false;
+            }
+            int end = indexOfNewline();
+            if (end >= 0) {
+                discarded += end - position;
+                position = end + 1;
+                discarding = false;
+                return true;
+            }
+            discarded += limit - position;
+            position = limit;
+        }
+    }
+
+    private int indexOfNewline() {
+        for (int i = position; i < limit; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,80 @@
+import java.util.*;
+
+// Ordered list of [offset, offset + length) ranges of a file, seen as one contiguous
+// logical stream. A sender/receiver pair moves the logical stream and maps positions
+// back to file offsets, so a resumed transfer can skip the chunks that are already there.
+public class ByteRanges {
+
+    private final List<long[]> ranges = new ArrayList<>(); // {offset, length}
+    private long totalLength = 0;
+
+    // Lookups are almost always sequential, remember where the last one ended
+    private int cursor = 0;
+    private long cursorStart = 0;
+
+    public static ByteRanges of(long offset, long length) {
+        ByteRanges byteRanges = new ByteRanges();
+        byteRanges.add(offset, length);
+        return byteRanges;
+    }
+
+    // Appends a range, merging it with the previous one when they touch
+    public void add(long offset, long length) {
+        if (length <= 0) {
+            return;
+        }
+        if (!ranges.isEmpty()) {
+            long[] last = ranges.get(ranges.size() - 1);
+            if (last[0] + last[1] == offset) {
+                last[1] += length;
+                totalLength += length;
+                return;
+            }
+        }
+        ranges.add(new long[]{offset, length});
+        totalLength += length;
+    }
+
+    public long getTotalLength() {
+        return totalLength;
+    }
+
+    // File offset of a logical position
+    public long fileOffset(long position) {
+        long[] range = locate(position);
+        return range[0] + (position - cursorStart);
+    }
+
+    // Bytes left in the range that contains a logical position, segments never cross ranges
+    public long remainingInRange(long position) {
+        long[] range = locate(position);
+        return range[1] - (position - cursorStart);
+    }
+
+    // Moves the cursor to the range containing position and returns it, called once
+    // or twice per segment so it must not allocate
+    private long[] locate(long position) {
+        if (position < cursorStart) {
+            cursor = 0;
+            cursorStart = 0;
+        }
+        while (cursor < ranges.size()) {
+            long[] range = ranges.get(cursor);
+            if (position < cursorStart + range[1]) {
+                return range;
+            }
+            cursorStart += range[1];
+            cursor++;
+        }
+        throw new IllegalArgumentException("Position " + position + " beyond " + totalLength);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (long[] range : ranges) {
+            sb.append('[').append(range[0]).append(", ").append(range[0] + range[1]).append(')');
+        }
+        return sb.toString();
+    }
+}
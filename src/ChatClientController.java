@@ -1,3 +1,6 @@
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
@@ -9,21 +12,44 @@ import javafx.scene.Scene;
 import javafx.scene.chart.LineChart;
 import javafx.scene.chart.XYChart;
 import javafx.scene.control.*;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 
 import java.io.*;
 import java.net.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class ChatClientController implements Initializable {
 
+    private static final int MAX_CONCURRENT_TRANSFERS = 3;
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+    private static final long RECONNECT_BASE_DELAY = 500;
+    private static final long RECONNECT_MAX_DELAY = 30_000;
+    // The server pings us when we are quiet; when it is quiet we ping it, and when it does
+    // not answer the connection is treated as lost
+    private static final long HEARTBEAT_CHECK = 5_000;
+    private static final long HEARTBEAT = 20_000;
+    private static final long SERVER_TIMEOUT = 40_000;
+
+    // Any node of a cluster will do, e.g. -Dchat.port=12346
+    private static final String SERVER_HOST = System.getProperty("chat.host", "localhost");
+    private static final int SERVER_PORT = Integer.getInteger("chat.port", 12345);
+    // -Dchat.tls=true for a server started with --tls, -Dtransfer.tls=true to offer files
+    // over TLS only; see Tls for the keystore
+    private static final boolean CHAT_TLS = Boolean.getBoolean("chat.tls");
+    private static final boolean TRANSFER_TLS = Boolean.getBoolean("transfer.tls");
+    // Longest line taken from the server, longer ones are skipped. User lists of big
+    // clusters are the long ones, -Dchat.maxLine to change it.
+    private static final int MAX_LINE = Integer.getInteger("chat.maxLine", 1 << 20);
+
     @FXML private TextArea chatArea;
     @FXML private TextField messageField;
     @FXML private TextField usernameField;
@@ -36,14 +62,26 @@ public class ChatClientController implements Initializable {
     @FXML private Label fileNameField;
     @FXML private Button selectFileButton;
     @FXML private Button fileSendButton;
-    @FXML private ProgressBar progressBar;
-    @FXML private Label progressLabel;
+    @FXML private VBox transfersBox;
+    @FXML private ComboBox<TransferManager.Priority> priorityChoice;
+    @FXML private CheckBox compressCheck;
     @FXML private LineChart lineChart;
+    @FXML private ComboBox<String> congestionChoice;
+    @FXML private ComboBox<Integer> streamChoice;
 
     private Socket socket;
     private PrintWriter out;
-    private BufferedReader in;
-    private boolean connected = false;
+    private BoundedLineReader in;
+    private CompressedChatOutputStream chatOut; // Set when chat compression was negotiated
+    private CompressedChatInputStream chatIn;
+    private volatile boolean connected = false;
+    private volatile boolean reconnecting = false; // Connection lost, the session is still on
+    private volatile String sessionToken; // From the server after login
+    private long lastMessageId; // Of the last numbered message received
+    private volatile long lastReceived; // nanoTime of the last line from the server
+    private volatile int maxMessage = 8192; // Longest line the server takes, it says after login
+    private int nextPartId = 0; // FX thread only, like the assembler
+    private final MessageParts.Assembler assembler = new MessageParts.Assembler();
     private String username;
     private Stage primaryStage;
     private ObservableList<String> userList;
@@ -52,8 +90,21 @@ public class ChatClientController implements Initializable {
     private StringBuilder publicChatHistory;
     private File selectedFile;
     private ExecutorService executorService;
+    private TransferManager transferManager;
+    private Map<Integer, TransferRow> transferRows; // FX thread only
     private XYChart.Series<Number, Number> series;
-    private  int round;
+    @FXML private ComboBox<String> chartMetricChoice;
+    // Where the time of received messages went, see MessageTrace
+    @FXML private LineChart<String, Number> latencyChart;
+    @FXML private Label latencySummary;
+    private final LatencyTracker latency = new LatencyTracker();
+    private final String traceSession = Integer.toHexString(ThreadLocalRandom.current().nextInt());
+    private long nextTraceId = 0; // FX thread only
+    private long plottedLatencies = -1;
+    private TransferTelemetry plottedTelemetry; // Most recently started send
+    private long plottedSamples = -1;
+    private String plottedMetric;
+    private static final int MAX_CHART_POINTS = 400;
 
     @Override
     public void initialize(URL location, ResourceBundle resources) {
@@ -73,9 +124,18 @@ public class ChatClientController implements Initializable {
         privateChatHistories = new HashMap<>();
         publicChatHistory = new StringBuilder();
         executorService = Executors.newCachedThreadPool();
+        transferRows = new HashMap<>();
+
+        // At most MAX_CONCURRENT_TRANSFERS sends and as many receives run at once, the rest
+        // wait by priority.
+        // -Dtransfer.uploadKBps caps the combined upload rate (0 = unlimited).
+        transferManager = new TransferManager(MAX_CONCURRENT_TRANSFERS, Long.getLong("transfer.uploadKBps", 0) * 1024,
+                transfer -> Platform.runLater(() -> onTransferStateChanged(transfer)));
 
         // Set up user list
         userListView.setItems(userList);
+        // Selected users are the recipients of a file sent from the public chat
+        userListView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
         userListView.setOnMouseClicked(event -> {
             if (event.getClickCount() == 2) { // Double click
                 String selectedUser = userListView.getSelectionModel().getSelectedItem();
@@ -96,12 +156,51 @@ public class ChatClientController implements Initializable {
         chatArea.setWrapText(true);
 
         // Set server info
-        serverLabel.setText("Server: localhost:12345");
+        serverLabel.setText("Server: " + SERVER_HOST + ":" + SERVER_PORT + (CHAT_TLS ? " (TLS)" : ""));
 
         series = new XYChart.Series<>();
         series.setName("cwndview");
         lineChart.getData().add(series);
 
+        // The chart redraws a downsampled view of the telemetry a few times a second,
+        // instead of getting a node per sender round
+        chartMetricChoice.setItems(FXCollections.observableArrayList(TransferTelemetry.METRICS));
+        chartMetricChoice.setValue(TransferTelemetry.METRICS[0]);
+        Timeline chartRefresh = new Timeline(new KeyFrame(Duration.millis(250), e -> refreshChart()));
+        chartRefresh.setCycleCount(Animation.INDEFINITE);
+        chartRefresh.play();
+
+        for (String stage : LatencyTracker.STAGES) {
+            XYChart.Series<String, Number> stageSeries = new XYChart.Series<>();
+            stageSeries.setName(stage);
+            latencyChart.getData().add(stageSeries);
+        }
+        Timeline progressRefresh = new Timeline(new KeyFrame(Duration.millis(TransferProgress.SAMPLE_INTERVAL_MS),
+                e -> refreshProgress()));
+        progressRefresh.setCycleCount(Animation.INDEFINITE);
+        progressRefresh.play();
+
+        Timeline latencyRefresh = new Timeline(new KeyFrame(Duration.seconds(1), e -> refreshLatency()));
+        latencyRefresh.setCycleCount(Animation.INDEFINITE);
+        latencyRefresh.play();
+
+        Timeline heartbeat = new Timeline(new KeyFrame(Duration.millis(HEARTBEAT_CHECK), e -> checkHeartbeat()));
+        heartbeat.setCycleCount(Animation.INDEFINITE);
+        heartbeat.play();
+
+        // Congestion control algorithm used for outgoing transfers
+        congestionChoice.setItems(FXCollections.observableArrayList(CongestionController.ALGORITHMS));
+        congestionChoice.setValue(CongestionController.ALGORITHMS[0]);
+
+        // Number of parallel streams for outgoing transfers
+        for (int streams : ParallelFileTransfer.STREAM_CHOICES) {
+            streamChoice.getItems().add(streams);
+        }
+        streamChoice.setValue(1);
+
+        priorityChoice.setItems(FXCollections.observableArrayList(TransferManager.Priority.values()));
+        priorityChoice.setValue(TransferManager.Priority.NORMAL);
+
         // Set prompt text
         usernameField.setPromptText("Enter username");
         messageField.setPromptText("Type your message here...");
@@ -111,8 +210,102 @@ public class ChatClientController implements Initializable {
 
     public void addDataPoint(Number x, Number y) {
         series.getData().add(new XYChart.Data<>(x, y));
-        //round++;
+        if (series.getData().size() > MAX_CHART_POINTS) {
+            series.getData().remove(0);
+        }
+    }
 
+    private void refreshChart() {
+        String metric = chartMetricChoice.getValue();
+        if (plottedTelemetry == null || metric == null) {
+            return;
+        }
+        long samples = plottedTelemetry.getRecorded();
+        if (samples == plottedSamples && metric.equals(plottedMetric)) {
+            return;
+        }
+        plottedSamples = samples;
+        plottedMetric = metric;
+
+        double[][] points = plottedTelemetry.chartSeries(metric, MAX_CHART_POINTS);
+        List<XYChart.Data<Number, Number>> data = new ArrayList<>(points[0].length);
+        for (int i = 0; i < points[0].length; i++) {
+            data.add(new XYChart.Data<>(points[0][i], points[1][i]));
+        }
+        series.getData().setAll(data);
+        lineChart.setTitle(metric + " vs time graph");
+        lineChart.getYAxis().setLabel(metric);
+    }
+
+    // Share of the last LatencyTracker.WINDOW messages per latency bucket, one line per stage
+    private void refreshLatency() {
+        long recorded = latency.getRecorded();
+        if (recorded == plottedLatencies) {
+            return;
+        }
+        plottedLatencies = recorded;
+        StringBuilder summary = new StringBuilder();
+        for (int stage = 0; stage < LatencyTracker.STAGES.length; stage++) {
+            double[] shares = latency.histogram(stage);
+            List<XYChart.Data<String, Number>> data = new ArrayList<>(shares.length);
+            for (int b = 0; b < shares.length; b++) {
+                String bucket = b < LatencyTracker.BUCKETS.length ? String.valueOf(LatencyTracker.BUCKETS[b])
+                        : ">" + LatencyTracker.BUCKETS[b - 1];
+                data.add(new XYChart.Data<>(bucket, shares[b]));
+            }
+            latencyChart.getData().get(stage).getData().setAll(data);
+            long[] p = latency.percentiles(stage, 0.5, 0.99, 1.0);
+            summary.append(String.format("%-17s p50 %7.2f  p99 %7.2f  max %7.2f ms%n", LatencyTracker.STAGES[stage],
+                    p[0] / 1000.0, p[1] / 1000.0, p[2] / 1000.0));
+        }
+        latencySummary.setText(summary.toString().trim());
+    }
+
+    @FXML
+    private void handleExportLatency() {
+        if (latency.getRecorded() == 0) {
+            showAlert("No messages from other users received yet");
+            return;
+        }
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Export Message Latencies");
+        fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("CSV", "*.csv"));
+        fileChooser.setInitialFileName("latency.csv");
+        File file = fileChooser.showSaveDialog(primaryStage);
+        if (file != null) {
+            executorService.submit(() -> {
+                try {
+                    latency.exportCsv(file);
+                } catch (IOException e) {
+                    Platform.runLater(() -> showAlert("Could not export latencies: " + e.getMessage()));
+                }
+            });
+        }
+    }
+
+    @FXML
+    private void handleExportTrace() {
+        TransferTelemetry telemetry = plottedTelemetry;
+        if (telemetry == null) {
+            showAlert("Send a file first, the trace of the latest send is exported");
+            return;
+        }
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Export Transfer Trace");
+        fileChooser.getExtensionFilters().addAll(
+                new FileChooser.ExtensionFilter("CSV", "*.csv"),
+                new FileChooser.ExtensionFilter("Binary trace", "*.trace"));
+        fileChooser.setInitialFileName("transfer.csv");
+        File file = fileChooser.showSaveDialog(primaryStage);
+        if (file != null) {
+            executorService.submit(() -> {
+                try {
+                    telemetry.export(file);
+                } catch (IOException e) {
+                    Platform.runLater(() -> showAlert("Could not export trace: " + e.getMessage()));
+                }
+            });
+        }
     }
 
     public void setPrimaryStage(Stage stage) {
@@ -121,6 +314,7 @@ public class ChatClientController implements Initializable {
         // Handle window close
         primaryStage.setOnCloseRequest(e -> {
             disconnect();
+            transferManager.shutdown();
             Platform.exit();
         });
     }
@@ -190,19 +384,14 @@ public class ChatClientController implements Initializable {
         }
 
         try {
-            socket = new Socket("localhost", 12345);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            sessionToken = null;
+            openConnection();
 
             // Start listening for messages
             Thread messageListener = new Thread(this::listenForMessages);
             messageListener.setDaemon(true);
             messageListener.start();
 
-            // Send username to server
-            String prompt = in.readLine(); // Read "Enter your username:" prompt
-            out.println(username);
-
             connected = true;
             updateUIState();
 
@@ -224,12 +413,95 @@ public class ChatClientController implements Initializable {
         }
     }
 
+    // Connects and logs in, or resumes the session when there is one. False if the server
+    // did not know the session any more and the user logged in again instead.
+    private boolean openConnection() throws IOException {
+        socket = new Socket(SERVER_HOST, SERVER_PORT);
+        lastReceived = System.nanoTime();
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        if (CHAT_TLS) {
+            // Resumes the TLS session of the previous connection if the server still has it
+            TlsSocket tlsSocket = Tls.client(socket, SERVER_HOST, SERVER_PORT);
+            socket = tlsSocket;
+            tlsSocket.startHandshake();
+        }
+        InputStream rawIn = socket.getInputStream();
+        OutputStream rawOut = socket.getOutputStream();
+        out = new PrintWriter(rawOut, true);
+
+        // Read unbuffered until the streams are settled, the server may switch to
+        // compressed frames right after its answer
+        String prompt = ChatCompression.readLine(rawIn, MAX_LINE); // Read "Enter your username:" prompt
+        String mode = negotiateCompression(rawIn);
+        if (!mode.equals(ChatCompression.OFF)) {
+            chatOut = new CompressedChatOutputStream(rawOut, mode);
+            chatIn = new CompressedChatInputStream(rawIn, mode);
+            out = new PrintWriter(chatOut, true);
+            in = new BoundedLineReader(new InputStreamReader(chatIn), MAX_LINE);
+        } else {
+            chatOut = null;
+            chatIn = null;
+            in = new BoundedLineReader(new InputStreamReader(rawIn), MAX_LINE);
+        }
+
+        try {
+            if (sessionToken != null) {
+                // The server replays everything after the last message we got
+                out.println("/resume " + sessionToken + " " + lastMessageId);
+                String reply;
+                while ((reply = in.readLine()) != null) {
+                    if (reply.startsWith("/resumed ")) {
+                        lastMessageId = Long.parseLong(reply.substring(9).trim());
+                        measureClock();
+                        return true;
+                    } else if (reply.equals("/resume-failed")) {
+                        break;
+                    }
+                    // Broadcasts that raced the answer, they are part of the replay
+                }
+                measureClock();
+                if (reply == null) {
+                    throw new EOFException("Server closed the connection");
+                }
+                sessionToken = null;
+            }
+
+            // Send username to server
+            out.println(username);
+            measureClock();
+            return false;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    // Asks for the mode in -Dchat.compression (default: deflate with the shared dictionary,
+    // "off" to not ask) and returns what the server accepted
+    private String negotiateCompression(InputStream rawIn) throws IOException {
+        String requested = System.getProperty("chat.compression", ChatCompression.DICTIONARY);
+        if (requested.equals(ChatCompression.OFF)) {
+            return ChatCompression.OFF;
+        }
+        out.println(ChatCompression.COMMAND + requested);
+        String reply;
+        while ((reply = ChatCompression.readLine(rawIn, MAX_LINE)) != null) {
+            if (reply.startsWith(ChatCompression.COMMAND)) {
+                return ChatCompression.accept(reply.substring(ChatCompression.COMMAND.length()).trim());
+            }
+            // Broadcasts that raced the answer, we have not joined yet
+        }
+        throw new EOFException("Server closed the connection");
+    }
+
     private void disconnect() {
         if (connected) {
             try {
                 if (out != null) {
                     out.println("/quit");
                 }
+                if (chatOut != null) {
+                    System.out.println("Chat compression: " + ChatCompression.describe(chatOut, chatIn));
+                }
                 if (socket != null) {
                     socket.close();
                 }
@@ -265,9 +537,29 @@ public class ChatClientController implements Initializable {
             return;
         }
 
+        // /compress on|off, stop spending CPU on compression or start again
+        if (message.toLowerCase().startsWith(ChatCompression.COMMAND)) {
+            boolean on = message.substring(ChatCompression.COMMAND.length()).trim().equalsIgnoreCase("on");
+            if (chatOut != null) {
+                chatOut.setCompressing(on);
+            }
+            out.println(ChatCompression.COMMAND + (on ? "on" : "off"));
+            messageField.clear();
+            return;
+        }
+
+        // Search the history the server keeps, the results show up in the current chat
+        if (message.toLowerCase().startsWith("/search ")) {
+            out.println(message);
+            Platform.runLater(messageField::clear);
+            return;
+        }
+
         // Check if it's a private message
         if (currentChatUser != null) {
-            out.println("/msg " + currentChatUser + " " + message);
+            if (!sendText("/msg " + currentChatUser + " ", message)) {
+                return;
+            }
             String chatMessage = "You to " + currentChatUser + ": " + message + "\n";
 
             Platform.runLater(() -> {
@@ -277,7 +569,9 @@ public class ChatClientController implements Initializable {
             });
         } else {
             // Public message
-            out.println(message);
+            if (!sendText("", message)) {
+                return;
+            }
             String chatMessage = "You: " + message + "\n";
 
             Platform.runLater(() -> {
@@ -288,28 +582,165 @@ public class ChatClientController implements Initializable {
         }
     }
 
+    // Sends the text after `command` as one line, or as fragments when the line would be
+    // longer than the server takes. False if it is too long even for that.
+    private boolean sendText(String command, String text) {
+        List<String> parts = MessageParts.split(text, nextPartId++,
+                maxMessage - command.length() - MessageParts.HEADER_LENGTH - MessageTrace.HEADER_LENGTH);
+        if (parts == null) {
+            showAlert("Message not sent, it is too long");
+            return false;
+        }
+        for (String part : parts) {
+            out.println(MessageTrace.PREFIX + traceSession + "-" + nextTraceId++ + " " + latency.serverNow() + " "
+                    + command + part);
+        }
+        return true;
+    }
+
+    // The answer tells LatencyTracker how far the server's clock is from ours
+    private void measureClock() {
+        out.println(MessageTrace.CLOCK + MessageTrace.now());
+    }
+
+    // Runs for the whole session, across reconnects
     private void listenForMessages() {
+        while (true) {
+            String reason = "server closed the connection";
+            try {
+                while (true) {
+                    String message;
+                    try {
+                        message = in.readLine();
+                    } catch (BoundedLineReader.LineTooLongException e) {
+                        lastReceived = System.nanoTime();
+                        // Only messages get that long, and the server numbered it like any other
+                        if (sessionToken != null) {
+                            lastMessageId++;
+                        }
+                        showNotice("Skipped a message from the server longer than " + MAX_LINE + " characters");
+                        continue;
+                    }
+                    if (message == null) {
+                        break;
+                    }
+                    lastReceived = System.nanoTime();
+                    if (message.equals("/ping")) {
+                        out.println("/pong");
+                        continue;
+                    } else if (message.equals("/pong")) {
+                        continue;
+                    } else if (message.startsWith(MessageTrace.CLOCK)) {
+                        String[] parts = message.split(" ");
+                        latency.clockSample(Long.parseLong(parts[1]), Long.parseLong(parts[2]), MessageTrace.now());
+                        continue;
+                    } else if (message.startsWith("/max-message ")) {
+                        maxMessage = Integer.parseInt(message.substring(13).trim());
+                        continue;
+                    } else if (message.startsWith("/session ")) {
+                        // Everything after this line is numbered, counting from the given id
+                        String[] parts = message.split(" ");
+                        sessionToken = parts[1];
+                        lastMessageId = Long.parseLong(parts[2]);
+                        continue;
+                    }
+                    if (sessionToken != null) {
+                        lastMessageId++;
+                    }
+                    String[] trace = message.startsWith(MessageTrace.PREFIX) ? message.split(" ", 6) : null;
+                    if (trace != null && trace.length == 6) {
+                        // "/trace <id> <sent> <received> <fanned out> <line>"
+                        long readAt = latency.serverNow();
+                        String line = trace[5];
+                        Platform.runLater(() -> {
+                            processIncomingMessage(line);
+                            latency.record(trace[1], Long.parseLong(trace[2]), Long.parseLong(trace[3]),
+                                    Long.parseLong(trace[4]), readAt, latency.serverNow());
+                        });
+                        continue;
+                    }
+                    final String msg = message;
+                    Platform.runLater(() -> {
+                        processIncomingMessage(msg);
+                    });
+                }
+            } catch (IOException e) {
+                reason = e.getMessage();
+            }
+            if (!connected) {
+                return; // Disconnected on purpose
+            }
+            showNotice("Connection lost: " + reason);
+            if (!reconnect()) {
+                return;
+            }
+        }
+    }
+
+    // Tries until it gets through or the user disconnects. The delay before each attempt
+    // is random between 0 and a cap that doubles every attempt ("full jitter"), so the
+    // clients of a restarted server do not all come back in the same instant.
+    private boolean reconnect() {
+        reconnecting = true;
+        Platform.runLater(this::updateUIState);
         try {
-            String message;
-            while ((message = in.readLine()) != null) {
-                final String msg = message;
-                Platform.runLater(() -> {
-                    processIncomingMessage(msg);
-                });
+            for (int attempt = 0; connected; attempt++) {
+                long cap = Math.min(RECONNECT_MAX_DELAY, RECONNECT_BASE_DELAY << Math.min(attempt, 16));
+                long delay = ThreadLocalRandom.current().nextLong(cap + 1);
+                showNotice(String.format("Reconnecting in %.1fs...", delay / 1000.0));
+                Thread.sleep(delay);
+                if (!connected) {
+                    break;
+                }
+                try {
+                    socket.close();
+                    boolean resumed = openConnection();
+                    showNotice(resumed ? "Reconnected" : "Reconnected, the old session had expired");
+                    if (!resumed) {
+                        out.println("/users");
+                    }
+                    return true;
+                } catch (IOException e) {
+                    // Try again later
+                }
             }
-        } catch (IOException e) {
-            if (connected) {
-                Platform.runLater(() -> {
-                    String errorMsg = "Connection lost: " + e.getMessage() + "\n";
-                    publicChatHistory.append(errorMsg);
-                    chatArea.appendText(errorMsg);
-                });
-                connected = false;
-                Platform.runLater(this::updateUIState);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            reconnecting = false;
+            Platform.runLater(this::updateUIState);
+        }
+        return false;
+    }
+
+    // FX thread, every HEARTBEAT_CHECK
+    private void checkHeartbeat() {
+        if (!connected || reconnecting) {
+            return;
+        }
+        long silent = (System.nanoTime() - lastReceived) / 1_000_000;
+        if (silent >= SERVER_TIMEOUT) {
+            // Ends the listener's read, which then reconnects
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        } else {
+            if (silent >= HEARTBEAT) {
+                out.println("/ping");
             }
+            // The offset drifts, and a sample taken while the link was busy is off
+            measureClock();
         }
     }
 
+    private void showNotice(String notice) {
+        Platform.runLater(() -> {
+            publicChatHistory.append(notice).append("\n");
+            chatArea.appendText(notice + "\n");
+        });
+    }
+
     private void processIncomingMessage(String message) {
         // Handle different types of messages from server
         if (message.startsWith("/userlist ")) {
@@ -321,23 +752,45 @@ public class ChatClientController implements Initializable {
                     userList.add(user.trim());
                 }
             }
+        } else if (message.startsWith(OutboundQueue.DROPPED)) {
+            // The server skipped public messages we were too slow to take. Private ones and
+            // replies are never skipped, they come ahead of public chat.
+            String notice = "(" + message.substring(OutboundQueue.DROPPED.length()).trim()
+                    + " public messages skipped, the connection could not keep up)\n";
+            publicChatHistory.append(notice);
+            if (currentChatUser == null) {
+                chatArea.appendText(notice);
+            }
+        } else if (message.startsWith("/search-results ")) {
+            String[] parts = message.substring(16).split(" ", 2);
+            chatArea.appendText("Search " + (parts.length > 1 ? "\"" + parts[1] + "\"" : "") + ": "
+                    + parts[0] + " result(s), newest first\n");
+        } else if (message.startsWith("/search-result ")) {
+            // Shown but not kept in any chat history
+            chatArea.appendText("  " + message.substring(15) + "\n");
         } else if (message.startsWith("/private ")) {
             // Private message received
             String[] parts = message.substring(9).split(": ", 2);
             if (parts.length == 2) {
                 String sender = parts[0];
                 String content = parts[1];
+                if (MessageParts.isPart(content)) {
+                    content = assembler.add("/private " + sender, content);
+                    if (content == null) {
+                        return; // More fragments to come
+                    }
+                }
 
                 // Check if it's a file transfer message
                 if (content.startsWith("File ")) {
-                    System.out.println(content);
                     String[] fileParts = content.split(" ");
-                    if (fileParts.length >= 6) {
+                    if (fileParts.length >= 7) {
+                        boolean tls = fileParts.length >= 8 && fileParts[7].equals("tls");
                         String senderIP = fileParts[2];
-                        System.out.println(senderIP);
                         int port = Integer.parseInt(fileParts[3]);
                         String fileName = fileParts[4];
                         long fileSize = Long.parseLong(fileParts[5]);
+                        int streams = Integer.parseInt(fileParts[6]);
 
                         String fileMessage = sender + " wants to send you a file: " + fileName + " (" + fileSize + " bytes)\n";
 
@@ -363,7 +816,7 @@ public class ChatClientController implements Initializable {
 
                             alert.showAndWait().ifPresent(response -> {
                                 if (response == ButtonType.OK) {
-                                    receiveFile(senderIP, port, fileName, fileSize);
+                                    receiveFile(sender, senderIP, port, fileName, fileSize, streams, tls);
                                 }
                             });
                         });
@@ -386,7 +839,15 @@ public class ChatClientController implements Initializable {
                 }
             }
         } else {
-            // Public message
+            // Public message, "sender: text"
+            int fragment = message.indexOf(": " + MessageParts.PREFIX);
+            if (fragment > 0) {
+                String whole = assembler.add(message.substring(0, fragment), message.substring(fragment + 2));
+                if (whole == null) {
+                    return; // More fragments to come
+                }
+                message = message.substring(0, fragment + 2) + whole;
+            }
             String chatMessage = message + "\n";
             publicChatHistory.append(chatMessage);
 
@@ -401,8 +862,8 @@ public class ChatClientController implements Initializable {
     private void updateUIState() {
         connectButton.setText(connected ? "Disconnect" : "Connect");
         usernameField.setDisable(connected);
-        messageField.setDisable(!connected);
-        sendButton.setDisable(!connected);
+        messageField.setDisable(!connected || reconnecting);
+        sendButton.setDisable(!connected || reconnecting);
     }
 
     private void showAlert(String message) {
@@ -432,563 +893,215 @@ public class ChatClientController implements Initializable {
         }
 
         if (currentChatUser == null) {
-            showAlert("Please select a user for private chat to send file");
+            sendFileToGroup();
             return;
         }
 
         if (selectedFile != null) {
-            executorService.submit(() -> {
-                try {
-                    int port = 12348;
-                    ServerSocket serverSocket = new ServerSocket(port);
-                    String localIP = "127.0.0.1";
-
-                    Platform.runLater(() -> {
-                        String fileMessage = "Sending file: " + selectedFile.getName() + " to " + currentChatUser + "\n";
-                        privateChatHistories.get(currentChatUser).append(fileMessage);
-                        if (currentChatUser.equals(currentChatUser)) {
-                            chatArea.appendText(fileMessage);
-                        }
-                    });
-
-                    String fileTransferMessage = "File " + currentChatUser + " " + localIP + " " + port + " " + selectedFile.getName() + " " + selectedFile.length();
-                    out.println("/msg " + currentChatUser + " " + fileTransferMessage);
-
-                    Socket clientSocket = serverSocket.accept();
-
-                    // Initialize TCP Reno congestion control parameters
-                    TCPRenoSender tcpSender = new TCPRenoSender(clientSocket, selectedFile);
-                    tcpSender.sendFileWithCongestionControl();
-
-                    clientSocket.close();
-                    serverSocket.close();
-
-                } catch (IOException e) {
-                    Platform.runLater(() -> {
-                        String errorMessage = "Error sending file: " + e.getMessage() + "\n";
-                        privateChatHistories.get(currentChatUser).append(errorMessage);
-                        if (currentChatUser.equals(currentChatUser)) {
-                            chatArea.appendText(errorMessage);
-                        }
-                    });
-                }
-            });
+            // Transfers run concurrently, capture what this one needs before the UI moves on
+            File file = selectedFile;
+            String recipient = currentChatUser;
+            String algorithm = congestionChoice.getValue();
+            int streams = streamChoice.getValue();
+            TransferManager.Priority priority = priorityChoice.getValue();
+            boolean compress = compressCheck.isSelected();
+
+            String fileMessage = "Sending file: " + file.getName() + " to " + recipient + "\n";
+            privateChatHistories.get(recipient).append(fileMessage);
+            chatArea.appendText(fileMessage);
+
+            TransferRow row = new TransferRow("Send " + file.getName() + " to " + recipient, null);
+            // Plot the algorithm chosen for this transfer, summed over all streams
+            row.chartName = CongestionController.create(algorithm).getName() + (streams > 1 ? " x" + streams : "");
+
+            String localIP = "127.0.0.1";
+            TransferManager.Transfer transfer = transferManager.submitSend(file, recipient, streams, algorithm, compress, TRANSFER_TLS, priority,
+                    port -> {
+                        String fileTransferMessage = "File " + recipient + " " + localIP + " " + port + " " + file.getName() + " " + file.length() + " " + streams
+                                + (TRANSFER_TLS ? " tls" : "");
+                        out.println("/msg " + recipient + " " + fileTransferMessage);
+                    }, row.progress);
+            addTransferRow(transfer, row);
         }
     }
 
-    // TCP Reno Sender Class
-    class TCPRenoSender {
-        private Socket socket;
-        private File file;
-        private DataOutputStream dos;
-        private DataInputStream dis;
-
-        // TCP Reno parameters
-        private int cwnd = 1; // Congestion window (in segments)
-        private int ssthresh = 32; // Slow start threshold
-        private int segmentSize = 1024; // Segment size in bytes
-        private int duplicateAcks = 0;
-        private int lastAckedSeq = 0;
-        private int nextSeqNum = 0;
-        private boolean inSlowStart = true;
-        private boolean inFastRecovery = false;
-
-        // Timing parameters
-        private long rtt = 100; // Initial RTT estimate (ms)
-        private long rttvar = 50; // RTT variance
-        private long rto = 200; // Retransmission timeout
-        private final double alpha = 0.125; // RTT smoothing factor
-        private final double beta = 0.25; // RTT variance smoothing factor
-
-        // Flow control
-        private int receiverWindow = 65535; // Receiver's advertised window
-        private int effectiveWindow;
-
-
-        // Buffers and queues
-        private Map<Integer, byte[]> sentSegments = new ConcurrentHashMap<>();
-        private Map<Integer, Long> segmentTimestamps = new ConcurrentHashMap<>();
-        private Queue<Integer> retransmissionQueue = new ConcurrentLinkedQueue<>();
-
-        public TCPRenoSender(Socket socket, File file) throws IOException {
-            this.socket = socket;
-            this.file = file;
-            this.dos = new DataOutputStream(socket.getOutputStream());
-            this.dis = new DataInputStream(socket.getInputStream());
-
-            // Set socket options for better performance
-            socket.setTcpNoDelay(true);
-            socket.setSoTimeout(5000); // 5 second timeout for reading segments
-            // Don't set socket timeout for ACK reading - let it block
-        }
-
-        public void sendFileWithCongestionControl() throws IOException {
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[segmentSize];
-                int bytesRead;
-                long totalSent = 0;
-                long fileSize = file.length();
-
-                // Start ACK receiver thread
-                Thread ackReceiver = new Thread(this::receiveAcks);
-                ackReceiver.setDaemon(true);
-                ackReceiver.start();
-
-                // Give ACK receiver time to start
-                Thread.sleep(100);
-
-                long startTime = System.currentTimeMillis();
-                long timeout = 60000; // 60 second timeout (increased from 30)
-                round = 1;
-                while (totalSent < fileSize) {
-                    // Check for overall timeout
-                    if (System.currentTimeMillis() - startTime > timeout) {
-                        System.out.println("Transfer timeout - breaking");
-                        break;
-                    }
-
-                    // Calculate effective window (minimum of congestion window and receiver window)
-                    effectiveWindow = Math.min(cwnd * segmentSize, receiverWindow);
-                    int thispacket=1;
-                    // Send segments within the window
-                    boolean sentSomething = false;
-                    while ((canSendSegment() && totalSent < fileSize) && thispacket <= cwnd) {
-                        bytesRead = fis.read(buffer);
-                        if (bytesRead == -1) break;
-
-                        // Prepare segment
-                        byte[] segment = new byte[bytesRead];
-                        System.arraycopy(buffer, 0, segment, 0, bytesRead);
-
-                        sendSegment(nextSeqNum, segment);
-                        thispacket ++;
-                        totalSent += bytesRead;
-                        sentSomething = true;
-                        // Update progress
-                        double progress = (double) totalSent / fileSize;
-                        Platform.runLater(() -> {
-                            progressBar.setProgress(progress);
-                            progressLabel.setText("Sending Progress " + String.format("%.1f", progress * 100) + "%");
-                        });
-                    }
-
-                    if (sentSomething) {
-                        Thread.sleep(5); // Short delay when actively sending
-                    } else {
-                        Thread.sleep(20); // Longer delay when waiting
-                    }
-
-                    Platform.runLater(() -> {
-                        series.getData().add(new XYChart.Data<>(round++, cwnd));
-                    });
-
-                    if (sentSomething) {
-                        Thread.sleep(5); // Short delay when actively sending
-                    } else {
-                        Thread.sleep(20); // Longer delay when waiting
-                    }
+    // From the public chat: to the users selected in the list, or everyone online if none is.
+    // The file is read once and goes to each of them on its own stream, see GroupFileTransfer.
+    private void sendFileToGroup() {
+        if (selectedFile == null) {
+            return;
+        }
+        List<String> recipients = new ArrayList<>(userListView.getSelectionModel().getSelectedItems());
+        if (recipients.isEmpty()) {
+            recipients.addAll(userList);
+        }
+        recipients.remove(username);
+        if (recipients.isEmpty()) {
+            showAlert("Nobody else is online to send the file to");
+            return;
+        }
 
-                    System.out.println(cwnd);
-                    // Handle retransmissions
-                    handleRetransmissions();
-                    if(inSlowStart){
-                        cwnd*=2;
-                        if(cwnd >= ssthresh){
-                            inSlowStart = false;
-                            inFastRecovery = true;
-                        }
-                    }else if(inFastRecovery){
-                        cwnd++;
+        File file = selectedFile;
+        String algorithm = congestionChoice.getValue();
+        TransferManager.Priority priority = priorityChoice.getValue();
+        String peers = recipients.size() == 1 ? recipients.get(0) : recipients.size() + " users";
+
+        String fileMessage = "Sending file: " + file.getName() + " to " + String.join(", ", recipients) + "\n";
+        publicChatHistory.append(fileMessage);
+        chatArea.appendText(fileMessage);
+
+        TransferRow row = new TransferRow("Send " + file.getName() + " to " + peers, null);
+        row.chartName = CongestionController.create(algorithm).getName() + (recipients.size() > 1 ? " x" + recipients.size() : "");
+        row.group = true;
+
+        String localIP = "127.0.0.1";
+        TransferManager.Transfer transfer = transferManager.submitGroupSend(file, recipients, algorithm, TRANSFER_TLS, priority,
+                port -> {
+                    // The same port for everyone, one stream each
+                    for (String recipient : recipients) {
+                        out.println("/msg " + recipient + " File " + recipient + " " + localIP + " " + port + " "
+                                + file.getName() + " " + file.length() + " 1" + (TRANSFER_TLS ? " tls" : ""));
                     }
-                    if(cwnd >= 41){
-                        ssthresh = cwnd/2;
-                        ssthresh = Math.max(2, ssthresh);
-                        cwnd = ssthresh;
+                }, new TransferListener() {
+                    @Override
+                    public void onProgress(long bytesTransferred, long totalBytes) {
+                        row.progress.onProgress(bytesTransferred, totalBytes);
                     }
 
-
-
-                    // Adaptive delay based on activity
-                    if (sentSomething) {
-                        Thread.sleep(5); // Short delay when actively sending
-                    } else {
-                        Thread.sleep(20); // Longer delay when waiting
+                    @Override
+                    public void onRetransmit(int seqNum) {
+                        row.progress.onRetransmit(seqNum);
                     }
-                }
-
-                // Wait for final ACKs
-                Thread.sleep(rto);
 
-                // Stop ACK receiver
-                ackReceiver.interrupt();
-
-                Platform.runLater(() -> {
-                    String successMessage = "File sent successfully: " + file.getName() + "\n";
-                    privateChatHistories.get(currentChatUser).append(successMessage);
-                    if (currentChatUser.equals(currentChatUser)) {
-                        chatArea.appendText(successMessage);
+                    @Override
+                    public void onFailure(String reason) {
+                        showNotice("Sending " + file.getName() + " to one of the recipients failed: " + reason);
                     }
                 });
+        addTransferRow(transfer, row);
+    }
 
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
-
-        private boolean canSendSegment() {
-            int segmentsInFlight = nextSeqNum - (lastAckedSeq + 1);
-            return segmentsInFlight < cwnd;
-        }
-
-        private void sendSegment(int seqNum, byte[] data) throws IOException {
-            // Create segment with sequence number and data
-            dos.writeInt(seqNum);
-            dos.writeInt(data.length);
-            dos.write(data);
-            dos.flush();
-
-            //System.out.println("Sending segment: " + seqNum + ", cwnd: " + cwnd + ", lastAcked: " + lastAckedSeq);
-
-            // Store segment for potential retransmission
-            sentSegments.put(seqNum, data);
-            segmentTimestamps.put(seqNum, System.currentTimeMillis());
-
-            // Only increment nextSeqNum if this is a new segment (not a retransmission)
-            if (seqNum == nextSeqNum) {
-                nextSeqNum++;
-            }
-        }
-
-        private void receiveAcks() {
-            try {
-                while (!Thread.currentThread().isInterrupted()) {
-                    try {
-                        int ackNum = dis.readInt();
-                        int advertisedWindow = dis.readInt();
-
-                        //System.out.println("Received ACK: " + ackNum + ", lastAcked: " + lastAckedSeq);
-
-                        receiverWindow = advertisedWindow;
-                        //System.out.println(cwnd);
-
-                        if (ackNum > lastAckedSeq) {
-                            // New ACK received
-                            handleNewAck(ackNum);
-                        } else if (ackNum == lastAckedSeq && lastAckedSeq >= 0) {
-                            // Duplicate ACK (only count duplicates after first ACK)
-                            handleDuplicateAck(ackNum);
-                        }
-                    } catch (IOException e) {
-                        if (!Thread.currentThread().isInterrupted()) {
-                            //System.out.println("ACK read error: " + e.getMessage());
-                            Thread.sleep(10); // Brief pause before retrying
-                        }
-                    }
+    // Enhanced receiving method with flow control
+    private void receiveFile(String sender, String senderIP, int port, String fileName, long fileSize, int streams,
+                             boolean tls) {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Save File As");
+        fileChooser.setInitialFileName(fileName);
+        File saveFile = fileChooser.showSaveDialog(primaryStage);
+
+        if (saveFile != null) {
+            TransferRow row = new TransferRow("Receive " + saveFile.getName() + " from " + sender, saveFile);
+            TransferManager.Transfer transfer = transferManager.submitReceive(senderIP, port, saveFile, fileSize,
+                    streams, tls, sender, TransferManager.Priority.NORMAL, row.progress);
+            addTransferRow(transfer, row);
+        } else {
+            // Declined: connect and close so the sender stops waiting
+            executorService.submit(() -> {
+                try{
+                    Socket socket = new Socket(senderIP, port);
+                    socket.close();
+                }catch (IOException e){
+                    e.printStackTrace();
                 }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            } catch (Exception e) {
-                System.out.println("ACK receiver thread ended: " + e.getMessage());
-            }
-        }
-
-        private void handleNewAck(int ackNum) {
-            // Only process if this is a new ACK (ackNum > lastAckedSeq)
-            if (ackNum <= lastAckedSeq) {
-                return;
-            }
-
-            // Calculate RTT and update RTO for the acknowledged segment
-            Long timestamp = segmentTimestamps.get(ackNum);
-            if (timestamp != null) {
-                long sampleRtt = System.currentTimeMillis() - timestamp;
-                updateRtt(sampleRtt);
-            }
-
-            // Clean up ALL acknowledged segments up to ackNum
-            for (int seq = lastAckedSeq + 1; seq <= ackNum; seq++) {
-                sentSegments.remove(seq);
-                segmentTimestamps.remove(seq);
-            }
-
-            // Update last acknowledged sequence number
-            lastAckedSeq = ackNum;
-            duplicateAcks = 0;
-
-            //System.out.println("Cleaned up segments up to: " + ackNum + ", remaining: " + segmentTimestamps.size());
-
-
+            });
         }
+    }
 
-        private void handleDuplicateAck(int ackNum) {
-            duplicateAcks++;
-
-            if (duplicateAcks == 3) {
-                // Fast retransmit
-                fastRetransmit(ackNum + 1);
-
-                // Enter fast recovery
-                ssthresh = Math.max(cwnd / 2, 2);
-                cwnd = ssthresh + 3;
-                inFastRecovery = true;
-                inSlowStart = false;
-            }
+    // One line in the transfers pane: description, progress bar, rate and state
+    private static class TransferRow {
+        final HBox box;
+        final ProgressBar progressBar = new ProgressBar(0);
+        final Label rateLabel = new Label();
+        final Label statusLabel = new Label();
+        final File saveFile; // Receives only, for the resume hint
+        // The transfer's listener, sampled by refreshProgress
+        final TransferProgress progress = new TransferProgress();
+        String chartName; // Sends only
+        boolean group; // Sent from the public chat, its status lines go there too
+        boolean active;
+
+        TransferRow(String description, File saveFile) {
+            this.saveFile = saveFile;
+            Label descriptionLabel = new Label(description);
+            descriptionLabel.setPrefWidth(170);
+            progressBar.setPrefWidth(110);
+            rateLabel.setPrefWidth(190);
+            statusLabel.setPrefWidth(90);
+            box = new HBox(5, descriptionLabel, progressBar, rateLabel, statusLabel);
         }
+    }
 
-        private void fastRetransmit(int seqNum) {
-            byte[] segment = sentSegments.get(seqNum);
-            if (segment != null) {
-                try {
-                    System.out.println("Fast retransmitting segment: " + seqNum);
-                    dos.writeInt(seqNum);
-                    dos.writeInt(segment.length);
-                    dos.write(segment);
-                    dos.flush();
-                    ssthresh = ssthresh/2;
-                    cwnd = ssthresh + 2;
-                    inSlowStart = false;
-                    inFastRecovery = true;
-                    // Update timestamp for retransmitted segment
-                    segmentTimestamps.put(seqNum, System.currentTimeMillis());
-                } catch (IOException e) {
-                    System.out.println("Error in fast retransmit: " + e.getMessage());
-                }
+    // Every SAMPLE_INTERVAL_MS: progress, throughput and ETA of the running transfers
+    private void refreshProgress() {
+        long now = System.nanoTime();
+        for (TransferRow row : transferRows.values()) {
+            if (row.active) {
+                row.progress.sample(now);
+                row.progressBar.setProgress(row.progress.getFraction());
+                row.rateLabel.setText(row.progress.summary(row.saveFile == null));
             }
         }
-        // Handle retransmission error
-
+    }
 
+    private void addTransferRow(TransferManager.Transfer transfer, TransferRow row) {
+        transferRows.put(transfer.getId(), row);
+        transfersBox.getChildren().add(row.box);
+        row.statusLabel.setText(transfer.getState().toString());
+    }
 
-        private void handleRetransmissions() {
-            long currentTime = System.currentTimeMillis();
-            if(cwnd > 41){
-                fastRetransmit(lastAckedSeq);
-            }
-            if(cwnd > (3*ssthresh)){
-                handleTimeout(lastAckedSeq);
-            }
-            // Only check unacknowledged segments
-            for (Map.Entry<Integer, Long> entry : new ArrayList<>(segmentTimestamps.entrySet())) {
-                int seqNum = entry.getKey();
-                long timestamp = entry.getValue();
-
-                // Only check segments that are not yet acknowledged
-                if (seqNum > lastAckedSeq && currentTime - timestamp > rto) {
-                    System.out.println("Timeout for segment: " + seqNum + " (lastAcked: " + lastAckedSeq + ")");
-                    handleTimeout(seqNum);
-                    break; // Handle one timeout at a time
-                }
-            }
+    // Called on the FX thread whenever a transfer changes state
+    private void onTransferStateChanged(TransferManager.Transfer transfer) {
+        TransferRow row = transferRows.get(transfer.getId());
+        if (row == null) {
+            return;
         }
-
-        private void handleTimeout(int seqNum) {
-            System.out.println("Timeout for segment: " + seqNum + " (lastAcked: " + lastAckedSeq + ")");
-
-            // Only handle timeout if segment is not yet acknowledged
-            if (seqNum <= lastAckedSeq) {
-                System.out.println("Segment " + seqNum + " already acknowledged, ignoring timeout");
-                segmentTimestamps.remove(seqNum);
-                sentSegments.remove(seqNum);
-                return;
-            }
-
-            // TCP Reno timeout handling
-            ssthresh = Math.max(cwnd / 2, 2);
-            cwnd = 1;
-            inSlowStart = true;
-            inFastRecovery = false;
-            duplicateAcks = 0;
-
-            // Retransmit the timed-out segment
-            byte[] segment = sentSegments.get(seqNum);
-            if (segment != null) {
-                try {
-                    System.out.println("Timeout retransmitting segment: " + seqNum);
-                    dos.writeInt(seqNum);
-                    dos.writeInt(segment.length);
-                    dos.write(segment);
-                    dos.flush();
-
-                    // Update timestamp for retransmitted segment
-                    segmentTimestamps.put(seqNum, System.currentTimeMillis());
-                } catch (IOException e) {
-                    System.out.println("Error in timeout retransmit: " + e.getMessage());
-                }
-            }
-
-            // Double the RTO (exponential backoff)
-            rto = Math.min(rto * 2, 10000); // Cap at 10 seconds
+        row.statusLabel.setText(transfer.getState().toString());
+        row.active = transfer.getState() == TransferManager.State.ACTIVE;
+
+        if (transfer.getState() == TransferManager.State.ACTIVE && transfer.getTelemetry() != null) {
+            // The chart follows the most recently started send
+            plottedTelemetry = transfer.getTelemetry();
+            plottedSamples = -1;
+            series.getData().clear();
+            series.setName(row.chartName);
         }
 
-        private void updateRtt(long sampleRtt) {
-            if (rtt == 0) {
-                rtt = sampleRtt;
-                rttvar = sampleRtt / 2;
+        String peer = transfer.getPeer();
+        String message = null;
+        if (transfer.getState() == TransferManager.State.COMPLETED) {
+            row.progressBar.setProgress(1);
+            row.rateLabel.setText("");
+            message = transfer.getDirection() == TransferManager.Direction.SEND
+                    ? "File sent successfully: " + transfer.getFileName() + "\n"
+                    : "File received successfully: " + transfer.getFileName() + "\n";
+        } else if (transfer.getState() == TransferManager.State.FAILED) {
+            if (transfer.getDirection() == TransferManager.Direction.SEND) {
+                message = "Error sending file: " + transfer.getError() + "\n";
             } else {
-                rttvar = (long) ((1 - beta) * rttvar + beta * Math.abs(sampleRtt - rtt));
-                rtt = (long) ((1 - alpha) * rtt + alpha * sampleRtt);
-            }
-
-            rto = rtt + 4 * rttvar;
-            rto = Math.max(rto, 200); // Minimum RTO of 200ms
-            rto = Math.min(rto, 60000); // Maximum RTO of 60 seconds
-        }
-    }
-    
-    // Enhanced receiving method with flow control
-    private void receiveFile(String senderIP, int port, String fileName, long fileSize) {
-        executorService.submit(() -> {
-            Platform.runLater(() -> {
-                FileChooser fileChooser = new FileChooser();
-                fileChooser.setTitle("Save File As");
-                fileChooser.setInitialFileName(fileName);
-                File saveFile = fileChooser.showSaveDialog(primaryStage);
-
-                if (saveFile != null) {
-                    executorService.submit(() -> {
-                        try {
-                            Socket socket = new Socket(senderIP, port);
-                            TCPRenoReceiver receiver = new TCPRenoReceiver(socket, saveFile, fileSize);
-                            receiver.receiveFileWithFlowControl();
-                        } catch (IOException e) {
-                            Platform.runLater(() -> {
-                                String errorMessage = "Error receiving file: " + e.getMessage() + "\n";
-                                chatArea.appendText(errorMessage);
-                            });
-                        }
-                    });
-                } else {
-                    try{
-                        Socket socket = new Socket(senderIP, port);
-                        socket.close();
-                    }catch (IOException e){
-                        e.printStackTrace();
-                    }
-                }
-            });
-        });
-    }
-
-    // TCP Reno Receiver Class
-    class TCPRenoReceiver {
-        private Socket socket;
-        private File saveFile;
-        private long fileSize;
-        private DataInputStream dis;
-        private DataOutputStream dos;
-
-        // Flow control parameters
-        private int receiverWindow = 65535;
-        private int bufferSize = 32768; // 32KB buffer
-        private int expectedSeqNum = 0;
-        private Map<Integer, byte[]> receivedSegments = new TreeMap<>();
-
-        public TCPRenoReceiver(Socket socket, File saveFile, long fileSize) throws IOException {
-            this.socket = socket;
-            this.saveFile = saveFile;
-            this.fileSize = fileSize;
-            this.dis = new DataInputStream(socket.getInputStream());
-            this.dos = new DataOutputStream(socket.getOutputStream());
-
-            socket.setTcpNoDelay(true);
-        }
-
-        public void receiveFileWithFlowControl() throws IOException {
-            try (FileOutputStream fos = new FileOutputStream(saveFile)) {
-                long totalBytesReceived = 0;
-
-                while (totalBytesReceived < fileSize) {
-                    // Read segment
-                    int seqNum = dis.readInt();
-                    int dataLength = dis.readInt();
-                    byte[] data = new byte[dataLength];
-                    dis.readFully(data);
-
-                    if (seqNum == expectedSeqNum) {
-                        // In-order segment
-                        fos.write(data);
-                        totalBytesReceived += dataLength;
-                        expectedSeqNum++;
-
-                        // Check for buffered segments
-                        while (receivedSegments.containsKey(expectedSeqNum)) {
-                            byte[] bufferedData = receivedSegments.remove(expectedSeqNum);
-                            fos.write(bufferedData);
-                            totalBytesReceived += bufferedData.length;
-                            expectedSeqNum++;
-                        }
-
-                        // Send ACK for the last in-order segment received
-                        sendAck(expectedSeqNum - 1);
-                        //System.out.println("Sent ACK: " + (expectedSeqNum - 1) + ", window: " + receiverWindow);
-                    } else if (seqNum > expectedSeqNum) {
-                        // Out-of-order segment
-                        receivedSegments.put(seqNum, data);
-                        //System.out.println("Out-of-order segment: " + seqNum + ", expected: " + expectedSeqNum);
-
-                        // Send duplicate ACK for last in-order segment
-                        sendAck(expectedSeqNum - 1);
-                        //System.out.println("Sent duplicate ACK: " + (expectedSeqNum - 1) + ", window: " + receiverWindow);
-                    } else {
-                        // Duplicate segment (already received)
-                        //System.out.println("Duplicate segment received: " + seqNum);
-                        sendAck(expectedSeqNum - 1);
-                        //System.out.println("Sent ACK: " + (expectedSeqNum - 1) + ", window: " + receiverWindow);
-                    }
-
-                    // Update progress
-                    double progress = (double) totalBytesReceived / fileSize;
-                    Platform.runLater(() -> {
-                        progressBar.setProgress(progress);
-                        progressLabel.setText("Receiving Progress " + String.format("%.1f", progress * 100) + "%");
-                    });
-
-                    // Update receiver window based on available buffer space
-                    updateReceiverWindow();
+                message = "Error receiving file: " + transfer.getError() + "\n";
+                if (ChunkManifest.sidecarFor(row.saveFile).exists()) {
+                    message += "Partial file kept, save to the same location to resume\n";
                 }
-
-                Platform.runLater(() -> {
-                    String successMessage = "File received successfully: " + saveFile.getName() + "\n";
-                    String sender = getCurrentSenderFromMessage();
-                    if (sender != null) {
-                        if (!privateChatHistories.containsKey(sender)) {
-                            privateChatHistories.put(sender, new StringBuilder());
-                        }
-                        privateChatHistories.get(sender).append(successMessage);
-                        if (sender.equals(currentChatUser)) {
-                            chatArea.appendText(successMessage);
-                        }
-                    }
-                });
-
-            } finally {
-                socket.close();
             }
         }
 
-        private void sendAck(int ackNum) throws IOException {
-            dos.writeInt(ackNum);
-            dos.writeInt(receiverWindow);
-            dos.flush();
-        }
-
-        private void updateReceiverWindow() {
-            // Simple flow control: reduce window if buffer is getting full
-            int bufferedSegments = receivedSegments.size();
-            if (bufferedSegments > 50) {
-                receiverWindow = Math.max(receiverWindow / 2, 1024);
-            } else if (bufferedSegments < 10) {
-                receiverWindow = Math.min(receiverWindow * 2, 65535);
+        if (message != null && row.group) {
+            // The peer is "N users", not somebody to open a private chat with
+            publicChatHistory.append(message);
+            if (currentChatUser == null) {
+                chatArea.appendText(message);
+            }
+        } else if (message != null) {
+            if (!privateChatHistories.containsKey(peer)) {
+                privateChatHistories.put(peer, new StringBuilder());
+            }
+            privateChatHistories.get(peer).append(message);
+            if (peer.equals(currentChatUser)) {
+                chatArea.appendText(message);
             }
         }
     }
 
-    private String getCurrentSenderFromMessage() {
-        // This is a helper method to extract sender from the current message context
-        // In a real implementation, you'd pass the sender as a parameter
-        return "Unknown"; // Placeholder
-    }
-
 
     
 
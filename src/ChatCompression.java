@@ -0,0 +1,97 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Optional deflate for the chat connection.
+//
+// Right after the "Enter your username:" prompt a client may send "/compress <mode>".
+// The server answers "/compress <mode>" with the mode it accepts ("off" if it doesn't know
+// the one asked for). From then on both directions are CompressedChatOutputStream frames,
+// each one compressed or not, so either side can stop compressing at any message
+// ("/compress off" / "/compress on") without resynchronising. Each connection keeps its own
+// deflate context, so names and prefixes repeated across messages cost a few bytes each.
+// The dictionary mode also primes that context with typical traffic, which is what helps
+// the first, short messages.
+public class ChatCompression {
+
+    public static final String OFF = "off";
+    public static final String DEFLATE = "deflate";
+    public static final String DICTIONARY = "deflate-dict1";
+
+    public static final String COMMAND = "/compress ";
+
+    // Most bytes one frame carries, before and after inflating. Longer runs between two
+    // flushes go out as several frames, so a reader never holds more than this per frame
+    // however well a peer's data compresses.
+    public static final int MAX_FRAME = 1 << 16;
+
+    // Frequent strings last, deflate reaches nearer matches with shorter codes.
+    // Changing this means a new mode name, both ends must use the same bytes.
+    private static final byte[] DICTIONARY_1 = (
+            "Error sending private message: Invalid private message format. Use: /msg username message"
+            + "User not found Starting private chat with Enter your username: Anonymous "
+            + "File 127.0.0.1 .txt .pdf .png .jpg .zip .csv .log "
+            + "hello hi thanks ok yes no lol :) the you and what is are for this that "
+            + " left the chat /private /users /quit /msg /userlist  joined the chat"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private static final int LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    // Mode a server uses for a client's request
+    public static String accept(String requested) {
+        if (DEFLATE.equals(requested) || DICTIONARY.equals(requested)) {
+            return requested;
+        }
+        return OFF;
+    }
+
+    // Raw deflate, no zlib header per connection
+    public static Deflater newDeflater(String mode) {
+        Deflater deflater = new Deflater(LEVEL, true);
+        if (DICTIONARY.equals(mode)) {
+            deflater.setDictionary(DICTIONARY_1);
+        }
+        return deflater;
+    }
+
+    public static Inflater newInflater(String mode) {
+        Inflater inflater = new Inflater(true);
+        if (DICTIONARY.equals(mode)) {
+            inflater.setDictionary(DICTIONARY_1);
+        }
+        return inflater;
+    }
+
+    // Reads one line without buffering ahead, the bytes after it may already be frames.
+    // Fails rather than collect more than maxLength bytes.
+    public static String readLine(InputStream in, int maxLength) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                if (line.size() >= maxLength) {
+                    throw new BoundedLineReader.LineTooLongException(maxLength);
+                }
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString();
+    }
+
+    // Bytes saved and time spent, for the log when a connection closes
+    public static String describe(CompressedChatOutputStream sent, CompressedChatInputStream received) {
+        return String.format("sent %d -> %d bytes (%s), %.1f us/message; received %d -> %d bytes (%s), %.1f us/message",
+                sent.getRawBytes(), sent.getWireBytes(), percentSaved(sent.getRawBytes(), sent.getWireBytes()),
+                sent.getMessages() == 0 ? 0 : sent.getDeflateNanos() / 1000.0 / sent.getMessages(),
+                received.getRawBytes(), received.getWireBytes(), percentSaved(received.getRawBytes(), received.getWireBytes()),
+                received.getMessages() == 0 ? 0 : received.getInflateNanos() / 1000.0 / received.getMessages());
+    }
+
+    static String percentSaved(long raw, long wire) {
+        return raw == 0 ? "0% saved" : String.format("%.0f%% saved", 100.0 * (raw - wire) / raw);
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+// Replays synthetic server -> client chat traffic (joins, user lists, public and private
+// messages, file offers) through one connection in each compression mode and reports
+// bytes on the wire and CPU time per message, for the first messages of a connection
+// (where the dictionary matters) and for the whole run.
+//
+// Usage: java ChatCompressionBenchmark [--messages=20000] [--users=40] [--seed=42]
+public class ChatCompressionBenchmark {
+
+    private static final int EARLY_MESSAGES = 20;
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        int messages = Integer.parseInt(options.getOrDefault("messages", "20000"));
+        int users = Integer.parseInt(options.getOrDefault("users", "40"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+
+        List<String> traffic = generateTraffic(messages, users, new Random(seed));
+        long plainBytes = 0;
+        long plainEarly = 0;
+        for (int i = 0; i < traffic.size(); i++) {
+            int length = traffic.get(i).length() + 1;
+            plainBytes += length;
+            if (i < EARLY_MESSAGES) {
+                plainEarly += length;
+            }
+        }
+
+        System.out.printf("%-14s %12s %10s %14s %12s %12s%n",
+                "mode", "bytes", "bytes/msg", "saved", "first 20", "cpu us/msg");
+        System.out.printf("%-14s %12d %10.1f %14s %12d %12s%n",
+                "plain", plainBytes, (double) plainBytes / messages, "-", plainEarly, "-");
+        for (String mode : new String[]{ChatCompression.DEFLATE, ChatCompression.DICTIONARY}) {
+            run(mode, traffic, plainBytes, plainEarly);
+        }
+    }
+
+    private static void run(String mode, List<String> traffic, long plainBytes, long plainEarly) throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        CompressedChatOutputStream compressed = new CompressedChatOutputStream(wire, mode);
+        PrintWriter out = new PrintWriter(compressed, true);
+
+        long earlyBytes = 0;
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < traffic.size(); i++) {
+            out.println(traffic.get(i));
+            if (i == EARLY_MESSAGES - 1) {
+                earlyBytes = compressed.getWireBytes();
+            }
+        }
+        long cpuNanos = threads.getCurrentThreadCpuTime() - cpuStart;
+        long wireBytes = compressed.getWireBytes();
+
+        // Decode everything again, both to check it and to time the receiving side
+        long decodeStart = threads.getCurrentThreadCpuTime();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new CompressedChatInputStream(new ByteArrayInputStream(wire.toByteArray()), mode)));
+        for (String expected : traffic) {
+            if (!expected.equals(in.readLine())) {
+                throw new IllegalStateException(mode + " did not round-trip: " + expected);
+            }
+        }
+        long decodeNanos = threads.getCurrentThreadCpuTime() - decodeStart;
+        out.close();
+
+        System.out.printf("%-14s %12d %10.1f %14s %12d %12.2f  (+%.2f to decode)%n",
+                mode, wireBytes, (double) wireBytes / traffic.size(), ChatCompression.percentSaved(plainBytes, wireBytes),
+                earlyBytes, cpuNanos / 1000.0 / traffic.size(), decodeNanos / 1000.0 / traffic.size());
+    }
+
+    private static final String[] WORDS = {"hi", "hello", "thanks", "ok", "yes", "no", "lol", "the", "build",
+            "is", "broken", "again", "meeting", "at", "3pm", "can", "you", "review", "my", "PR", "sure", "lunch",
+            "?", "done", "deploying", "now", "coffee", "anyone", "see", "the", "logs", "from", "yesterday"};
+    private static final String[] FILES = {"report.pdf", "notes.txt", "photo.jpg", "build.log", "data.csv", "slides.zip"};
+
+    static List<String> generateTraffic(int count, int users, Random random) {
+        List<String> names = new ArrayList<>();
+        List<String> online = new ArrayList<>();
+        List<String> traffic = new ArrayList<>(count);
+        for (int i = 0; i < users; i++) {
+            names.add("user" + (char) ('a' + i % 26) + (i / 26 == 0 ? "" : String.valueOf(i / 26)));
+        }
+        while (traffic.size() < count) {
+            int kind = random.nextInt(100);
+            if (online.size() < 2 || kind < 5) {
+                // Someone joins or leaves, the server broadcasts the notice and the new user list
+                String name = names.get(random.nextInt(names.size()));
+                if (online.remove(name)) {
+                    traffic.add(name + " left the chat");
+                } else {
+                    online.add(name);
+                    traffic.add(name + " joined the chat");
+                }
+                traffic.add("/userlist " + String.join(",", online));
+            } else {
+                String from = online.get(random.nextInt(online.size()));
+                StringBuilder text = new StringBuilder();
+                int words = 1 + random.nextInt(8);
+                for (int i = 0; i < words; i++) {
+                    text.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                if (kind < 60) {
+                    traffic.add(from + ": " + text);
+                } else if (kind < 95) {
+                    traffic.add("/private " + from + ": " + text);
+                } else {
+                    traffic.add("/private " + from + ": File me 127.0.0.1 " + (40000 + random.nextInt(20000)) + " "
+                            + FILES[random.nextInt(FILES.length)] + " " + random.nextInt(10_000_000) + " " + (1 << random.nextInt(4)));
+                }
+            }
+        }
+        return traffic.subList(0, count);
+    }
+}
@@ -0,0 +1,96 @@
+import jdk.jfr.*;
+
+// Java Flight Recorder events for the chat server. They are off unless a recording
+// enables them, e.g. with the settings in chat.jfc on top of the JDK defaults:
+//
+//   java -XX:StartFlightRecording:settings=default,settings=chat.jfc,filename=chat.jfr ChatServer
+//
+// Disabled events cost a branch; construct, check isEnabled()/shouldCommit() and only then
+// fill in fields that take work to compute.
+public class ChatEvents {
+
+    @Name("chat.ClientConnect")
+    @Label("Client Connect")
+    @Category({"Chat", "Connections"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static class ClientConnect extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Clients")
+        int clients;
+    }
+
+    @Name("chat.ClientHandshake")
+    @Label("Client Handshake")
+    @Description("From accepting the connection to knowing the client's username")
+    @Category({"Chat", "Connections"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static class ClientHandshake extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Username")
+        String username;
+
+        @Label("Compression")
+        String compression;
+    }
+
+    @Name("chat.ClientDisconnect")
+    @Label("Client Disconnect")
+    @Category({"Chat", "Connections"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static class ClientDisconnect extends Event {
+        @Label("Username")
+        String username;
+
+        @Label("Connected")
+        @Timespan(Timespan.MILLISECONDS)
+        long connectedMillis;
+
+        @Label("Messages Received")
+        long messages;
+    }
+
+    @Name("chat.Broadcast")
+    @Label("Broadcast")
+    @Description("One message written to every connected client")
+    @Category({"Chat", "Messages"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static class Broadcast extends Event {
+        @Label("Kind")
+        String kind;
+
+        @Label("Fan-out")
+        int recipients;
+
+        @Label("Message Length")
+        @DataAmount
+        int length;
+    }
+
+    @Name("chat.PrivateMessage")
+    @Label("Private Message")
+    @Category({"Chat", "Messages"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static class PrivateMessage extends Event {
+        @Label("Sender")
+        String sender;
+
+        @Label("Recipient")
+        String recipient;
+
+        @Label("Delivered")
+        boolean delivered;
+
+        @Label("Message Length")
+        @DataAmount
+        int length;
+    }
+}
@@ -0,0 +1,245 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Chat history kept on disk and searchable with /search. Every public line and every
+// delivered private message is appended to messages.log as [length][time][kind][sender]
+// [recipient][text]; messages.idx holds the log offset of each message, so message n is
+// found with two positioned reads. The message number doubles as the document id in the
+// SearchIndex under index/, which is updated on the same call.
+//
+// Private messages are indexed with PRIVATE_TERM and a USER_TERM for both participants,
+// and searches leave out private messages the searching user is not part of. Anyone
+// logging in under a name sees that name's private history, there are no accounts.
+public class ChatHistory implements Closeable {
+
+    private static final byte PUBLIC = 0;
+    private static final byte PRIVATE = 1;
+    // Terms the tokenizer never produces
+    private static final String PRIVATE_TERM = "\u0001private";
+    private static final String USER_TERM = "\u0001user:";
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final long FLUSH_INTERVAL = 1000;
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+    private final DataOutputStream log;
+    private final DataOutputStream offsets;
+    private final FileChannel logReader;
+    private final FileChannel offsetReader;
+    private final SearchIndex index;
+    private final ScheduledExecutorService flusher;
+    private long logSize;
+    private int messages;
+    private boolean dirty = false;
+
+    public ChatHistory(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File logFile = new File(directory, "messages.log");
+        File offsetFile = new File(directory, "messages.idx");
+        recover(logFile, offsetFile);
+
+        log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true), 1 << 16));
+        offsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(offsetFile, true), 1 << 12));
+        logReader = FileChannel.open(logFile.toPath());
+        offsetReader = FileChannel.open(offsetFile.toPath());
+        index = new SearchIndex(new File(directory, "index"), messages);
+
+        // Messages after the last index segment on disk were only in memory
+        int reindexed = 0;
+        for (int message = index.getMaxDoc() + 1; message < messages; message++) {
+            Record record = read(message);
+            index.add(message, terms(record));
+            reindexed++;
+        }
+        ServerLog.info("Chat history: {n} messages in {}, reindexed {n}", directory, messages, reindexed);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "history-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    // Drops whatever a crash left half written: offsets past the end of the log, and log
+    // bytes no offset points to
+    private void recover(File logFile, File offsetFile) throws IOException {
+        try (RandomAccessFile logRaf = new RandomAccessFile(logFile, "rw");
+             RandomAccessFile offsetRaf = new RandomAccessFile(offsetFile, "rw")) {
+            int count = (int) (offsetRaf.length() / 8);
+            long end = 0;
+            while (count > 0) {
+                offsetRaf.seek((count - 1) * 8L);
+                long offset = offsetRaf.readLong();
+                if (offset + 4 <= logRaf.length()) {
+                    logRaf.seek(offset);
+                    end = offset + 4 + logRaf.readInt();
+                    if (end <= logRaf.length()) {
+                        break;
+                    }
+                }
+                count--;
+                end = 0;
+            }
+            offsetRaf.setLength(count * 8L);
+            logRaf.setLength(end);
+            messages = count;
+            logSize = end;
+        }
+    }
+
+    public void recordPublic(String line) {
+        append(PUBLIC, "", "", line);
+    }
+
+    public void recordPrivate(String sender, String recipient, String text) {
+        append(PRIVATE, sender, recipient, text);
+    }
+
+    private synchronized void append(byte kind, String sender, String recipient, String text) {
+        Record record = new Record(System.currentTimeMillis(), kind, sender, recipient, text);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + text.length());
+            record.write(new DataOutputStream(bytes));
+            offsets.writeLong(logSize);
+            log.writeInt(bytes.size());
+            bytes.writeTo(log);
+            logSize += 4 + bytes.size();
+            dirty = true;
+        } catch (IOException e) {
+            ServerLog.error("Writing chat history failed: {}", e.getMessage());
+            return;
+        }
+        index.add(messages++, terms(record));
+    }
+
+    // Newest first, formatted for the client: private messages of `username` and public
+    // lines containing every word of the query
+    public List<String> search(String username, String query, int limit) throws IOException {
+        List<String> words = new ArrayList<>(tokenize(query));
+        int[] found = index.search(words, PRIVATE_TERM, USER_TERM + username, limit);
+        flush(); // The log may still be buffered
+        List<String> lines = new ArrayList<>();
+        for (int message : found) {
+            Record record = read(message);
+            String when = TIME_FORMAT.format(Instant.ofEpochMilli(record.time));
+            if (record.kind == PRIVATE) {
+                lines.add("[" + when + "] " + record.sender + " -> " + record.recipient + ": " + record.text);
+            } else {
+                lines.add("[" + when + "] " + record.text);
+            }
+        }
+        return lines;
+    }
+
+    public synchronized int getMessageCount() {
+        return messages;
+    }
+
+    private Record read(int message) throws IOException {
+        ByteBuffer offset = ByteBuffer.allocate(8);
+        readFully(offsetReader, offset, message * 8L);
+        long position = offset.getLong(0);
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(logReader, length, position);
+        ByteBuffer data = ByteBuffer.allocate(length.getInt(0));
+        readFully(logReader, data, position + 4);
+        return Record.read(new DataInputStream(new ByteArrayInputStream(data.array())));
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Chat history is shorter than its index");
+            }
+        }
+    }
+
+    private static Set<String> terms(Record record) {
+        Set<String> terms = tokenize(record.text);
+        if (record.kind == PRIVATE) {
+            terms.addAll(tokenize(record.sender));
+            terms.addAll(tokenize(record.recipient));
+            terms.add(PRIVATE_TERM);
+            terms.add(USER_TERM + record.sender);
+            terms.add(USER_TERM + record.recipient);
+        }
+        return terms;
+    }
+
+    // Lower-cased runs of letters and digits, cut to MAX_TERM_LENGTH
+    static Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int c = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.appendCodePoint(Character.toLowerCase(c));
+                }
+            } else if (term.length() > 0) {
+                terms.add(term.toString());
+                term.setLength(0);
+            }
+            i += Character.charCount(c);
+        }
+        return terms;
+    }
+
+    private synchronized void flush() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            // Offsets after the log, so an offset never points past what is written
+            log.flush();
+            offsets.flush();
+            dirty = false;
+        } catch (IOException e) {
+            ServerLog.error("Writing chat history failed: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdown();
+        flush();
+        index.close();
+    }
+
+    private static class Record {
+        final long time;
+        final byte kind;
+        final String sender;
+        final String recipient;
+        final String text;
+
+        Record(long time, byte kind, String sender, String recipient, String text) {
+            this.time = time;
+            this.kind = kind;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.text = text;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(time);
+            out.writeByte(kind);
+            out.writeUTF(sender);
+            out.writeUTF(recipient);
+            out.writeUTF(text);
+        }
+
+        static Record read(DataInputStream in) throws IOException {
+            return new Record(in.readLong(), in.readByte(), in.readUTF(), in.readUTF(), in.readUTF());
+        }
+    }
+}
@@ -1,50 +1,425 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.*;
 
+// Runs alone by default. Given a bus address it joins a cluster of servers that share
+// usernames, user lists, broadcasts and private messages, e.g. three nodes on one machine:
+//
+//   head -c 32 /dev/urandom > cluster.key
+//   java ChatServer --port=12345 --bus=127.0.0.1:13345 --peers=127.0.0.1:13346,127.0.0.1:13347 --cluster-key=cluster.key
+//   java ChatServer --port=12346 --bus=127.0.0.1:13346 --peers=127.0.0.1:13345,127.0.0.1:13347 --cluster-key=cluster.key
+//   java ChatServer --port=12347 --bus=127.0.0.1:13347 --peers=127.0.0.1:13345,127.0.0.1:13346 --cluster-key=cluster.key
+//
+// The nodes only take bus links from each other: every one needs the same key file, at
+// least 16 bytes. The bus listens on the host of --bus only.
+//
+// Admission: --acceptors threads accept connections, each on a listening socket of its own
+// with SO_REUSEPORT where the platform has it (the kernel spreads connections over them),
+// otherwise all on one. --backlog is the kernel's queue of connections not yet accepted.
+// The handshake (TLS, compression, username or resume) runs on --handshake-threads threads
+// with at most --max-pending connections waiting for one, beyond that new connections are
+// turned away; the reaper closes any that has not finished it within --handshake-timeout
+// seconds of connecting. Only then does the connection get a thread of its own.
+//
+// Output to each client goes through an OutboundQueue: private messages, replies and presence
+// ahead of public chat, of which at most --public-queue lines wait per client before the
+// oldest are dropped. Lines only get reordered while they are ours, so the kernel's send
+// buffer of a client socket is held to --send-buffer KB (0 leaves it to the kernel, which
+// grows it to megabytes that a private message would queue behind).
 public class ChatServer {
     private static final int PORT = 12345;
     private static Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
     private static ExecutorService pool = Executors.newCachedThreadPool();
 
+    private static final int ACCEPTORS = 2;
+    private static final int BACKLOG = 1024;
+    private static final long HANDSHAKE_TIMEOUT = 10_000;
+    private static final int MAX_PENDING = 1024;
+    private static ThreadPoolExecutor admission;
+
+    // Join and leave messages and user lists, batched
+    private static final PresenceBatcher presence = new PresenceBatcher();
+
+    // Names in use on this node, reserved before they are claimed cluster-wide
+    private static Set<String> usernames = ConcurrentHashMap.newKeySet();
+    // Null unless running as part of a cluster
+    private static ClusterNode cluster;
+
+    // Sessions by token, including the ones waiting for their client to reconnect
+    static final long SESSION_TIMEOUT = 60_000;
+    static final SecureRandom RANDOM = new SecureRandom();
+    private static Map<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+
+    // A client silent for HEARTBEAT is pinged, one silent for IDLE_TIMEOUT is disconnected
+    private static final long HEARTBEAT = 15_000;
+    private static final long IDLE_TIMEOUT = 45_000;
+    private static ConnectionReaper reaper;
+
+    // --tls: clients must connect with TLS, see Tls for the key material
+    private static boolean tls = false;
+
+    // Searchable with /search, null with --history=off
+    private static ChatHistory history;
+    private static final int SEARCH_RESULTS = 20;
+
+    // Private messages for users who are not logged in, null with --mailboxes=off
+    private static OfflineMailboxes mailboxes;
+
+    // Longest line a client may send, commands included. Longer ones are discarded as they
+    // arrive; clients send longer messages as MessageParts fragments that fit.
+    private static final int MAX_MESSAGE = 8192;
+    private static int maxMessage = MAX_MESSAGE;
+
+    private static final int PUBLIC_QUEUE = 4096;
+    private static int publicQueue = PUBLIC_QUEUE;
+    private static final int SEND_BUFFER = 64;
+    private static int sendBuffer = SEND_BUFFER * 1024;
+
     public static void main(String[] args) {
-        System.out.println("Chat Server starting on port " + PORT);
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        int port = Integer.parseInt(options.getOrDefault("port", String.valueOf(PORT)));
+        long heartbeat = Long.parseLong(options.getOrDefault("heartbeat", String.valueOf(HEARTBEAT / 1000))) * 1000;
+        long idleTimeout = Long.parseLong(options.getOrDefault("idle-timeout", String.valueOf(IDLE_TIMEOUT / 1000))) * 1000;
+        long handshakeTimeout = Long.parseLong(options.getOrDefault("handshake-timeout",
+                String.valueOf(HANDSHAKE_TIMEOUT / 1000))) * 1000;
+        reaper = new ConnectionReaper(heartbeat, idleTimeout, handshakeTimeout, SESSION_TIMEOUT, pool);
+        int acceptors = Integer.parseInt(options.getOrDefault("acceptors", String.valueOf(ACCEPTORS)));
+        int backlog = Integer.parseInt(options.getOrDefault("backlog", String.valueOf(BACKLOG)));
+        int handshakeThreads = Integer.parseInt(options.getOrDefault("handshake-threads",
+                String.valueOf(Math.max(8, 4 * Runtime.getRuntime().availableProcessors()))));
+        int maxPending = Integer.parseInt(options.getOrDefault("max-pending", String.valueOf(MAX_PENDING)));
+        admission = new ThreadPoolExecutor(handshakeThreads, handshakeThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxPending), runnable -> {
+                    Thread thread = new Thread(runnable, "handshake");
+                    thread.setDaemon(true);
+                    return thread;
+                }, (runnable, executor) -> ((ClientHandler) runnable).turnAway());
+        admission.allowCoreThreadTimeOut(true);
+        tls = Arrays.asList(args).contains("--tls");
+        maxMessage = Integer.parseInt(options.getOrDefault("max-message", String.valueOf(MAX_MESSAGE)));
+        publicQueue = Integer.parseInt(options.getOrDefault("public-queue", String.valueOf(PUBLIC_QUEUE)));
+        sendBuffer = Integer.parseInt(options.getOrDefault("send-buffer", String.valueOf(SEND_BUFFER))) * 1024;
+        try {
+            // --log-chat=N logs one chat message in N, 0 (the default) none
+            ServerLog.configure(ServerLog.Level.valueOf(options.getOrDefault("log-level", "info").toUpperCase()),
+                    Integer.parseInt(options.getOrDefault("log-chat", "0")),
+                    options.containsKey("log-file") ? new File(options.get("log-file")) : null);
+        } catch (IOException e) {
+            System.err.println("Cannot open log file: " + e.getMessage());
+            return;
+        }
+        ServerLog.info("Chat Server starting on port {n}{}", tls ? " with TLS" : "", port);
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                ClientHandler clientHandler = new ClientHandler(clientSocket);
-                clients.add(clientHandler);
-                pool.execute(clientHandler);
-                System.out.println("Client connected. Total clients: " + clients.size());
+        List<ServerSocket> serverSockets = new ArrayList<>();
+        try {
+            serverSockets.addAll(bind(port, acceptors, backlog));
+            if (tls) {
+                Tls.serverContext(); // Fail now if the keystore is missing
             }
+            // Per port by default, so several nodes can run in one directory
+            String historyDir = options.getOrDefault("history", "history-" + port);
+            if (!historyDir.equals("off")) {
+                history = new ChatHistory(new File(historyDir));
+                Runtime.getRuntime().addShutdownHook(new Thread(history::close));
+            }
+            String mailboxDir = options.getOrDefault("mailboxes", "mailboxes-" + port);
+            if (!mailboxDir.equals("off")) {
+                mailboxes = new OfflineMailboxes(new File(mailboxDir));
+                Runtime.getRuntime().addShutdownHook(new Thread(mailboxes::close));
+            }
+            if (options.containsKey("bus")) {
+                String peers = options.getOrDefault("peers", "");
+                cluster = new ClusterNode(options.get("bus"),
+                        peers.isEmpty() ? Collections.emptyList() : Arrays.asList(peers.split(",")),
+                        readClusterKey(options.get("cluster-key")));
+                cluster.start();
+            }
+            ServerLog.info("Accepting with {} threads on {n} sockets", String.valueOf(acceptors), serverSockets.size());
+            for (int i = 1; i < acceptors; i++) {
+                ServerSocket serverSocket = serverSockets.get(i % serverSockets.size());
+                Thread acceptor = new Thread(() -> acceptLoop(serverSocket), "acceptor-" + i);
+                acceptor.setDaemon(true);
+                acceptor.start();
+            }
+            acceptLoop(serverSockets.get(0));
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
+            ServerLog.error("Server error: {}", e.getMessage());
+        } finally {
+            for (ServerSocket serverSocket : serverSockets) {
+                try {
+                    serverSocket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static byte[] readClusterKey(String file) throws IOException {
+        if (file == null) {
+            throw new IOException("--bus needs --cluster-key, a file with the key all nodes share");
+        }
+        byte[] key = Files.readAllBytes(new File(file).toPath());
+        if (key.length < 16) {
+            throw new IOException("Cluster key " + file + " is shorter than 16 bytes");
+        }
+        return key;
+    }
+
+    // One listening socket per acceptor if they can share the port, otherwise one for all
+    private static List<ServerSocket> bind(int port, int acceptors, int backlog) throws IOException {
+        boolean reusePort;
+        try (ServerSocket probe = new ServerSocket()) {
+            reusePort = acceptors > 1 && probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+        List<ServerSocket> serverSockets = new ArrayList<>();
+        for (int i = 0; i < (reusePort ? acceptors : 1); i++) {
+            ServerSocket serverSocket = new ServerSocket();
+            if (reusePort) {
+                serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            serverSocket.bind(new InetSocketAddress(port), backlog);
+            serverSockets.add(serverSocket);
+        }
+        return serverSockets;
+    }
+
+    private static void acceptLoop(ServerSocket serverSocket) {
+        while (true) {
+            Socket clientSocket;
+            try {
+                clientSocket = serverSocket.accept();
+                if (sendBuffer > 0) {
+                    clientSocket.setSendBufferSize(sendBuffer);
+                }
+            } catch (IOException e) {
+                ServerLog.error("Accept failed: {}", e.getMessage());
+                return;
+            }
+            ClientHandler clientHandler = new ClientHandler(clientSocket);
+            clients.add(clientHandler);
+            reaper.register(clientHandler);
+            admission.execute(clientHandler);
+            ServerLog.info("Client connected. Total clients: {n}", clients.size());
+
+            ChatEvents.ClientConnect event = new ChatEvents.ClientConnect();
+            if (event.shouldCommit()) {
+                event.remoteAddress = String.valueOf(clientSocket.getRemoteSocketAddress());
+                event.clients = clients.size();
+                event.commit();
+            }
         }
     }
 
+    // An admitted connection, on a thread of its own from here on
+    public static void serve(Runnable connection) {
+        pool.execute(connection);
+    }
+
+    // Rejected for a full admission queue, before any handshake
+    public static void discardRejected(ClientHandler connection) {
+        clients.remove(connection);
+        reaper.unregister(connection);
+        ServerLog.warn("Turned away {}, {} handshakes pending", connection.describe(),
+                String.valueOf(admission.getQueue().size()));
+    }
+
     public static void broadcast(String message, ClientHandler sender) {
+        broadcast(message, sender, null);
+    }
+
+    // Trace of the client message this is, null for the server's own
+    public static void broadcast(String message, ClientHandler sender, MessageTrace trace) {
+        ChatEvents.Broadcast event = new ChatEvents.Broadcast();
+        event.begin();
+        int recipients = 0;
         for (ClientHandler client : clients) {
             if (client != sender) {
-                client.sendMessage(message);
+                client.sendPublic(message, trace);
+                recipients++;
             }
         }
+        if (cluster != null) {
+            cluster.broadcast(message, trace);
+        }
+        if (history != null) {
+            history.recordPublic(message);
+        }
+        commitBroadcast(event, "message", recipients, message);
+    }
+
+    // A broadcast from another node, only for the clients on this one
+    public static void deliverBroadcast(String message, MessageTrace trace) {
+        ChatEvents.Broadcast event = new ChatEvents.Broadcast();
+        event.begin();
+        int recipients = 0;
+        for (ClientHandler client : clients) {
+            client.sendPublic(message, trace);
+            recipients++;
+        }
+        // Every node keeps the whole public history
+        if (history != null) {
+            history.recordPublic(message);
+        }
+        commitBroadcast(event, "remote", recipients, message);
     }
 
-    public static void sendPrivateMessage(String senderUsername, String recipientUsername, String message) {
+    private static void commitBroadcast(ChatEvents.Broadcast event, String kind, int recipients, String message) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.kind = kind;
+            event.recipients = recipients;
+            event.length = message.length();
+            event.commit();
+        }
+    }
+
+    public static void sendPrivateMessage(String senderUsername, String recipientUsername, String message,
+                                          MessageTrace trace) {
+        ChatEvents.PrivateMessage event = new ChatEvents.PrivateMessage();
+        event.begin();
+        boolean delivered = deliverPrivate(senderUsername, recipientUsername, message, trace);
+        if (!delivered && cluster != null) {
+            // Forwarded to the node owning the name, which knows where the user is
+            delivered = cluster.routePrivate(senderUsername, recipientUsername, message, trace);
+            // The recipient's node records it too, so both users find it on their node
+            if (delivered && history != null) {
+                history.recordPrivate(senderUsername, recipientUsername, message);
+            }
+        }
+        if (!delivered) {
+            notifyUndelivered(senderUsername, recipientUsername, storeOffline(senderUsername, recipientUsername, message));
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.sender = senderUsername;
+            event.recipient = recipientUsername;
+            event.delivered = delivered;
+            event.length = message.length();
+            event.commit();
+        }
+    }
+
+    // Only for a recipient connected to this node
+    public static boolean deliverPrivate(String senderUsername, String recipientUsername, String message,
+                                         MessageTrace trace) {
         ClientHandler recipient = findClientByUsername(recipientUsername);
         if (recipient != null) {
-            recipient.sendMessage("/private " + senderUsername + ": " + message);
-            System.out.println("Private message from " + senderUsername + " to " + recipientUsername + ": " + message);
+            recipient.sendMessage("/private " + senderUsername + ": " + message, trace);
+            ServerLog.chat("Private message from {} to {}: {}", senderUsername, recipientUsername, message);
+            if (history != null) {
+                history.recordPrivate(senderUsername, recipientUsername, message);
+            }
+        }
+        return recipient != null;
+    }
+
+    // For a recipient nobody in the cluster knows. File offers are not kept, the sender
+    // stops listening long before the recipient could answer.
+    public static boolean storeOffline(String senderUsername, String recipientUsername, String message) {
+        if (mailboxes == null || message.startsWith("File ")) {
+            return false;
+        }
+        return mailboxes.store(senderUsername, recipientUsername, message);
+    }
+
+    private static void notifyUndelivered(String senderUsername, String recipientUsername, boolean stored) {
+        ClientHandler sender = findClientByUsername(senderUsername);
+        if (sender == null) {
+            return;
+        }
+        if (stored) {
+            sender.sendMessage(recipientUsername + " is offline, the message will be delivered when they log in");
+        } else {
+            sender.sendMessage(recipientUsername + " is offline, the message was not delivered");
+        }
+    }
+
+    // Right after login, everything that was queued for the user in one write
+    public static void deliverOffline(ClientHandler client) {
+        if (mailboxes == null || !mailboxes.hasMail(client.getUsername())) {
+            return;
+        }
+        deliverOfflineBatch(client, mailboxes.take(client.getUsername()));
+    }
+
+    // Messages that were queued on the node owning the name, which sends them when the
+    // user logs in anywhere. Stored again if the user has already left.
+    public static void deliverOffline(String recipientUsername, List<String[]> messages) {
+        ClientHandler client = findClientByUsername(recipientUsername);
+        if (client != null) {
+            deliverOfflineBatch(client, messages);
+            return;
+        }
+        for (String[] message : messages) {
+            if (cluster == null || !cluster.routePrivate(message[0], recipientUsername, message[1], null)) {
+                storeOffline(message[0], recipientUsername, message[1]);
+            }
+        }
+    }
+
+    private static void deliverOfflineBatch(ClientHandler client, List<String[]> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        List<String> lines = new ArrayList<>(messages.size() + 1);
+        lines.add(messages.size() + " private message(s) arrived while you were offline");
+        for (String[] message : messages) {
+            lines.add("/private " + message[0] + ": " + message[1]);
+            if (history != null) {
+                history.recordPrivate(message[0], client.getUsername(), message[1]);
+            }
         }
+        client.sendMessages(lines);
+        ServerLog.info("Delivered {n} offline messages to {}", client.getUsername(), messages.size());
+    }
+
+    public static boolean hasOfflineMail(String username) {
+        return mailboxes != null && mailboxes.hasMail(username);
+    }
+
+    public static List<String[]> takeOfflineMail(String username) {
+        return mailboxes != null ? mailboxes.take(username) : Collections.emptyList();
     }
 
     public static void sendUserList(ClientHandler requester) {
+        requester.sendMessage(buildUserList());
+    }
+
+    // "/search-results <count> <query>" followed by one "/search-result <line>" per match,
+    // newest first
+    public static void search(ClientHandler requester, String query) {
+        if (history == null) {
+            requester.sendMessage("Search is not available, the server keeps no history");
+            return;
+        }
+        try {
+            List<String> results = history.search(requester.getUsername(), query, SEARCH_RESULTS);
+            requester.sendMessage("/search-results " + results.size() + " " + query);
+            for (String result : results) {
+                requester.sendMessage("/search-result " + result);
+            }
+        } catch (IOException e) {
+            requester.sendMessage("Search failed: " + e.getMessage());
+        }
+    }
+
+    // Users on this node followed by the ones on the rest of the cluster
+    private static String buildUserList() {
         StringBuilder userList = new StringBuilder("/userlist ");
-        for (ClientHandler client : clients) {
-            if (client.getUsername() != null) {
-                userList.append(client.getUsername()).append(",");
+        for (String username : getLocalUsernames()) {
+            userList.append(username).append(",");
+        }
+        if (cluster != null) {
+            for (String username : cluster.getRemoteUsernames()) {
+                userList.append(username).append(",");
             }
         }
 
@@ -52,158 +427,163 @@ public class ChatServer {
         if (userList.length() > 10) {
             userList.setLength(userList.length() - 1);
         }
-
-        requester.sendMessage(userList.toString());
+        return userList.toString();
     }
 
+    // The user list changed: everyone gets the new one within PresenceBatcher.WINDOW_MILLIS,
+    // once for any number of changes
     public static void broadcastUserList() {
-        StringBuilder userList = new StringBuilder("/userlist ");
+        presence.userListChanged();
+    }
+
+    public static void announceJoin(ClientHandler client) {
+        presence.joined(client);
+    }
+
+    public static void announceLeave(String username) {
+        presence.left(username);
+    }
+
+    // A presence announcement from PresenceBatcher, to this node's clients but the ones in
+    // except and to the rest of the cluster
+    static void announce(String message, Set<ClientHandler> except) {
+        ChatEvents.Broadcast event = new ChatEvents.Broadcast();
+        event.begin();
+        int recipients = 0;
         for (ClientHandler client : clients) {
-            if (client.getUsername() != null) {
-                userList.append(client.getUsername()).append(",");
+            if (!except.contains(client)) {
+                client.sendMessage(message);
+                recipients++;
             }
         }
+        // Not user-authored, so kept out of the history
+        if (cluster != null) {
+            cluster.announce(message);
+        }
+        commitBroadcast(event, "message", recipients, message);
+    }
 
-        // Remove trailing comma if exists
-        if (userList.length() > 10) {
-            userList.setLength(userList.length() - 1);
+    // An announcement from another node
+    public static void deliverAnnouncement(String message) {
+        ChatEvents.Broadcast event = new ChatEvents.Broadcast();
+        event.begin();
+        int recipients = 0;
+        for (ClientHandler client : clients) {
+            client.sendMessage(message);
+            recipients++;
         }
+        commitBroadcast(event, "remote", recipients, message);
+    }
 
-        String userListMessage = userList.toString();
+    static void sendUserListToAll() {
+        ChatEvents.Broadcast event = new ChatEvents.Broadcast();
+        event.begin();
+        String userListMessage = buildUserList();
+        int recipients = 0;
         for (ClientHandler client : clients) {
             client.sendMessage(userListMessage);
+            recipients++;
         }
+        commitBroadcast(event, "userlist", recipients, userListMessage);
     }
 
-    public static ClientHandler findClientByUsername(String username) {
+    public static List<String> getLocalUsernames() {
+        List<String> names = new ArrayList<>();
         for (ClientHandler client : clients) {
-            if (username.equals(client.getUsername())) {
-                return client;
+            if (client.getUsername() != null) {
+                names.add(client.getUsername());
             }
         }
-        return null;
+        return names;
     }
 
-    public static void removeClient(ClientHandler client) {
-        clients.remove(client);
-        System.out.println("Client disconnected. Total clients: " + clients.size());
-
-        // Broadcast updated user list to all remaining clients
-        broadcastUserList();
-    }
-}
-
-class ClientHandler implements Runnable {
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
-    private String username;
-
-    public ClientHandler(Socket socket) {
-        this.socket = socket;
+    public static boolean isOnline(String username) {
+        return findClientByUsername(username) != null || (cluster != null && cluster.isRemoteUser(username));
     }
 
-    @Override
-    public void run() {
-        try {
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            // Get username
-            out.println("Enter your username:");
-            username = in.readLine();
-
-            if (username == null || username.trim().isEmpty()) {
-                username = "Anonymous";
-            }
-
-            // Check if username is already taken
-            if (ChatServer.findClientByUsername(username) != null) {
-                username = username + "_" + System.currentTimeMillis() % 1000;
-            }
-
-            System.out.println(username + " joined the chat");
-            ChatServer.broadcast(username + " joined the chat", this);
-
-            // Send user list to new client and broadcast updated user list
-            ChatServer.sendUserList(this);
-            ChatServer.broadcastUserList();
-
-            String message;
-            while ((message = in.readLine()) != null) {
-                if (message.equalsIgnoreCase("/quit")) {
-                    break;
-                } else if (message.equalsIgnoreCase("/users")) {
-                    // Send user list to requesting client
-                    ChatServer.sendUserList(this);
-                } else if (message.startsWith("/msg ")) {
-                    // Handle private message: /msg username message
-                    handlePrivateMessage(message);
-                } else if (message.startsWith("/private ")) {
-                    // Handle private chat request: /private username
-                    String targetUser = message.substring(9).trim();
-                    if (ChatServer.findClientByUsername(targetUser) != null) {
-                        sendMessage("Starting private chat with " + targetUser);
-                    } else {
-                        sendMessage("User " + targetUser + " not found");
+    // The requested name if nobody in the cluster has it, otherwise the name with a suffix.
+    // Fails if the cluster cannot say whether a name is free.
+    public static String claimUsername(String requested) throws IOException {
+        String username = requested;
+        while (true) {
+            if (usernames.add(username)) {
+                boolean claimed = false;
+                try {
+                    claimed = cluster == null || cluster.claim(username);
+                } finally {
+                    if (!claimed) {
+                        usernames.remove(username);
                     }
-                } else {
-                    // Public message
-                    System.out.println(username + ": " + message);
-                    ChatServer.broadcast(username + ": " + message, this);
+                }
+                if (claimed) {
+                    return username;
                 }
             }
+            username = requested + "_" + ThreadLocalRandom.current().nextInt(1000);
+        }
+    }
 
-        } catch (IOException e) {
-            System.err.println("Error handling client: " + e.getMessage());
-        } finally {
-            cleanup();
+    // Once the client has its name, before the user lists go out
+    public static void userJoined(ClientHandler client) {
+        if (cluster != null) {
+            cluster.userJoined(client.getUsername());
         }
     }
 
-    private void handlePrivateMessage(String message) {
-        try {
-            // Parse: /msg username message content
-            String[] parts = message.split(" ", 3);
-            if (parts.length >= 3) {
-                String recipientUsername = parts[1];
-                String messageContent = parts[2];
+    public static void registerSession(String token, ClientHandler client) {
+        sessions.put(token, client);
+    }
 
-                // Send private message
-                ChatServer.sendPrivateMessage(username, recipientUsername, messageContent);
-            } else {
-                sendMessage("Invalid private message format. Use: /msg username message");
-            }
-        } catch (Exception e) {
-            sendMessage("Error sending private message: " + e.getMessage());
-        }
+    public static ClientHandler findSession(String token) {
+        return sessions.get(token);
     }
 
-    public void sendMessage(String message) {
-        if (out != null) {
-            out.println(message);
-        }
+    // A connection that resumed an existing session, it never joined as a user of its own
+    public static void discardConnection(ClientHandler connection) {
+        clients.remove(connection);
+        reaper.unregister(connection);
     }
 
-    public String getUsername() {
-        return username;
+    public static boolean isTls() {
+        return tls;
     }
 
-    private void cleanup() {
-        try {
-            if (username != null) {
-                System.out.println(username + " left the chat");
-                ChatServer.broadcast(username + " left the chat", this);
-            }
+    public static int getMaxMessage() {
+        return maxMessage;
+    }
 
-            if (in != null) in.close();
-            if (out != null) out.close();
-            if (socket != null) socket.close();
+    public static int getPublicQueue() {
+        return publicQueue;
+    }
 
-        } catch (IOException e) {
-            System.err.println("Error closing connection: " + e.getMessage());
+    public static void connectionActive(ClientHandler client) {
+        reaper.touch(client);
+    }
+
+    public static ClientHandler findClientByUsername(String username) {
+        for (ClientHandler client : clients) {
+            if (username.equals(client.getUsername())) {
+                return client;
+            }
+        }
+        return null;
+    }
+
+    public static void removeClient(ClientHandler client) {
+        clients.remove(client);
+        reaper.unregister(client);
+        if (client.getSessionToken() != null) {
+            sessions.remove(client.getSessionToken());
         }
+        if (client.getUsername() != null) {
+            usernames.remove(client.getUsername());
+            if (cluster != null) {
+                cluster.userLeft(client.getUsername());
+            }
+        }
+        ServerLog.info("Client disconnected. Total clients: {n}", clients.size());
 
-        ChatServer.removeClient(this);
+        // Broadcast updated user list to all remaining clients
+        broadcastUserList();
     }
-}
\ No newline at end of file
+}
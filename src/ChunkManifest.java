@@ -0,0 +1,222 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+// Fixed-size chunks of a file with a CRC32C per chunk. CRC32C is a JVM intrinsic backed
+// by the SSE4.2 / ARMv8 crc32 instructions, so checking a multi-GB file is disk bound.
+//
+// The sender computes the manifest and sends it at the start of a transfer. The receiver
+// keeps a copy next to the partial file (<file>.manifest). When the same file is offered
+// again, the receiver checks the chunks already on disk and asks only for the missing or
+// corrupt ones.
+public class ChunkManifest {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    private static final int MAGIC = 0x434D4631; // "CMF1"
+
+    private final long fileSize;
+    private final int chunkSize;
+    private final int[] checksums;
+
+    public ChunkManifest(long fileSize, int chunkSize, int[] checksums) {
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.checksums = checksums;
+    }
+
+    public static ChunkManifest compute(File file, int chunkSize) throws IOException {
+        long fileSize = file.length();
+        int count = chunkCount(fileSize, chunkSize);
+        int[] checksums = new int[count];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(chunkSize);
+            for (int i = 0; i < count; i++) {
+                checksums[i] = checksum(channel, buffer, (long) i * chunkSize, chunkLength(fileSize, chunkSize, i));
+            }
+        }
+        return new ChunkManifest(fileSize, chunkSize, checksums);
+    }
+
+    // Same as above from a mapping that the transfers then read from, so the file is read
+    // from disk once for both
+    public static ChunkManifest compute(MappedFile file, int chunkSize) {
+        long fileSize = file.size();
+        int count = chunkCount(fileSize, chunkSize);
+        int[] checksums = new int[count];
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < count; i++) {
+            crc.reset();
+            file.update(crc, (long) i * chunkSize, chunkLength(fileSize, chunkSize, i));
+            checksums[i] = (int) crc.getValue();
+        }
+        return new ChunkManifest(fileSize, chunkSize, checksums);
+    }
+
+    // Chunks of the file on disk that do not match this manifest (missing data reads back as zeros)
+    public BitSet findMismatches(FileChannel channel) throws IOException {
+        BitSet mismatches = new BitSet(checksums.length);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunkSize);
+        for (int i = 0; i < checksums.length; i++) {
+            if (!verifyChunk(channel, buffer, i)) {
+                mismatches.set(i);
+            }
+        }
+        return mismatches;
+    }
+
+    // Re-checks only the given chunks, returns the ones that still fail
+    public BitSet findMismatches(FileChannel channel, BitSet chunks) throws IOException {
+        BitSet mismatches = new BitSet(checksums.length);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunkSize);
+        for (int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i + 1)) {
+            if (!verifyChunk(channel, buffer, i)) {
+                mismatches.set(i);
+            }
+        }
+        return mismatches;
+    }
+
+    private boolean verifyChunk(FileChannel channel, ByteBuffer buffer, int index) throws IOException {
+        long offset = (long) index * chunkSize;
+        long length = chunkLength(fileSize, chunkSize, index);
+        if (offset + length > channel.size()) {
+            return false;
+        }
+        return checksum(channel, buffer, offset, length) == checksums[index];
+    }
+
+    private static int checksum(FileChannel channel, ByteBuffer buffer, long offset, long length) throws IOException {
+        CRC32C crc = new CRC32C();
+        buffer.clear().limit((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        crc.update(buffer);
+        return (int) crc.getValue();
+    }
+
+    // Splits the requested chunks into `streams` groups of consecutive chunks of similar size
+    public ByteRanges[] split(BitSet chunks, int streams) {
+        ByteRanges[] result = new ByteRanges[streams];
+        for (int i = 0; i < streams; i++) {
+            result[i] = new ByteRanges();
+        }
+        int total = chunks.cardinality();
+        int seen = 0;
+        for (int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i + 1)) {
+            int stream = (int) ((long) seen * streams / Math.max(total, 1));
+            result[stream].add((long) i * chunkSize, chunkLength(fileSize, chunkSize, i));
+            seen++;
+        }
+        return result;
+    }
+
+    public BitSet allChunks() {
+        BitSet all = new BitSet(checksums.length);
+        all.set(0, checksums.length);
+        return all;
+    }
+
+    public long bytesIn(BitSet chunks) {
+        long bytes = 0;
+        for (int i = chunks.nextSetBit(0); i >= 0; i = chunks.nextSetBit(i + 1)) {
+            bytes += chunkLength(fileSize, chunkSize, i);
+        }
+        return bytes;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getChunkCount() {
+        return checksums.length;
+    }
+
+    public byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(20 + checksums.length * 4);
+            DataOutputStream dos = new DataOutputStream(bytes);
+            dos.writeInt(MAGIC);
+            dos.writeLong(fileSize);
+            dos.writeInt(chunkSize);
+            dos.writeInt(checksums.length);
+            for (int checksum : checksums) {
+                dos.writeInt(checksum);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static ChunkManifest fromBytes(byte[] data) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("Not a chunk manifest");
+        }
+        long fileSize = dis.readLong();
+        int chunkSize = dis.readInt();
+        int count = dis.readInt();
+        // From the peer: checked before anything is sized by it, the checksums have to be there
+        if (fileSize < 0 || fileSize > Long.MAX_VALUE - Integer.MAX_VALUE || chunkSize <= 0 || count < 0
+                || (long) count * 4 > dis.available() || count != (fileSize + chunkSize - 1) / chunkSize) {
+            throw new IOException("Corrupt chunk manifest");
+        }
+        int[] checksums = new int[count];
+        for (int i = 0; i < count; i++) {
+            checksums[i] = dis.readInt();
+        }
+        return new ChunkManifest(fileSize, chunkSize, checksums);
+    }
+
+    public static File sidecarFor(File file) {
+        return new File(file.getPath() + ".manifest");
+    }
+
+    public void save(File file) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(toBytes());
+        }
+    }
+
+    // Returns null when there is no readable manifest
+    public static ChunkManifest load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileInputStream fis = new FileInputStream(file)) {
+            return fromBytes(fis.readAllBytes());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ChunkManifest)) {
+            return false;
+        }
+        ChunkManifest other = (ChunkManifest) o;
+        return fileSize == other.fileSize && chunkSize == other.chunkSize && Arrays.equals(checksums, other.checksums);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(fileSize, chunkSize, Arrays.hashCode(checksums));
+    }
+
+    private static int chunkCount(long fileSize, int chunkSize) {
+        return (int) ((fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    private static long chunkLength(long fileSize, int chunkSize, int index) {
+        return Math.min(chunkSize, fileSize - (long) index * chunkSize);
+    }
+}
@@ -0,0 +1,536 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One client of this server: the handshake on its connection, then its session, which
+// outlives the connection for a while so the client can resume it (see adopt).
+class ClientHandler implements Runnable {
+    static final String RESUME_COMMAND = "/resume ";
+    private static final int REPLAY_CAPACITY = 512;
+    // Priority lines waiting for a client before it counts as not reading
+    private static final int PRIORITY_LIMIT = 16384;
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private final int id = nextId.incrementAndGet();
+    private volatile Socket socket;
+    private PrintWriter out;
+    // Written by a thread of its own, see writeLoop
+    private final OutboundQueue outbound = new OutboundQueue(ChatServer.getPublicQueue(), PRIORITY_LIMIT);
+    private BoundedLineReader in;
+    private String username;
+
+    // Everything sent after login is numbered and kept here, so the client can resume the
+    // session over a new connection (see adopt). Out is null while detached.
+    private String sessionToken;
+    private ReplayBuffer replay;
+    private volatile boolean ended = false;
+
+    // For the reaper: last line received, and when the connection was lost (0 while attached)
+    private volatile long lastActivity = System.nanoTime();
+    private volatile long detachedAt = 0;
+    // Set once the handshake is done, until then the reaper holds it to the handshake timeout
+    private final long acceptedAt = System.nanoTime();
+    private volatile boolean admitted = false;
+
+    // Set when the client negotiated chat compression
+    private CompressedChatOutputStream compressedOut;
+    private CompressedChatInputStream compressedIn;
+
+    // For the flight recorder events
+    private final long connectedAt = System.currentTimeMillis();
+    private String compression = ChatCompression.OFF;
+    private long messagesReceived = 0;
+
+    public ClientHandler(Socket socket) {
+        this.socket = socket;
+    }
+
+    // The handshake, on one of the admission threads. Once the user is in, or the session
+    // resumed, the connection is served on a thread of its own.
+    @Override
+    public void run() {
+        ChatEvents.ClientHandshake handshake = new ChatEvents.ClientHandshake();
+        handshake.begin();
+        Socket connection = socket;
+        try {
+            if (ChatServer.isTls()) {
+                // On this thread rather than the accept loop, a stalled handshake is left to the reaper
+                TlsSocket tlsSocket = Tls.server(socket);
+                socket = tlsSocket;
+                connection = tlsSocket;
+                tlsSocket.startHandshake();
+            }
+            InputStream rawIn = socket.getInputStream();
+            OutputStream rawOut = socket.getOutputStream();
+            synchronized (this) {
+                out = new PrintWriter(rawOut, true);
+            }
+            ChatServer.serve(this::writeLoop);
+
+            // Get username, optionally after negotiating compression.
+            // Read unbuffered, whatever follows "/compress" is already compressed.
+            sendMessage("Enter your username:");
+            String requested = ChatCompression.readLine(rawIn, ChatServer.getMaxMessage());
+            if (requested != null && requested.startsWith(ChatCompression.COMMAND)) {
+                startCompression(ChatCompression.accept(requested.substring(ChatCompression.COMMAND.length()).trim()),
+                        rawIn, rawOut);
+                requested = in.readLine();
+            } else {
+                in = newReader(rawIn);
+            }
+
+            // Reconnecting client, the session it had continues on this connection
+            if (requested != null && requested.startsWith(RESUME_COMMAND)) {
+                ClientHandler session = resume(requested.substring(RESUME_COMMAND.length()).trim());
+                if (session != null) {
+                    Socket resumed = connection;
+                    BoundedLineReader resumedIn = in;
+                    ChatServer.serve(() -> session.serve(resumed, resumedIn));
+                    return;
+                }
+                sendMessage("/resume-failed");
+                requested = in.readLine();
+            }
+
+            if (requested == null || requested.trim().isEmpty()) {
+                requested = "Anonymous";
+            }
+
+            // Suffixed if already taken, here or on another node
+            username = ChatServer.claimUsername(requested);
+            startSession();
+            ChatServer.userJoined(this);
+
+            handshake.end();
+            if (handshake.shouldCommit()) {
+                handshake.remoteAddress = String.valueOf(socket.getRemoteSocketAddress());
+                handshake.username = username;
+                handshake.compression = compression;
+                handshake.commit();
+            }
+
+            ServerLog.info("{} joined the chat", username);
+            admitted = true;
+            // The others hear of it, and the new client gets the user list, with the next batch
+            ChatServer.announceJoin(this);
+            ChatServer.deliverOffline(this);
+
+            Socket admittedConnection = connection;
+            BoundedLineReader admittedIn = in;
+            ChatServer.serve(() -> serve(admittedConnection, admittedIn));
+        } catch (IOException e) {
+            ServerLog.error("Error handling client: {}", e.getMessage());
+            connectionClosed(connection, false);
+        }
+    }
+
+    // Reads the connection until it ends. Each reading thread keeps to the reader it was
+    // started with: the field is swapped by adopt while the thread of the connection it
+    // replaces may still be in readMessages, and that one must only ever see its own.
+    private void serve(Socket connection, BoundedLineReader reader) {
+        boolean quit = false;
+        try {
+            quit = readMessages(reader);
+        } catch (IOException e) {
+            ServerLog.error("Error handling client: {}", e.getMessage());
+        } finally {
+            connectionClosed(connection, quit);
+        }
+    }
+
+    // No room in the admission queue: told so, if it can read us, and closed
+    void turnAway() {
+        ChatServer.discardRejected(this);
+        try {
+            if (!ChatServer.isTls()) {
+                socket.getOutputStream().write("Server busy, try again later\n".getBytes());
+            }
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // True when the client quit, false when the connection ended
+    private boolean readMessages(BoundedLineReader reader) throws IOException {
+        while (true) {
+            String message;
+            try {
+                message = reader.readLine();
+            } catch (BoundedLineReader.LineTooLongException e) {
+                // Rejected before it is all in, the rest of it is skipped on the next read
+                lastActivity = System.nanoTime();
+                ServerLog.warn("{} sent a line over {} characters, discarding it", describe(), ChatServer.getMaxMessage());
+                sendMessage("Message not sent, it is longer than " + ChatServer.getMaxMessage() + " characters");
+                continue;
+            }
+            if (message == null) {
+                return false;
+            }
+            lastActivity = System.nanoTime();
+            messagesReceived++;
+            // "/trace <id> <sent> " in front of a chat message, see MessageTrace
+            MessageTrace trace = null;
+            if (message.startsWith(MessageTrace.PREFIX)) {
+                String[] parts = message.split(" ", 4);
+                if (parts.length == 4) {
+                    trace = MessageTrace.received(parts[1], parts[2]);
+                    message = parts[3];
+                }
+            }
+            if (message.equalsIgnoreCase("/quit")) {
+                return true;
+            } else if (message.equals("/ping")) {
+                sendControl("/pong");
+            } else if (message.equals("/pong")) {
+                // Answer to our heartbeat, the timestamp is all that matters
+            } else if (message.startsWith(MessageTrace.CLOCK)) {
+                // The client measuring how far its clock is from ours
+                sendControl(message + " " + MessageTrace.now());
+            } else if (message.equalsIgnoreCase("/users")) {
+                // Send user list to requesting client
+                ChatServer.sendUserList(this);
+            } else if (message.startsWith(ChatCompression.COMMAND)) {
+                // Client switching compression on or off, e.g. to save CPU
+                handleCompressionCommand(message.substring(ChatCompression.COMMAND.length()).trim());
+            } else if (message.startsWith("/search ")) {
+                // Chat history: /search words
+                ChatServer.search(this, message.substring(8).trim());
+            } else if (message.startsWith("/msg ")) {
+                // Handle private message: /msg username message
+                handlePrivateMessage(message, trace);
+            } else if (message.startsWith("/private ")) {
+                // Handle private chat request: /private username
+                String targetUser = message.substring(9).trim();
+                if (ChatServer.isOnline(targetUser)) {
+                    sendMessage("Starting private chat with " + targetUser);
+                } else {
+                    sendMessage("User " + targetUser + " not found");
+                }
+            } else {
+                // Public message
+                ServerLog.chat("{}: {}", username, message);
+                ChatServer.broadcast(username + ": " + message, this, trace);
+            }
+        }
+    }
+
+    private void startSession() {
+        byte[] token = new byte[16];
+        ChatServer.RANDOM.nextBytes(token);
+        synchronized (this) {
+            sessionToken = Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+            replay = new ReplayBuffer(REPLAY_CAPACITY);
+            // Not numbered themselves, the first numbered message follows
+            out.println("/max-message " + ChatServer.getMaxMessage());
+            out.println("/session " + sessionToken + " 0");
+        }
+        ChatServer.registerSession(sessionToken, this);
+    }
+
+    // "<token> <last message id the client got>". Hands this connection to the handler
+    // of that session, which serves it from then on; null if there is no such session.
+    private ClientHandler resume(String arguments) {
+        String[] parts = arguments.split(" ");
+        ClientHandler session = ChatServer.findSession(parts[0]);
+        if (session == null || parts.length < 2) {
+            return null;
+        }
+        long lastId;
+        try {
+            lastId = Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        // Unblocks the session's writer if it is stuck on the old connection, adopt needs its lock
+        session.dropConnection();
+        // Nothing may reach the client through this handler any more
+        synchronized (this) {
+            if (!session.adopt(socket, in, out, compressedOut, compressedIn, compression, lastId)) {
+                return null;
+            }
+            ChatServer.discardConnection(this);
+            out = null;
+        }
+        outbound.close();
+        return session;
+    }
+
+    // Switches the session to a new connection and replays what the client missed, all
+    // under the lock so no message sent meanwhile is lost or sent twice. False if the
+    // session has already ended.
+    private synchronized boolean adopt(Socket connection, BoundedLineReader newIn, PrintWriter newOut,
+                                    CompressedChatOutputStream newCompressedOut, CompressedChatInputStream newCompressedIn,
+                                    String newCompression, long lastId) {
+        if (ended) {
+            return false;
+        }
+        Socket previous = socket;
+        socket = connection;
+        in = newIn;
+        out = newOut;
+        compressedOut = newCompressedOut;
+        compressedIn = newCompressedIn;
+        compression = newCompression;
+        detachedAt = 0;
+        lastActivity = System.nanoTime();
+        ChatServer.connectionActive(this);
+        try {
+            // Half-open old connection, its thread fails on its own reader and leaves the session alone
+            previous.close();
+        } catch (IOException ignored) {
+        }
+
+        long first = Math.max(lastId + 1, replay.getOldestId());
+        long last = replay.getLastId();
+        first = Math.min(first, last + 1);
+        out.println("/resumed " + (first - 1));
+        for (long id = first; id <= last; id++) {
+            out.println(replay.get(id));
+        }
+        ServerLog.info("{} resumed, replayed {n} messages", username, last - first + 1);
+        if (first - 1 > lastId) {
+            sendMessage((first - 1 - lastId) + " messages were lost while you were disconnected");
+        }
+        return true;
+    }
+
+    // A connection of this session ended. Unless the client quit, the session waits a
+    // while for the client to come back before the user leaves.
+    private void connectionClosed(Socket connection, boolean quit) {
+        synchronized (this) {
+            if (connection != socket) {
+                return; // Already resumed over a newer connection
+            }
+            if (!quit && sessionToken != null) {
+                out = null;
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+                ServerLog.info("{} disconnected, keeping the session for {n}s", username, ChatServer.SESSION_TIMEOUT / 1000);
+                detachedAt = System.nanoTime();
+                return;
+            }
+        }
+        cleanup();
+    }
+
+    // By the reaper, SESSION_TIMEOUT after the connection was lost at detached
+    void expire(long detached) {
+        synchronized (this) {
+            if (detachedAt != detached || ended) {
+                return; // Resumed meanwhile
+            }
+        }
+        ServerLog.info("{} session expired", username);
+        cleanup();
+    }
+
+    // Heartbeat, not numbered or kept for replay
+    void sendPing() {
+        sendControl("/ping");
+    }
+
+    // Ahead of public chat, neither numbered nor kept for replay
+    private void sendControl(String line) {
+        queue(line, null, false);
+    }
+
+    // Writes what is queued for this client, priority lane first, until the handler ends.
+    // Senders only queue, this is the one thread that waits for a slow client. It writes
+    // under the handler's lock like everything else that writes to out, so messages are
+    // numbered for the replay in the order they are written, which is the order the client
+    // counts them in. While detached they only go to the replay. A traced message goes out
+    // with its "/trace" header, the replay keeps it without: the times would be wrong for a
+    // replayed copy.
+    private void writeLoop() {
+        try {
+            OutboundQueue.Entry entry;
+            while ((entry = outbound.take()) != null) {
+                synchronized (this) {
+                    do {
+                        if (entry.numbered && replay != null) {
+                            replay.append(entry.line);
+                        }
+                        if (out != null) {
+                            out.write(entry.trace == null ? entry.line : entry.trace.header(MessageTrace.now()) + entry.line);
+                            out.write(System.lineSeparator());
+                            if (entry.priority && !outbound.hasPriority()) {
+                                out.flush();
+                            }
+                        }
+                    } while ((entry = outbound.poll()) != null);
+                    if (out != null) {
+                        out.flush();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // By the reaper, without the lock: a writeLoop blocked on a dead peer holds it.
+    // The thread reading the connection then fails and ends it as for any lost connection.
+    void dropConnection() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    int getId() {
+        return id;
+    }
+
+    long getLastActivity() {
+        return lastActivity;
+    }
+
+    long getDetachedAt() {
+        return detachedAt;
+    }
+
+    long getAcceptedAt() {
+        return acceptedAt;
+    }
+
+    boolean isAdmitted() {
+        return admitted;
+    }
+
+    String describe() {
+        return username != null ? username : String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    // Answers the negotiation and switches both directions to frames, atomically with
+    // respect to messages other clients' threads are sending to this one
+    private synchronized void startCompression(String mode, InputStream rawIn, OutputStream rawOut) {
+        if (ChatServer.isTls()) {
+            // Compressing secrets together with text others can inject leaks them through the
+            // record sizes (CRIME), so not over TLS
+            mode = ChatCompression.OFF;
+        }
+        out.println(ChatCompression.COMMAND + mode);
+        compression = mode;
+        if (!mode.equals(ChatCompression.OFF)) {
+            compressedOut = new CompressedChatOutputStream(rawOut, mode);
+            compressedIn = new CompressedChatInputStream(rawIn, mode);
+            out = new PrintWriter(compressedOut, true);
+            in = newReader(compressedIn);
+        } else {
+            in = newReader(rawIn);
+        }
+    }
+
+    private static BoundedLineReader newReader(InputStream stream) {
+        return new BoundedLineReader(new InputStreamReader(stream), ChatServer.getMaxMessage());
+    }
+
+    private void handleCompressionCommand(String setting) {
+        if (compressedOut == null) {
+            sendMessage("Chat compression was not negotiated on this connection");
+            return;
+        }
+        boolean on = setting.equalsIgnoreCase("on");
+        compressedOut.setCompressing(on);
+        sendMessage("Chat compression " + (on ? "on" : "off"));
+    }
+
+    private void handlePrivateMessage(String message, MessageTrace trace) {
+        try {
+            // Parse: /msg username message content
+            String[] parts = message.split(" ", 3);
+            if (parts.length >= 3) {
+                String recipientUsername = parts[1];
+                String messageContent = parts[2];
+
+                // Send private message
+                ChatServer.sendPrivateMessage(username, recipientUsername, messageContent, trace);
+            } else {
+                sendMessage("Invalid private message format. Use: /msg username message");
+            }
+        } catch (Exception e) {
+            sendMessage("Error sending private message: " + e.getMessage());
+        }
+    }
+
+    public void sendMessage(String message) {
+        sendMessage(message, null);
+    }
+
+    // For this client in particular, ahead of any public chat still waiting
+    public void sendMessage(String message, MessageTrace trace) {
+        queue(message, trace, true);
+    }
+
+    // Like sendMessage for each line, written in one go
+    public void sendMessages(List<String> messages) {
+        boolean reading = true;
+        for (String message : messages) {
+            reading &= outbound.offerPriority(message, null, true);
+        }
+        if (!reading) {
+            notReading();
+        }
+    }
+
+    // Public chat, dropped oldest first if the client falls too far behind
+    public void sendPublic(String message, MessageTrace trace) {
+        outbound.offerPublic(message, trace);
+    }
+
+    private void queue(String line, MessageTrace trace, boolean numbered) {
+        if (!outbound.offerPriority(line, trace, numbered)) {
+            notReading();
+        }
+    }
+
+    private void notReading() {
+        ServerLog.warn("{} has over {} lines waiting, disconnecting", describe(), String.valueOf(PRIORITY_LIMIT));
+        dropConnection();
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    private void cleanup() {
+        synchronized (this) {
+            ended = true;
+        }
+        outbound.close();
+        try {
+            if (username != null) {
+                ServerLog.info("{} left the chat", username);
+                ChatServer.announceLeave(username);
+            }
+            if (compressedOut != null) {
+                ServerLog.info("{} compression: {}", username, ChatCompression.describe(compressedOut, compressedIn));
+            }
+
+            ChatEvents.ClientDisconnect event = new ChatEvents.ClientDisconnect();
+            if (event.shouldCommit()) {
+                event.username = username;
+                event.connectedMillis = System.currentTimeMillis() - connectedAt;
+                event.messages = messagesReceived;
+                event.commit();
+            }
+
+            if (in != null) in.close();
+            if (out != null) out.close();
+            if (socket != null) socket.close();
+
+        } catch (IOException e) {
+            ServerLog.error("Error closing connection: {}", e.getMessage());
+        }
+
+        ChatServer.removeClient(this);
+    }
+}
\ No newline at end of file
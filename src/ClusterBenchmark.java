@@ -0,0 +1,265 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Starts a cluster of ChatServer processes on loopback and puts clients on every node,
+// then checks what the cluster promises (one owner per username, the same user list
+// everywhere, private messages across nodes) and measures broadcast fan-out: every
+// client sends a burst of timestamped messages and every other client must receive them.
+//
+// Usage: java ClusterBenchmark [--nodes=3] [--clients=4] [--messages=500] [--port=22345] [--bus-port=23345]
+// (clients per node, messages per client)
+public class ClusterBenchmark {
+
+    private static final long SETTLE_TIMEOUT = 15_000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        int nodes = Integer.parseInt(options.getOrDefault("nodes", "3"));
+        int clientsPerNode = Integer.parseInt(options.getOrDefault("clients", "4"));
+        int messages = Integer.parseInt(options.getOrDefault("messages", "500"));
+        int port = Integer.parseInt(options.getOrDefault("port", "22345"));
+        int busPort = Integer.parseInt(options.getOrDefault("bus-port", "23345"));
+
+        List<Process> servers = new ArrayList<>();
+        List<Client> clients = new ArrayList<>();
+        boolean ok = true;
+        try {
+            // Shared by the nodes, they refuse bus links without it
+            File key = File.createTempFile("cluster", ".key");
+            key.deleteOnExit();
+            byte[] keyBytes = new byte[32];
+            new SecureRandom().nextBytes(keyBytes);
+            Files.write(key.toPath(), keyBytes);
+
+            List<String> bus = new ArrayList<>();
+            for (int i = 0; i < nodes; i++) {
+                bus.add("127.0.0.1:" + (busPort + i));
+            }
+            for (int i = 0; i < nodes; i++) {
+                List<String> peers = new ArrayList<>(bus);
+                peers.remove(i);
+                servers.add(new ProcessBuilder(ProcessHandle.current().info().command().orElse("java"),
+                        "-cp", System.getProperty("java.class.path"), "ChatServer",
+                        "--port=" + (port + i), "--bus=" + bus.get(i), "--peers=" + String.join(",", peers),
+                        "--cluster-key=" + key)
+                        .redirectErrorStream(true)
+                        .redirectOutput(new File("cluster-node" + i + ".log"))
+                        .start());
+            }
+            // Until every node has its bus links to all the others up; startup time varies with
+            // the history and mailboxes each node opens first
+            int peerCount = nodes - 1;
+            if (!waitFor(() -> {
+                for (int i = 0; i < nodes; i++) {
+                    if (countLinksUp(new File("cluster-node" + i + ".log")) < peerCount) {
+                        return false;
+                    }
+                }
+                return true;
+            })) {
+                System.out.println("bus links did not all come up, see cluster-node*.log");
+            }
+
+            // Two clients on different nodes asking for the same name, plus the real ones
+            Set<String> expected = new TreeSet<>();
+            for (int n = 0; n < nodes; n++) {
+                for (int c = 0; c < clientsPerNode; c++) {
+                    String name = "n" + n + "c" + c;
+                    clients.add(new Client(port + n, name));
+                    expected.add(name);
+                }
+            }
+            Client first = new Client(port, "dup");
+            Client second = new Client(port + Math.min(1, nodes - 1), "dup");
+            clients.add(first);
+            clients.add(second);
+
+            boolean settled = waitFor(() -> {
+                for (Client client : clients) {
+                    if (!client.users.containsAll(expected) || countDuplicates(client.users) != 2) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+            ok &= report("user lists converge, duplicate name suffixed", settled);
+            if (!settled) {
+                System.out.println("  last list seen by " + clients.get(0).requested + ": " + clients.get(0).users);
+            }
+
+            // Private messages from the first client to one on every node
+            Client sender = clients.get(0);
+            for (int n = 0; n < nodes; n++) {
+                Client recipient = clients.get(n * clientsPerNode + clientsPerNode - 1);
+                sender.send("/msg " + recipient.requested + " ping " + n);
+                boolean delivered = waitFor(() -> recipient.privates.get() > 0);
+                ok &= report("private message " + sender.requested + " -> " + recipient.requested, delivered);
+            }
+            first.close();
+            second.close();
+            clients.remove(first);
+            clients.remove(second);
+
+            for (Client client : clients) {
+                client.received.set(0);
+                client.latencies.clear();
+            }
+            long start = System.nanoTime();
+            List<Thread> senders = new ArrayList<>();
+            for (Client client : clients) {
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < messages; i++) {
+                        client.send("bench " + System.nanoTime());
+                    }
+                });
+                thread.start();
+                senders.add(thread);
+            }
+            for (Thread thread : senders) {
+                thread.join();
+            }
+            long perClient = (long) (clients.size() - 1) * messages;
+            boolean complete = waitFor(() -> {
+                for (Client client : clients) {
+                    if (client.received.get() < perClient) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long deliveries = 0;
+            List<Long> latencies = new ArrayList<>();
+            for (Client client : clients) {
+                deliveries += client.received.get();
+                latencies.addAll(client.latencies);
+            }
+            Collections.sort(latencies);
+            ok &= report("broadcast fan-out complete", complete);
+            System.out.printf("%d nodes, %d clients, %d messages each: %d deliveries in %.2f s, %.0f deliveries/s%n",
+                    nodes, clients.size(), messages, deliveries, seconds, deliveries / seconds);
+            if (!latencies.isEmpty()) {
+                System.out.printf("latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                        latencies.get(latencies.size() / 2) / 1e6,
+                        latencies.get((int) (latencies.size() * 0.99)) / 1e6,
+                        latencies.get(latencies.size() - 1) / 1e6);
+            }
+        } finally {
+            for (Client client : clients) {
+                client.close();
+            }
+            for (Process server : servers) {
+                server.destroy();
+            }
+        }
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static int countDuplicates(Set<String> users) {
+        int count = 0;
+        for (String user : users) {
+            if (user.equals("dup") || user.startsWith("dup_")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean report(String check, boolean passed) {
+        System.out.println((passed ? "ok      " : "FAILED  ") + check);
+        return passed;
+    }
+
+    private static int countLinksUp(File log) throws IOException {
+        if (!log.exists()) {
+            return 0;
+        }
+        int up = 0;
+        for (String line : Files.readAllLines(log.toPath())) {
+            if (line.contains("Bus link to ") && line.contains(" up, ring ")) {
+                up++;
+            }
+        }
+        return up;
+    }
+
+    private static boolean waitFor(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (condition.call()) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return false;
+    }
+
+    // Plain-text chat client that keeps the latest user list and counts what arrives
+    private static class Client implements Closeable {
+        final String requested;
+        final Socket socket;
+        final PrintWriter out;
+        volatile Set<String> users = Collections.emptySet();
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong privates = new AtomicLong();
+        final Queue<Long> latencies = new ConcurrentLinkedQueue<>();
+
+        Client(int port, String username) throws IOException {
+            requested = username;
+            socket = new Socket("127.0.0.1", port);
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            in.readLine(); // "Enter your username:"
+            out.println(username);
+            Thread reader = new Thread(() -> read(in));
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void read(BufferedReader in) {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.equals("/ping")) {
+                        send("/pong");
+                    } else if (line.startsWith("/userlist ")) {
+                        users = new HashSet<>(Arrays.asList(line.substring(10).split(",")));
+                    } else if (line.startsWith("/private ")) {
+                        privates.incrementAndGet();
+                    } else {
+                        int bench = line.indexOf(": bench ");
+                        if (bench >= 0) {
+                            latencies.add(System.nanoTime() - Long.parseLong(line.substring(bench + 8)));
+                            received.incrementAndGet();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        synchronized void send(String message) {
+            out.println(message);
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
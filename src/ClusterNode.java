@@ -0,0 +1,563 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// One ChatServer's membership in a cluster. Nodes are named by their bus address
+// (host:port) and keep a full mesh of TCP links: every node dials every peer and only
+// writes on the links it dialled, and reads everything that arrives on its bus port.
+//
+// Username ownership comes from a consistent-hash ring of the nodes this one can reach.
+// The owner of a name keeps the directory entry saying which node the user is connected
+// to. It grants the name when a user logs in (so names stay unique across the cluster),
+// and private messages for that name are routed through it. Presence for the user lists
+// is replicated: each node tells all the others who is connected to it.
+//
+// Each link has a queue and a writer thread that sends everything queued since its last
+// flush in one write. Broadcast fan-out under load therefore costs one syscall per peer
+// per batch instead of one per message. No linger is added, so an idle bus keeps its latency.
+//
+// Bus frames are [length:int][type:byte][fields], written with DataOutputStream. Strings
+// are [length:int][UTF-8], writeUTF would stop at 64 KB and a chat message can be longer.
+//
+// The bus port is bound to the host of the node's own address, loopback in the examples.
+// Every node has the same key (--cluster-key), and a link only counts once its first frame
+// is a HELLO from one of our peers, with the time and an HMAC over both made with the key.
+// This keeps out whoever does not have the key. The bus is not encrypted, so keep it on
+// loopback or a private network.
+public class ClusterNode {
+
+    private static final int PING = 0;
+    private static final int HELLO = 1;            // node, time, mac; first on every link
+    private static final int BROADCAST = 2;        // message, trace
+    private static final int ROUTE_PRIVATE = 3;    // sender, recipient, message, trace; to the owner of the recipient
+    private static final int DELIVER_PRIVATE = 4;  // sender, recipient, message, trace; to the recipient's node
+    private static final int CLAIM = 5;            // request id, username, node
+    private static final int CLAIM_REPLY = 6;      // request id, granted
+    private static final int REGISTER = 7;         // username, node; after ownership moved
+    private static final int RELEASE = 8;          // username, node
+    private static final int PRESENCE = 9;         // node, joined, username
+    private static final int PRESENCE_SNAPSHOT = 10; // node, count, usernames
+    private static final int MAILBOX = 11;         // recipient, count, sender and message alternating; to the recipient's node
+    private static final int ANNOUNCE = 12;        // message; from the server, not kept in the history
+
+    private static final int MAX_BATCH = 256;
+    private static final int MAILBOX_BATCH = 256;
+    private static final int MAX_QUEUED = 10_000;
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final long RECONNECT_DELAY = 1000;
+    private static final long PING_INTERVAL = 1000;
+    private static final long CLAIM_TIMEOUT = 2000;
+    private static final long HELLO_MAX_AGE = 60_000; // Clocks of the nodes may differ this much
+    private static final int CLAIM_ATTEMPTS = 3;
+    private static final long CLAIM_RETRY_DELAY = 500;
+    // Largest frame a peer may send, a full MAILBOX batch of maximum length messages fits
+    private static final int MAX_FRAME = 64 * 1024 * 1024;
+
+    private final String nodeId;
+    private final String busHost;
+    private final int busPort;
+    private final byte[] key;
+    private final ConsistentHashRing ring = new ConsistentHashRing();
+    private final Map<String, PeerLink> peers = new LinkedHashMap<>();
+
+    // Names this node owns -> node the user is connected to
+    private final Map<String, String> directory = new ConcurrentHashMap<>();
+    // Node -> users connected to it, for every other node
+    private final Map<String, Set<String>> presence = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextClaimId = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<Boolean>> pendingClaims = new ConcurrentHashMap<>();
+
+    public ClusterNode(String nodeId, List<String> peerIds, byte[] key) {
+        this.nodeId = nodeId;
+        this.busHost = nodeId.substring(0, nodeId.lastIndexOf(':'));
+        this.busPort = Integer.parseInt(nodeId.substring(nodeId.lastIndexOf(':') + 1));
+        this.key = key.clone();
+        ring.add(nodeId);
+        for (String peer : peerIds) {
+            if (!peer.equals(nodeId)) {
+                peers.put(peer, new PeerLink(peer));
+            }
+        }
+    }
+
+    public void start() throws IOException {
+        ServerSocket busSocket = new ServerSocket(busPort, 50, InetAddress.getByName(busHost));
+        Thread acceptor = new Thread(() -> acceptLinks(busSocket), "bus-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : peers.values()) {
+            link.start();
+        }
+        ServerLog.info("Cluster node {} with peers {}", nodeId, String.valueOf(peers.keySet()));
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    // Asks the owner of username whether it is free and reserves it for this node if so.
+    // An owner that cannot be reached or does not answer in time is asked again, by then the
+    // ring may have dropped it and moved the name. After CLAIM_ATTEMPTS the claim fails: a
+    // name nobody checked could be in use on another node.
+    public boolean claim(String username) throws IOException {
+        for (int attempt = 0; attempt < CLAIM_ATTEMPTS; attempt++) {
+            String owner = ring.ownerOf(username);
+            if (owner.equals(nodeId)) {
+                return claimLocally(username, nodeId);
+            }
+            int id = nextClaimId.incrementAndGet();
+            CompletableFuture<Boolean> reply = new CompletableFuture<>();
+            pendingClaims.put(id, reply);
+            try {
+                if (send(owner, frame(CLAIM, id, username, nodeId))) {
+                    return reply.get(CLAIM_TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+                ServerLog.warn("Cannot reach {} about {}", owner, username);
+                Thread.sleep(CLAIM_RETRY_DELAY);
+            } catch (TimeoutException | ExecutionException e) {
+                // Should the grant still come it is given back, the next attempt asks again
+                send(owner, frame(RELEASE, username, nodeId));
+                ServerLog.warn("No answer from {} about {}", owner, username);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted claiming " + username);
+            } finally {
+                pendingClaims.remove(id);
+            }
+        }
+        throw new IOException("Could not claim " + username + ", its owner does not answer");
+    }
+
+    private boolean claimLocally(String username, String node) {
+        String holder = directory.putIfAbsent(username, node);
+        return holder == null || holder.equals(node);
+    }
+
+    public void userJoined(String username) {
+        publish(frame(PRESENCE, nodeId, true, username));
+    }
+
+    public void userLeft(String username) {
+        String owner = ring.ownerOf(username);
+        if (owner.equals(nodeId)) {
+            directory.remove(username, nodeId);
+        } else {
+            send(owner, frame(RELEASE, username, nodeId));
+        }
+        publish(frame(PRESENCE, nodeId, false, username));
+    }
+
+    // Traces go along encoded as a string, "" for none
+    public void broadcast(String message, MessageTrace trace) {
+        publish(frame(BROADCAST, message, MessageTrace.encode(trace)));
+    }
+
+    // Joins and leaves, everyone sees them but only what users wrote is searchable
+    public void announce(String message) {
+        publish(frame(ANNOUNCE, message));
+    }
+
+    // For a recipient that is not connected here. Goes to the owner of the name, which
+    // knows where the user is; false if this node is the owner and the user is unknown.
+    public boolean routePrivate(String sender, String recipient, String message, MessageTrace trace) {
+        String owner = ring.ownerOf(recipient);
+        if (owner.equals(nodeId)) {
+            return deliverFromDirectory(sender, recipient, message, trace);
+        }
+        return send(owner, frame(ROUTE_PRIVATE, sender, recipient, message, MessageTrace.encode(trace)));
+    }
+
+    private boolean deliverFromDirectory(String sender, String recipient, String message, MessageTrace trace) {
+        String location = directory.get(recipient);
+        if (location == null) {
+            return false;
+        }
+        if (location.equals(nodeId)) {
+            return ChatServer.deliverPrivate(sender, recipient, message, trace);
+        }
+        return send(location, frame(DELIVER_PRIVATE, sender, recipient, message, MessageTrace.encode(trace)));
+    }
+
+    // Users connected to the other nodes, as far as this node knows
+    public List<String> getRemoteUsernames() {
+        List<String> names = new ArrayList<>();
+        for (Set<String> users : presence.values()) {
+            names.addAll(users);
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    public boolean isRemoteUser(String username) {
+        for (Set<String> users : presence.values()) {
+            if (users.contains(username)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The messages queued here for a user who logged in on node, MAILBOX_BATCH per frame
+    private void sendMailbox(String node, String username) {
+        List<String[]> messages = ChatServer.takeOfflineMail(username);
+        for (int start = 0; start < messages.size(); start += MAILBOX_BATCH) {
+            List<String> fields = new ArrayList<>();
+            for (String[] message : messages.subList(start, Math.min(messages.size(), start + MAILBOX_BATCH))) {
+                fields.add(message[0]);
+                fields.add(message[1]);
+            }
+            send(node, frame(MAILBOX, username, fields));
+        }
+    }
+
+    private void publish(byte[] frame) {
+        for (PeerLink link : peers.values()) {
+            link.enqueue(frame);
+        }
+    }
+
+    private boolean send(String node, byte[] frame) {
+        PeerLink link = peers.get(node);
+        return link != null && link.enqueue(frame);
+    }
+
+    // The ring changed, so some names have a new owner. Tell the owners about our own users
+    // again and forget entries this node no longer owns.
+    private void reassertOwnership() {
+        for (String username : ChatServer.getLocalUsernames()) {
+            String owner = ring.ownerOf(username);
+            if (owner.equals(nodeId)) {
+                directory.put(username, nodeId);
+            } else {
+                send(owner, frame(REGISTER, username, nodeId));
+            }
+        }
+        directory.keySet().removeIf(username -> !nodeId.equals(ring.ownerOf(username)));
+    }
+
+    private void peerUp(String peer) {
+        ring.add(peer);
+        ServerLog.info("Bus link to {} up, ring {}", peer, String.valueOf(ring.getNodes()));
+        reassertOwnership();
+    }
+
+    private void peerDown(String peer) {
+        ring.remove(peer);
+        directory.values().removeIf(peer::equals);
+        boolean hadUsers = presence.remove(peer) != null;
+        ServerLog.info("Bus link to {} down, ring {}", peer, String.valueOf(ring.getNodes()));
+        reassertOwnership();
+        if (hadUsers) {
+            ChatServer.broadcastUserList();
+        }
+    }
+
+    private void acceptLinks(ServerSocket busSocket) {
+        while (true) {
+            try {
+                Socket socket = busSocket.accept();
+                Thread reader = new Thread(() -> readLink(socket), "bus-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                ServerLog.error("Bus error: {}", e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void readLink(Socket socket) {
+        String peer = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (true) {
+                int length = in.readInt();
+                if (length < 1 || length > MAX_FRAME) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                DataInputStream frame = new DataInputStream(new ByteArrayInputStream(body));
+                int type = frame.readByte();
+                if (peer == null) {
+                    peer = authenticate(type, frame, socket);
+                } else if (type != HELLO) {
+                    handle(type, frame);
+                }
+            }
+        } catch (IOException e) {
+            // Peer went away, its own link to us reports the node as down
+        }
+        if (peer != null) {
+            PeerLink link = peers.get(peer);
+            if (link != null) {
+                link.disconnect();
+            }
+        }
+    }
+
+    // The node a link's first frame says it comes from, if it proves it has the key
+    private String authenticate(int type, DataInputStream frame, Socket socket) throws IOException {
+        if (type != HELLO) {
+            throw new IOException("Bus link from " + socket.getRemoteSocketAddress() + " did not start with HELLO");
+        }
+        String node = readString(frame);
+        long time = frame.readLong();
+        byte[] mac;
+        try {
+            mac = Base64.getDecoder().decode(readString(frame));
+        } catch (IllegalArgumentException e) {
+            mac = new byte[0];
+        }
+        if (!peers.containsKey(node) || Math.abs(System.currentTimeMillis() - time) > HELLO_MAX_AGE
+                || !MessageDigest.isEqual(mac, helloMac(node, time))) {
+            ServerLog.warn("Refused bus link from {} claiming to be {}", String.valueOf(socket.getRemoteSocketAddress()), node);
+            throw new IOException("Bus link not authenticated");
+        }
+        return node;
+    }
+
+    private byte[] helloMac(String node, long time) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal((node + " " + time).getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void handle(int type, DataInputStream frame) throws IOException {
+        switch (type) {
+            case BROADCAST:
+                ChatServer.deliverBroadcast(readString(frame), MessageTrace.decode(readString(frame)));
+                break;
+            case ANNOUNCE:
+                ChatServer.deliverAnnouncement(readString(frame));
+                break;
+            case ROUTE_PRIVATE: {
+                String sender = readString(frame);
+                String recipient = readString(frame);
+                String message = readString(frame);
+                MessageTrace trace = MessageTrace.decode(readString(frame));
+                // As the owner of the name this node keeps the mailbox
+                if (!deliverFromDirectory(sender, recipient, message, trace)) {
+                    ChatServer.storeOffline(sender, recipient, message);
+                }
+                break;
+            }
+            case MAILBOX: {
+                String recipient = readString(frame);
+                List<String[]> messages = new ArrayList<>();
+                for (int i = frame.readInt() / 2; i > 0; i--) {
+                    messages.add(new String[]{readString(frame), readString(frame)});
+                }
+                ChatServer.deliverOffline(recipient, messages);
+                break;
+            }
+            case DELIVER_PRIVATE:
+                ChatServer.deliverPrivate(readString(frame), readString(frame), readString(frame), MessageTrace.decode(readString(frame)));
+                break;
+            case CLAIM: {
+                int id = frame.readInt();
+                String username = readString(frame);
+                String node = readString(frame);
+                send(node, frame(CLAIM_REPLY, id, claimLocally(username, node)));
+                break;
+            }
+            case CLAIM_REPLY: {
+                CompletableFuture<Boolean> reply = pendingClaims.get(frame.readInt());
+                boolean granted = frame.readBoolean();
+                if (reply != null) {
+                    reply.complete(granted);
+                }
+                break;
+            }
+            case REGISTER:
+                directory.put(readString(frame), readString(frame));
+                break;
+            case RELEASE:
+                directory.remove(readString(frame), readString(frame));
+                break;
+            case PRESENCE: {
+                String node = readString(frame);
+                boolean joined = frame.readBoolean();
+                String username = readString(frame);
+                Set<String> users = presence.computeIfAbsent(node, n -> ConcurrentHashMap.newKeySet());
+                if (joined ? users.add(username) : users.remove(username)) {
+                    ChatServer.broadcastUserList();
+                }
+                if (joined && nodeId.equals(ring.ownerOf(username)) && ChatServer.hasOfflineMail(username)) {
+                    sendMailbox(node, username);
+                }
+                break;
+            }
+            case PRESENCE_SNAPSHOT: {
+                String node = readString(frame);
+                Set<String> users = ConcurrentHashMap.newKeySet();
+                for (int i = frame.readInt(); i > 0; i--) {
+                    users.add(readString(frame));
+                }
+                presence.put(node, users);
+                ChatServer.broadcastUserList();
+                break;
+            }
+            default:
+                // PING, or something newer than this node
+        }
+    }
+
+    static byte[] frame(int type, Object... fields) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeByte(type);
+            for (Object field : fields) {
+                if (field instanceof Integer) {
+                    out.writeInt((Integer) field);
+                } else if (field instanceof Long) {
+                    out.writeLong((Long) field);
+                } else if (field instanceof Boolean) {
+                    out.writeBoolean((Boolean) field);
+                } else if (field instanceof Collection) {
+                    out.writeInt(((Collection<?>) field).size());
+                    for (Object item : (Collection<?>) field) {
+                        writeString(out, item.toString());
+                    }
+                } else {
+                    writeString(out, field.toString());
+                }
+            }
+            byte[] frame = bytes.toByteArray();
+            CompressingSource.putInt(frame, 0, frame.length - 4);
+            return frame;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream frame) throws IOException {
+        int length = frame.readInt();
+        // The frame is all in memory, what it has left bounds the length
+        if (length < 0 || length > frame.available()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        frame.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Outgoing half of the link to one peer, redialled until the peer is reachable
+    private class PeerLink {
+        private final String peer;
+        private final String host;
+        private final int port;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+        private Socket socket;
+        private volatile boolean connected = false;
+        private long messages = 0;
+        private long batches = 0;
+
+        PeerLink(String peer) {
+            this.peer = peer;
+            this.host = peer.substring(0, peer.lastIndexOf(':'));
+            this.port = Integer.parseInt(peer.substring(peer.lastIndexOf(':') + 1));
+        }
+
+        void start() {
+            Thread writer = new Thread(this::run, "bus-writer-" + peer);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        // Frames for a peer that is down are dropped, it gets a presence snapshot on reconnect
+        boolean enqueue(byte[] frame) {
+            if (!connected) {
+                return false;
+            }
+            if (!queue.offer(frame)) {
+                ServerLog.warn("Bus queue to {} full, dropping", peer);
+                return false;
+            }
+            return true;
+        }
+
+        private void run() {
+            List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+            while (true) {
+                Socket s = new Socket();
+                try {
+                    s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+                    s.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+                    synchronized (this) {
+                        socket = s;
+                        queue.clear();
+                        connected = true;
+                    }
+                    // After connected is set, so a user joining meanwhile is in the snapshot or in the queue
+                    long now = System.currentTimeMillis();
+                    out.write(frame(HELLO, nodeId, now, Base64.getEncoder().encodeToString(helloMac(nodeId, now))));
+                    out.write(frame(PRESENCE_SNAPSHOT, nodeId, ChatServer.getLocalUsernames()));
+                    out.flush();
+                    peerUp(peer);
+
+                    while (connected) {
+                        byte[] first = queue.poll(PING_INTERVAL, TimeUnit.MILLISECONDS);
+                        batch.add(first != null ? first : frame(PING));
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                        for (byte[] frame : batch) {
+                            out.write(frame);
+                        }
+                        out.flush();
+                        messages += batch.size();
+                        batches++;
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    // Not up yet, or gone
+                } catch (InterruptedException e) {
+                    return;
+                }
+                batch.clear();
+                disconnect();
+                try {
+                    s.close();
+                    Thread.sleep(RECONNECT_DELAY);
+                } catch (IOException ignored) {
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void disconnect() {
+            synchronized (this) {
+                if (!connected) {
+                    return;
+                }
+                connected = false;
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+            ServerLog.info("Bus link to {}: {n} frames in {n} writes", peer, messages, batches);
+            peerDown(peer);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Reads the frames written by CompressedChatOutputStream and returns the original bytes.
+// A frame longer than ChatCompression.MAX_FRAME, on the wire or once inflated, ends the
+// stream with an IOException: a few KB of deflate can otherwise expand to gigabytes.
+public class CompressedChatInputStream extends InputStream {
+
+    // Deflate adds a few bytes per block to data that does not compress
+    private static final int MAX_WIRE_FRAME = ChatCompression.MAX_FRAME + 1024;
+
+    private final InputStream in;
+    private final Inflater inflater;
+
+    private final byte[] single = new byte[1];
+    private byte[] frame = new byte[256];
+    private byte[] data = new byte[256];
+    private byte[] current; // data or frame, whichever holds the last frame's bytes
+    private int position = 0;
+    private int length = 0;
+
+    // Statistics
+    private long messages = 0;
+    private long rawBytes = 0;
+    private long wireBytes = 0;
+    private long inflateNanos = 0;
+
+    public CompressedChatInputStream(InputStream in, String mode) {
+        this.in = in;
+        this.inflater = ChatCompression.newInflater(mode);
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (position == length) {
+            if (!nextFrame()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return length - position;
+    }
+
+    private boolean nextFrame() throws IOException {
+        long header = 0;
+        int shift = 0;
+        int b;
+        while (true) {
+            b = in.read();
+            if (b == -1) {
+                if (shift == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed inside a frame header");
+            }
+            header |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+            if (shift > 35) {
+                throw new IOException("Corrupt frame header");
+            }
+        }
+        long frameLength = header >>> 1;
+        if (frameLength > MAX_WIRE_FRAME || ((header & 1) == 0 && frameLength > ChatCompression.MAX_FRAME)) {
+            throw new IOException("Frame of " + frameLength + " bytes");
+        }
+        int payloadLength = (int) frameLength;
+        if (payloadLength > frame.length) {
+            frame = new byte[Math.max(payloadLength, frame.length * 2)];
+        }
+        readFully(frame, payloadLength);
+        wireBytes += shift / 7 + 1 + payloadLength;
+
+        if ((header & 1) == 0) {
+            current = frame;
+            length = payloadLength;
+        } else {
+            long start = System.nanoTime();
+            current = data;
+            length = inflate(payloadLength);
+            current = data; // inflate() may have grown it
+            inflateNanos += System.nanoTime() - start;
+        }
+        position = 0;
+        messages++;
+        rawBytes += length;
+        return true;
+    }
+
+    private int inflate(int payloadLength) throws IOException {
+        inflater.setInput(frame, 0, payloadLength);
+        int inflated = 0;
+        try {
+            while (true) {
+                if (inflated == data.length) {
+                    // One byte over the limit is enough to tell the frame is too long
+                    if (inflated > ChatCompression.MAX_FRAME) {
+                        throw new IOException("Compressed chat frame inflates past " + ChatCompression.MAX_FRAME + " bytes");
+                    }
+                    data = Arrays.copyOf(data, Math.min(data.length * 2, ChatCompression.MAX_FRAME + 1));
+                }
+                int n = inflater.inflate(data, inflated, data.length - inflated);
+                inflated += n;
+                if (inflated < data.length && inflater.needsInput()) {
+                    return inflated;
+                }
+                if (n == 0 && !inflater.needsInput() && inflated < data.length) {
+                    throw new IOException("Corrupt compressed chat frame");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chat frame: " + e.getMessage());
+        }
+    }
+
+    private void readFully(byte[] b, int len) throws IOException {
+        int read = 0;
+        while (read < len) {
+            int n = in.read(b, read, len - read);
+            if (n < 0) {
+                throw new EOFException("Connection closed inside a frame");
+            }
+            read += n;
+        }
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    public long getInflateNanos() {
+        return inflateNanos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
@@ -0,0 +1,103 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+// Checks that a compressed chat connection stays within --max-message and MAX_FRAME however
+// well the peer's data compresses. Run with a small heap, the frames below inflate to far
+// more than it holds if anything reads them whole:
+//
+//   java -Xmx64m CompressedChatInputStreamTest
+public class CompressedChatInputStreamTest {
+
+    private static boolean ok = true;
+
+    public static void main(String[] args) throws Exception {
+        // 32 MB of 'a' in one line deflates to about 32 KB, under the wire limit
+        byte[] bomb = deflatedFrame('a', 32 << 20);
+        check("bomb frame fits the wire limit", bomb.length < ChatCompression.MAX_FRAME);
+
+        check("stream rejects a frame inflating past MAX_FRAME", rejects(() -> {
+            InputStream in = new CompressedChatInputStream(new ByteArrayInputStream(bomb), ChatCompression.DEFLATE);
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {
+                // Reading it all would mean holding it all
+            }
+        }));
+
+        check("line reader over it, as the server reads, rejects it", rejects(() -> {
+            BoundedLineReader reader = new BoundedLineReader(new InputStreamReader(new CompressedChatInputStream(
+                    new ByteArrayInputStream(bomb), ChatCompression.DEFLATE)), 8192);
+            while (reader.readLine() != null) {
+                // Consumed until the stream gives up
+            }
+        }));
+
+        check("stream rejects a frame header over the wire limit", rejects(() -> {
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            writeHeader(wire, (long) (1 << 24) << 1 | 1);
+            new CompressedChatInputStream(new ByteArrayInputStream(wire.toByteArray()), ChatCompression.DEFLATE).read();
+        }));
+
+        // What the writer sends between two flushes comes out whole, in frames under the limit
+        String line = "x".repeat(3 * ChatCompression.MAX_FRAME) + "\n";
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        CompressedChatOutputStream out = new CompressedChatOutputStream(wire, ChatCompression.DEFLATE);
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write("short\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new CompressedChatInputStream(
+                new ByteArrayInputStream(wire.toByteArray()), ChatCompression.DEFLATE), StandardCharsets.UTF_8));
+        check("long write is split into frames and reassembled", (reader.readLine() + "\n").equals(line)
+                && "short".equals(reader.readLine()) && out.getMessages() > 1);
+
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    interface Body {
+        void run() throws IOException;
+    }
+
+    private static boolean rejects(Body body) {
+        try {
+            body.run();
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    // One frame as CompressedChatOutputStream would write it, if it did not split
+    private static byte[] deflatedFrame(char c, int length) throws IOException {
+        byte[] raw = new byte[length];
+        Arrays.fill(raw, (byte) c);
+        raw[length - 1] = '\n';
+        Deflater deflater = ChatCompression.newDeflater(ChatCompression.DEFLATE);
+        deflater.setInput(raw);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH)) > 0) {
+            payload.write(buffer, 0, n);
+        }
+        deflater.end();
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        writeHeader(frame, (long) payload.size() << 1 | 1);
+        payload.writeTo(frame);
+        return frame.toByteArray();
+    }
+
+    private static void writeHeader(OutputStream out, long header) throws IOException {
+        while (header >= 0x80) {
+            out.write((int) (header & 0x7F) | 0x80);
+            header >>>= 7;
+        }
+        out.write((int) header);
+    }
+
+    private static void check(String what, boolean passed) {
+        System.out.println((passed ? "ok      " : "FAILED  ") + what);
+        ok &= passed;
+    }
+}
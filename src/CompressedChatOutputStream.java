@@ -0,0 +1,138 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+// Frames what is written between two flushes (one chat line with an autoflush PrintWriter),
+// split into frames of at most ChatCompression.MAX_FRAME bytes.
+// A frame is varint(length << 1 | deflated) followed by the payload. Deflated payloads end
+// in a sync flush, so the shared context stays usable across frames and plain frames can be
+// mixed in whenever compression is switched off.
+public class CompressedChatOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final Deflater deflater;
+    private volatile boolean compressing = true;
+
+    private byte[] pending = new byte[256];
+    private int pendingLength = 0;
+    private byte[] deflated = new byte[256];
+
+    // Statistics
+    private long messages = 0;
+    private long rawBytes = 0;
+    private long wireBytes = 0;
+    private long deflateNanos = 0;
+
+    public CompressedChatOutputStream(OutputStream out, String mode) {
+        this.out = out;
+        this.deflater = ChatCompression.newDeflater(mode);
+    }
+
+    public void setCompressing(boolean compressing) {
+        this.compressing = compressing;
+    }
+
+    public boolean isCompressing() {
+        return compressing;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (pendingLength == pending.length) {
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        }
+        pending[pendingLength++] = (byte) b;
+        if (pendingLength == ChatCompression.MAX_FRAME) {
+            writePending();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, ChatCompression.MAX_FRAME - pendingLength);
+            if (pendingLength + n > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + n));
+            }
+            System.arraycopy(b, off, pending, pendingLength, n);
+            pendingLength += n;
+            off += n;
+            len -= n;
+            if (pendingLength == ChatCompression.MAX_FRAME) {
+                writePending();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        writePending();
+        out.flush();
+    }
+
+    // What was written so far as one frame
+    private synchronized void writePending() throws IOException {
+        if (pendingLength > 0) {
+            if (compressing) {
+                long start = System.nanoTime();
+                deflater.setInput(pending, 0, pendingLength);
+                int length = 0;
+                while (true) {
+                    if (length == deflated.length) {
+                        deflated = Arrays.copyOf(deflated, deflated.length * 2);
+                    }
+                    length += deflater.deflate(deflated, length, deflated.length - length, Deflater.SYNC_FLUSH);
+                    if (length < deflated.length) {
+                        break;
+                    }
+                }
+                deflateNanos += System.nanoTime() - start;
+                writeFrame(deflated, length, true);
+            } else {
+                writeFrame(pending, pendingLength, false);
+            }
+            messages++;
+            rawBytes += pendingLength;
+            pendingLength = 0;
+        }
+    }
+
+    private void writeFrame(byte[] payload, int length, boolean isDeflated) throws IOException {
+        long header = ((long) length << 1) | (isDeflated ? 1 : 0);
+        int headerBytes = 1;
+        while (header >= 0x80) {
+            out.write((int) (header & 0x7F) | 0x80);
+            header >>>= 7;
+            headerBytes++;
+        }
+        out.write((int) header);
+        out.write(payload, 0, length);
+        wireBytes += headerBytes + length;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    public long getDeflateNanos() {
+        return deflateNanos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.*;
+import java.util.zip.Deflater;
+
+// Compression stage in front of a TCPRenoSender. A separate thread reads the ranges in
+// blocks of up to 64KB, deflates each block on its own at the fastest level and queues
+// the result as a frame:
+//
+//   [rawLength:int][payloadLength:int][payload]
+//
+// payloadLength == rawLength means the block is stored as is. A block is stored when
+// deflate does not save at least 1/8 of it, and after such a block the next ones skip
+// compression entirely (1, 2, 4 ... up to 64 blocks) so already compressed files cost
+// almost no CPU. The send loop only copies finished frames into segments; the frame
+// buffers are reused and a few blocks of read-ahead keep it from waiting on deflate.
+public class CompressingSource implements SegmentSource {
+
+    public static final int BLOCK_SIZE = 64 * 1024;
+    public static final int HEADER_SIZE = 8;
+
+    private static final int PIPELINE_DEPTH = 4;
+    private static final int MAX_SKIP = 64;
+    private static final byte[] END = new byte[0];
+
+    private final FileChannel channel;
+    private final ByteRanges ranges;
+    private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+    private final BlockingQueue<byte[]> ready = new ArrayBlockingQueue<>(PIPELINE_DEPTH + 1);
+    private final Thread compressor;
+    private volatile IOException failure;
+
+    // Send loop side
+    private byte[] current;
+    private int currentPosition;
+    private int currentLength;
+    private boolean finished = false;
+    private long fileBytesRead = 0;
+
+    // Compressor side, read after the END frame
+    private volatile long bytesIn = 0;
+    private volatile long bytesOut = 0;
+    private volatile int storedBlocks = 0;
+
+    public CompressingSource(FileChannel channel, ByteRanges ranges) {
+        this.channel = channel;
+        this.ranges = ranges;
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            free.add(new byte[HEADER_SIZE + BLOCK_SIZE]);
+        }
+        compressor = new Thread(this::compressBlocks, "compressor");
+        compressor.setDaemon(true);
+        compressor.start();
+    }
+
+    private void compressBlocks() {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] raw = new byte[BLOCK_SIZE];
+        ByteBuffer rawBuffer = ByteBuffer.wrap(raw);
+        try {
+            long position = 0;
+            long total = ranges.getTotalLength();
+            int skip = 0;
+            int backoff = 1;
+            while (position < total) {
+                // Blocks never cross a range boundary, so the receiver can write each one in one piece
+                int length = (int) Math.min(BLOCK_SIZE, ranges.remainingInRange(position));
+                long fileOffset = ranges.fileOffset(position);
+                rawBuffer.clear().limit(length);
+                while (rawBuffer.hasRemaining()) {
+                    if (channel.read(rawBuffer, fileOffset + rawBuffer.position()) < 0) {
+                        throw new EOFException("File ended at " + (fileOffset + rawBuffer.position()) + ", was it truncated?");
+                    }
+                }
+
+                byte[] frame = free.take();
+                int payloadLength = 0;
+                if (skip > 0) {
+                    skip--;
+                } else {
+                    int limit = length - 1 - length / 8;
+                    int compressed = 0;
+                    if (limit > 0) {
+                        deflater.reset();
+                        deflater.setInput(raw, 0, length);
+                        deflater.finish();
+                        while (!deflater.finished() && compressed < limit) {
+                            compressed += deflater.deflate(frame, HEADER_SIZE + compressed, limit - compressed);
+                        }
+                    }
+                    if (limit > 0 && deflater.finished()) {
+                        payloadLength = compressed;
+                        backoff = 1;
+                    } else {
+                        skip = backoff;
+                        backoff = Math.min(backoff * 2, MAX_SKIP);
+                    }
+                }
+                if (payloadLength == 0) {
+                    System.arraycopy(raw, 0, frame, HEADER_SIZE, length);
+                    payloadLength = length;
+                    storedBlocks++;
+                }
+                putInt(frame, 0, length);
+                putInt(frame, 4, payloadLength);
+                bytesIn += length;
+                bytesOut += HEADER_SIZE + payloadLength;
+                ready.put(frame);
+                position += length;
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Compressor stopped");
+        } catch (RuntimeException | Error e) {
+            // A deflater fault or no memory for a block, the send fails instead of waiting forever
+            failure = new IOException("Compressing failed: " + e, e);
+        } finally {
+            deflater.end();
+            ready.offer(END); // Never full, there are fewer frames than slots
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int added = 0;
+        while (dst.hasRemaining() && !finished) {
+            if (current == null) {
+                // Wait for the compressor only when there is nothing to send yet
+                byte[] frame = added == 0 ? take() : ready.poll();
+                if (frame == null) {
+                    break;
+                }
+                if (frame == END) {
+                    finished = true;
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    break;
+                }
+                current = frame;
+                currentPosition = 0;
+                currentLength = HEADER_SIZE + getInt(frame, 4);
+            }
+            int n = Math.min(dst.remaining(), currentLength - currentPosition);
+            dst.put(current, currentPosition, n);
+            currentPosition += n;
+            added += n;
+            if (currentPosition == currentLength) {
+                fileBytesRead += getInt(current, 0);
+                free.offer(current);
+                current = null;
+            }
+        }
+        return added == 0 && finished ? -1 : added;
+    }
+
+    private byte[] take() throws IOException {
+        try {
+            return ready.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public long getFileBytesRead() {
+        return fileBytesRead;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public int getStoredBlocks() {
+        return storedBlocks;
+    }
+
+    @Override
+    public void close() {
+        compressor.interrupt();
+    }
+
+    static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    static int getInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+                | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,44 @@
+// Congestion control strategy used by the file transfer sender.
+// The sender reports ACKs, losses and timeouts; the controller owns cwnd/ssthresh.
+public interface CongestionController {
+
+    String[] ALGORITHMS = {"Reno", "NewReno", "CUBIC", "BBR"};
+
+    // Upper bound on the window, matches the receiver's 64KB advertised window of 1KB segments
+    int MAX_CWND = 64;
+
+    // New cumulative ACK covering ackedSegments segments. sampleRtt is -1 when no sample was taken.
+    // Returns true if the sender should immediately retransmit the segment after ackNum (partial ACK).
+    boolean onAck(int ackNum, int ackedSegments, long sampleRtt);
+
+    // Duplicate ACK received (called for every duplicate, including the ones after the third)
+    void onDuplicateAck();
+
+    // Loss detected by three duplicate ACKs. highestSent is the last sequence number sent so far.
+    void onLoss(int highestSent);
+
+    // Retransmission timer expired
+    void onTimeout();
+
+    int getCwnd();
+
+    int getSsthresh();
+
+    String getName();
+
+    static CongestionController create(String name) {
+        if (name == null) {
+            return new RenoCongestionController();
+        }
+        switch (name) {
+            case "NewReno":
+                return new NewRenoCongestionController();
+            case "CUBIC":
+                return new CubicCongestionController();
+            case "BBR":
+                return new BbrCongestionController();
+            default:
+                return new RenoCongestionController();
+        }
+    }
+}
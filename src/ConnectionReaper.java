@@ -0,0 +1,145 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.*;
+
+// Heartbeats and idle eviction for every client connection, driven by one thread and one
+// TimerWheel instead of a timer per connection. Receiving a line only stores a timestamp
+// in the handler; the wheel holds one timer per connection, set to the earliest moment
+// something could be due, and when it fires the reaper looks at the timestamps and decides:
+//
+//   - no username or resume within `handshakeTimeout` of connecting: close the socket,
+//     which frees the admission thread waiting on it
+//   - silent for `heartbeat`: send "/ping", the client answers "/pong"
+//   - silent for `idleTimeout`: close the socket, which ends the handler's thread; a client
+//     with a session is detached and can still resume
+//   - detached for `sessionTimeout`: end the session, the user leaves
+//
+// Closing the socket does not need the handler's lock, so a handler stuck writing into
+// the full send buffer of a dead peer is freed too. Pings and session ends run on the
+// executor, never on the reaper thread.
+public class ConnectionReaper {
+
+    private static final long TICK_MILLIS = 250;
+    private static final int SLOTS = 256;
+
+    private final long heartbeatNanos;
+    private final long idleTimeoutNanos;
+    private final long handshakeTimeoutNanos;
+    private final long sessionTimeoutNanos;
+    private final Executor executor;
+    private final TimerWheel wheel = new TimerWheel(TICK_MILLIS * 1_000_000L, SLOTS, 1024);
+
+    // Timers are keyed by a slot rather than the client id. Ids only grow and the wheel's
+    // arrays follow the spread of its keys; slots are reused once their client unregisters,
+    // so the wheel stays as big as the most clients connected at once.
+    private final Map<Integer, Integer> slots = new ConcurrentHashMap<>(); // Client id -> slot
+    private final Map<Integer, ClientHandler> clients = new ConcurrentHashMap<>(); // Slot -> client
+    private int[] freeSlots = new int[64]; // Guarded by this
+    private int freeCount = 0;
+    private int nextSlot = 0;
+    private volatile long evictions = 0;
+
+    public ConnectionReaper(long heartbeatMillis, long idleTimeoutMillis, long handshakeTimeoutMillis,
+                            long sessionTimeoutMillis, Executor executor) {
+        this.heartbeatNanos = heartbeatMillis * 1_000_000L;
+        this.idleTimeoutNanos = idleTimeoutMillis * 1_000_000L;
+        this.handshakeTimeoutNanos = handshakeTimeoutMillis * 1_000_000L;
+        this.sessionTimeoutNanos = sessionTimeoutMillis * 1_000_000L;
+        this.executor = executor;
+        Thread thread = new Thread(this::run, "connection-reaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void register(ClientHandler client) {
+        int slot = freeCount > 0 ? freeSlots[--freeCount] : nextSlot++;
+        clients.put(slot, client);
+        slots.put(client.getId(), slot);
+        wheel.schedule(slot, client.getAcceptedAt() + handshakeTimeoutNanos);
+    }
+
+    // The connection became active again after its timer was set further out
+    public void touch(ClientHandler client) {
+        Integer slot = slots.get(client.getId());
+        if (slot != null) {
+            wheel.schedule(slot, System.nanoTime() + heartbeatNanos);
+        }
+    }
+
+    public synchronized void unregister(ClientHandler client) {
+        Integer slot = slots.remove(client.getId());
+        if (slot == null) {
+            return; // Already unregistered
+        }
+        clients.remove(slot);
+        wheel.cancel(slot);
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    private void run() {
+        while (true) {
+            long now = System.nanoTime();
+            wheel.expire(now, slot -> check(slot, now));
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // A slot reused since its timer was armed just has its new client checked early
+    private void check(int slot, long now) {
+        ClientHandler client = clients.get(slot);
+        if (client == null) {
+            return;
+        }
+        long next;
+        long detachedAt = client.getDetachedAt();
+        if (!client.isAdmitted()) {
+            long waited = now - client.getAcceptedAt();
+            if (waited >= handshakeTimeoutNanos) {
+                ServerLog.info("No handshake from {} in {n}s, disconnecting", client.describe(), waited / 1_000_000_000L);
+                evictions++;
+                client.dropConnection();
+                next = now + idleTimeoutNanos; // Gone by then
+            } else {
+                next = client.getAcceptedAt() + handshakeTimeoutNanos;
+            }
+        } else if (detachedAt != 0) {
+            if (now - detachedAt >= sessionTimeoutNanos) {
+                executor.execute(() -> client.expire(detachedAt));
+                next = now + sessionTimeoutNanos; // Unregistered before then
+            } else {
+                next = detachedAt + sessionTimeoutNanos;
+            }
+        } else {
+            long lastActivity = client.getLastActivity();
+            long idle = now - lastActivity;
+            if (idle >= idleTimeoutNanos) {
+                ServerLog.info("No traffic from {} for {n}s, disconnecting", client.describe(), idle / 1_000_000_000L);
+                evictions++;
+                client.dropConnection();
+                next = now + idleTimeoutNanos; // Detached or gone by then
+            } else if (idle >= heartbeatNanos) {
+                executor.execute(client::sendPing);
+                next = Math.min(lastActivity + idleTimeoutNanos, now + heartbeatNanos);
+            } else {
+                next = lastActivity + heartbeatNanos;
+            }
+        }
+        synchronized (this) {
+            // Unless the slot went to another client meanwhile, whose own timer must stand
+            if (clients.get(slot) == client) {
+                wheel.schedule(slot, next);
+            }
+        }
+    }
+}
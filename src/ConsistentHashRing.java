@@ -0,0 +1,61 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Maps keys (usernames) to nodes. Every node sits at VIRTUAL_NODES points on a 64-bit ring
+// and a key belongs to the first node point at or after its hash, so adding or removing a
+// node only moves the keys next to that node's points.
+public class ConsistentHashRing {
+
+    private static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, String> points = new TreeMap<>();
+    private final Set<String> nodes = new TreeSet<>();
+
+    public synchronized boolean add(String node) {
+        if (!nodes.add(node)) {
+            return false;
+        }
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            points.put(hash(node + "#" + i), node);
+        }
+        return true;
+    }
+
+    public synchronized boolean remove(String node) {
+        if (!nodes.remove(node)) {
+            return false;
+        }
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            points.remove(hash(node + "#" + i), node);
+        }
+        return true;
+    }
+
+    // Null when the ring is empty
+    public synchronized String ownerOf(String key) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = points.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : points.firstEntry().getValue();
+    }
+
+    public synchronized Set<String> getNodes() {
+        return new TreeSet<>(nodes);
+    }
+
+    // FNV-1a followed by the MurmurHash3 finalizer, so similar names spread over the whole ring
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,107 @@
+// CUBIC (RFC 8312): window grows as a cubic function of the time since the last loss,
+// independent of RTT, with a Reno-friendly lower bound
+public class CubicCongestionController implements CongestionController {
+
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+
+    private double cwnd = 1;
+    private int ssthresh = 32;
+    private double wMax = 0; // Window just before the last reduction
+    private double k = 0; // Seconds until the cubic curve reaches wMax again
+    private long epochStart = 0; // Start of the current congestion avoidance epoch (ms)
+    private double wEst = 0; // Reno-equivalent window for the TCP-friendly region
+    private long minRtt = Long.MAX_VALUE;
+    private boolean inFastRecovery = false;
+
+    @Override
+    public synchronized boolean onAck(int ackNum, int ackedSegments, long sampleRtt) {
+        if (sampleRtt > 0) {
+            minRtt = Math.min(minRtt, sampleRtt);
+        }
+
+        if (inFastRecovery) {
+            inFastRecovery = false;
+            return false;
+        }
+
+        if (cwnd < ssthresh) {
+            cwnd = Math.min(cwnd + ackedSegments, MAX_CWND);
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        if (epochStart == 0) {
+            epochStart = now;
+            if (cwnd < wMax) {
+                k = Math.cbrt((wMax - cwnd) / C);
+            } else {
+                k = 0;
+                wMax = cwnd;
+            }
+            wEst = cwnd;
+        }
+
+        double rttSeconds = (minRtt == Long.MAX_VALUE ? 100 : minRtt) / 1000.0;
+        double t = (now - epochStart) / 1000.0 + rttSeconds;
+        double target = C * Math.pow(t - k, 3) + wMax;
+
+        // TCP-friendly estimate grows like Reno with the CUBIC backoff factor
+        wEst += 3 * (1 - BETA) / (1 + BETA) * ackedSegments / cwnd;
+
+        if (target > cwnd) {
+            cwnd += (target - cwnd) / cwnd * ackedSegments;
+        } else {
+            cwnd += 0.01 * ackedSegments / cwnd;
+        }
+        cwnd = Math.max(cwnd, wEst);
+        cwnd = Math.min(cwnd, MAX_CWND);
+        return false;
+    }
+
+    @Override
+    public synchronized void onDuplicateAck() {
+        // No window inflation, CUBIC reduces once per loss event
+    }
+
+    @Override
+    public synchronized void onLoss(int highestSent) {
+        if (inFastRecovery) {
+            return;
+        }
+        epochStart = 0;
+        // Fast convergence: release bandwidth if the previous maximum was not reached
+        if (cwnd < wMax) {
+            wMax = cwnd * (1 + BETA) / 2;
+        } else {
+            wMax = cwnd;
+        }
+        cwnd = Math.max(cwnd * BETA, 2);
+        ssthresh = (int) cwnd;
+        inFastRecovery = true;
+    }
+
+    @Override
+    public synchronized void onTimeout() {
+        epochStart = 0;
+        wMax = cwnd;
+        ssthresh = Math.max((int) (cwnd * BETA), 2);
+        cwnd = 1;
+        inFastRecovery = false;
+    }
+
+    @Override
+    public synchronized int getCwnd() {
+        return Math.max(1, (int) cwnd);
+    }
+
+    @Override
+    public synchronized int getSsthresh() {
+        return ssthresh;
+    }
+
+    @Override
+    public String getName() {
+        return "CUBIC";
+    }
+}
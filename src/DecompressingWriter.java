@@ -0,0 +1,105 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Receiving end of CompressingSource. Takes the in-order stream a TCPRenoReceiver
+// reassembles, cuts it back into frames and writes each inflated block at its place in
+// the file as soon as the block is complete.
+public class DecompressingWriter implements Closeable {
+
+    private final FileChannel channel;
+    private final ByteRanges ranges;
+    private final Inflater inflater = new Inflater();
+
+    private final byte[] header = new byte[CompressingSource.HEADER_SIZE];
+    private int headerFill = 0;
+    private final byte[] payload = new byte[CompressingSource.BLOCK_SIZE];
+    private int payloadLength;
+    private int payloadFill;
+    private int rawLength;
+    private final byte[] raw = new byte[CompressingSource.BLOCK_SIZE];
+
+    private long fileBytesWritten = 0;
+
+    public DecompressingWriter(FileChannel channel, ByteRanges ranges) {
+        this.channel = channel;
+        this.ranges = ranges;
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (headerFill < header.length) {
+                int n = Math.min(length, header.length - headerFill);
+                System.arraycopy(data, offset, header, headerFill, n);
+                headerFill += n;
+                offset += n;
+                length -= n;
+                if (headerFill == header.length) {
+                    rawLength = CompressingSource.getInt(header, 0);
+                    payloadLength = CompressingSource.getInt(header, 4);
+                    payloadFill = 0;
+                    if (rawLength <= 0 || rawLength > raw.length || payloadLength <= 0 || payloadLength > rawLength) {
+                        throw new IOException("Corrupt compressed frame: " + rawLength + "/" + payloadLength);
+                    }
+                }
+                continue;
+            }
+            int n = Math.min(length, payloadLength - payloadFill);
+            System.arraycopy(data, offset, payload, payloadFill, n);
+            payloadFill += n;
+            offset += n;
+            length -= n;
+            if (payloadFill == payloadLength) {
+                writeBlock();
+                headerFill = 0;
+            }
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (payloadLength == rawLength) {
+            // Stored, the data did not compress
+            writeToFile(payload, rawLength);
+            return;
+        }
+        inflater.reset();
+        inflater.setInput(payload, 0, payloadLength);
+        int inflated = 0;
+        try {
+            while (!inflater.finished() && inflated < rawLength) {
+                int n = inflater.inflate(raw, inflated, rawLength - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed block: " + e.getMessage());
+        }
+        if (inflated != rawLength || !inflater.finished()) {
+            throw new IOException("Compressed block inflated to " + inflated + " bytes, expected " + rawLength);
+        }
+        writeToFile(raw, rawLength);
+    }
+
+    // Blocks never cross a range boundary
+    private void writeToFile(byte[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        long target = ranges.fileOffset(fileBytesWritten);
+        while (buffer.hasRemaining()) {
+            target += channel.write(buffer, target);
+        }
+        fileBytesWritten += length;
+    }
+
+    public long getFileBytesWritten() {
+        return fileBytesWritten;
+    }
+
+    @Override
+    public void close() {
+        inflater.end();
+    }
+}
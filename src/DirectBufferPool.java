@@ -0,0 +1,33 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Keeps released direct buffers for the next transfer. Direct memory is slow to
+// allocate and only given back when the GC gets around to the buffer object, so
+// senders borrow their segment storage from here instead of allocating per transfer.
+public class DirectBufferPool {
+
+    private static final int MAX_POOLED_PER_SIZE = 16;
+
+    private static final Map<Integer, BlockingQueue<ByteBuffer>> pools = new ConcurrentHashMap<>();
+
+    public static ByteBuffer acquire(int size) {
+        ByteBuffer buffer = queueFor(size).poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    // The caller must not touch the buffer, or slices of it, afterwards
+    public static void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect()) {
+            queueFor(buffer.capacity()).offer(buffer); // Dropped when the pool is full
+        }
+    }
+
+    private static BlockingQueue<ByteBuffer> queueFor(int size) {
+        return pools.computeIfAbsent(size, s -> new ArrayBlockingQueue<>(MAX_POOLED_PER_SIZE));
+    }
+}
@@ -0,0 +1,41 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// The ranges of a file as they are, one positional read per segment
+public class FileRangeSource implements SegmentSource {
+
+    private final FileChannel channel;
+    private final ByteRanges ranges;
+    private long position = 0;
+
+    public FileRangeSource(FileChannel channel, ByteRanges ranges) {
+        this.channel = channel;
+        this.ranges = ranges;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (position >= ranges.getTotalLength()) {
+            return -1;
+        }
+        // Segments never cross a range boundary
+        long fileOffset = ranges.fileOffset(position);
+        dst.limit(dst.position() + (int) Math.min(dst.remaining(), ranges.remainingInRange(position)));
+        int read = 0;
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, fileOffset + read);
+            if (n < 0) {
+                throw new EOFException("File ended at " + (fileOffset + read) + ", was it truncated?");
+            }
+            read += n;
+        }
+        position += read;
+        return read;
+    }
+
+    @Override
+    public long getFileBytesRead() {
+        return position;
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Sends one file to many recipients from one listening port. Each recipient connects a
+// single stream, the same as ParallelFileTransfer.receive with one stream, and is served
+// on its own thread by its own TCPRenoSender with its own congestion window, so a slow or
+// lossy recipient only slows down itself.
+//
+// The file is mapped once and its manifest computed once from the mapping for all of them.
+// The senders copy their segments straight from that mapping, so the file is read from
+// disk once however many recipients there are, and each recipient still gets only the
+// chunks it is missing. The data goes uncompressed: every stream would deflate the same
+// blocks again.
+public class GroupFileTransfer {
+
+    public static class Result {
+        public final int recipients;
+        public final int accepted;
+        public final int completed;
+
+        Result(int recipients, int accepted, int completed) {
+            this.recipients = recipients;
+            this.accepted = accepted;
+            this.completed = completed;
+        }
+    }
+
+    // Accepts up to `recipients` connections on serverSocket within its accept timeout, counted
+    // from now for all of them together, and serves each one as it arrives. Returns once every
+    // accepted recipient is done. Progress is summed over all recipients, out of what those who
+    // accepted are missing; a recipient that fails is reported to the listener's onFailure.
+    public static Result send(ServerSocket serverSocket, File file, int recipients, String algorithm,
+                              BandwidthScheduler.Share bandwidthShare, TransferTelemetry telemetry,
+                              TransferListener listener) throws IOException {
+        long window = serverSocket.getSoTimeout();
+        long deadline = System.currentTimeMillis() + (window > 0 ? window : Long.MAX_VALUE / 2);
+        List<Socket> sockets = new ArrayList<>();
+        ExecutorService pool = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "group-send");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (MappedFile mapping = new MappedFile(file)) {
+            ChunkManifest manifest = ChunkManifest.compute(mapping, ChunkManifest.DEFAULT_CHUNK_SIZE);
+            byte[] manifestBytes = manifest.toBytes();
+            // Counted as if everyone wants all of it, and shrunk as they decline or turn out to
+            // have part of it already
+            ParallelFileTransfer.AggregateListener aggregate = new ParallelFileTransfer.AggregateListener(
+                    listener, recipients, 0, recipients * manifest.getFileSize());
+
+            List<Future<Boolean>> results = new ArrayList<>();
+            while (sockets.size() < recipients) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                serverSocket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketTimeoutException e) {
+                    break; // The rest did not accept the offer
+                }
+                int index = sockets.size();
+                sockets.add(socket);
+                results.add(pool.submit(() -> serve(socket, index, file, mapping, manifest, manifestBytes, algorithm,
+                        bandwidthShare, telemetry, aggregate)));
+            }
+            aggregate.shrinkTotal((recipients - sockets.size()) * manifest.getFileSize());
+            if (results.isEmpty()) {
+                throw new SocketTimeoutException("Nobody accepted the file");
+            }
+
+            int accepted = 0;
+            int completed = 0;
+            for (Future<Boolean> result : results) {
+                try {
+                    if (result.get()) {
+                        completed++;
+                    }
+                    accepted++;
+                } catch (ExecutionException e) {
+                    // EOF in the handshake: connected and closed again, i.e. declined
+                    Throwable cause = e.getCause();
+                    if (!(cause instanceof EOFException)) {
+                        accepted++;
+                        listener.onFailure(cause.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            return new Result(recipients, accepted, completed);
+        } finally {
+            pool.shutdownNow();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    // The ParallelFileTransfer handshake for a single stream, then the data. Closes the socket
+    // when done: the receiver lingers until it sees the end of the stream.
+    private static boolean serve(Socket socket, int index, File file, MappedFile mapping, ChunkManifest manifest,
+                                 byte[] manifestBytes, String algorithm, BandwidthScheduler.Share bandwidthShare,
+                                 TransferTelemetry telemetry, ParallelFileTransfer.AggregateListener aggregate)
+            throws IOException {
+        try (socket) {
+            ByteRanges ranges;
+            try {
+                socket.setSoTimeout(ParallelFileTransfer.HANDSHAKE_TIMEOUT);
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream fields = new DataInputStream(new ByteArrayInputStream(ParallelFileTransfer.readControlFrame(in)));
+                int streamIndex = fields.readInt();
+                int streams = fields.readInt();
+                if (streams != 1 || streamIndex != 0) {
+                    throw new IOException("Group sends take one stream per recipient, got " + streams);
+                }
+                ParallelFileTransfer.writeControlFrame(out, ParallelFileTransfer.intPayload(ParallelFileTransfer.CODEC_NONE));
+                ParallelFileTransfer.writeControlFrame(out, manifestBytes);
+
+                socket.setSoTimeout(ParallelFileTransfer.MANIFEST_TIMEOUT);
+                BitSet needed = BitSet.valueOf(ParallelFileTransfer.readControlFrame(in));
+                ranges = manifest.split(needed, 1)[0];
+            } catch (IOException e) {
+                // Declined or gone before the data, nothing goes to this one
+                aggregate.shrinkTotal(manifest.getFileSize());
+                throw e;
+            }
+            // Only the chunks it is missing go to it
+            aggregate.shrinkTotal(manifest.getFileSize() - ranges.getTotalLength());
+
+            TCPRenoSender sender = new TCPRenoSender(socket, file, ranges, CongestionController.create(algorithm),
+                    aggregate.forStream(index));
+            sender.setMappedFile(mapping);
+            sender.setBandwidthShare(bandwidthShare);
+            sender.setTelemetry(telemetry, index);
+            return sender.sendFileWithCongestionControl();
+        }
+    }
+}
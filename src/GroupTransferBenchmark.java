@@ -0,0 +1,140 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Sends one file to several recipients, each behind its own NetworkEmulator, once as that
+// many separate ParallelFileTransfer sends and once as a GroupFileTransfer, and reports
+// when each recipient had the whole file. The last recipient is the slow one: its link is
+// capped at --slow-bandwidth and loses --slow-loss of its frames, the others only get --rtt.
+// The fast recipients should finish in about the same time with or without it.
+//
+// Usage: java GroupTransferBenchmark [--size=16384] [--recipients=4] [--rtt=10]
+//            [--slow-bandwidth=512] [--slow-loss=0.02] [--algorithm=CUBIC] [--seed=42]
+// Size and bandwidth are in KB and KB/s, RTT in ms.
+public class GroupTransferBenchmark {
+
+    private static final long TRANSFER_TIMEOUT = 300000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+
+        long size = Long.parseLong(options.getOrDefault("size", "16384")) * 1024;
+        int recipients = Integer.parseInt(options.getOrDefault("recipients", "4"));
+        String algorithm = options.getOrDefault("algorithm", "CUBIC");
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+
+        NetworkEmulator.Config[] configs = new NetworkEmulator.Config[recipients];
+        for (int i = 0; i < recipients; i++) {
+            configs[i] = new NetworkEmulator.Config();
+            configs[i].latencyMs = Long.parseLong(options.getOrDefault("rtt", "10")) / 2;
+            configs[i].seed = seed + i;
+        }
+        configs[recipients - 1].bandwidthBytesPerSec = Long.parseLong(options.getOrDefault("slow-bandwidth", "512")) * 1024;
+        configs[recipients - 1].lossRate = Double.parseDouble(options.getOrDefault("slow-loss", "0.02"));
+
+        // The sender logs every retransmission, keep the report readable
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        File source = TransferBenchmark.createTestFile(size, seed, false);
+        report.printf("%-9s %9s %10s %4s%n", "mode", "recipient", "time_ms", "ok");
+        for (String mode : new String[]{"separate", "group"}) {
+            long[] times = run(mode.equals("group"), source, algorithm, configs);
+            for (int i = 0; i < recipients; i++) {
+                report.printf("%-9s %9s %10d %4s%n", mode, i == recipients - 1 ? i + " slow" : i,
+                        Math.abs(times[i]), times[i] >= 0 ? "yes" : "NO");
+            }
+        }
+        source.delete();
+        System.setOut(report);
+    }
+
+    // Milliseconds until each recipient had the file, negative if it did not get it intact
+    private static long[] run(boolean group, File source, String algorithm, NetworkEmulator.Config[] configs)
+            throws Exception {
+        int recipients = configs.length;
+        List<Closeable> resources = new ArrayList<>();
+        List<Thread> senders = new ArrayList<>();
+        int[] ports = new int[recipients];
+        try {
+            ServerSocket groupServer = null;
+            if (group) {
+                groupServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+                groupServer.setSoTimeout((int) TRANSFER_TIMEOUT);
+                resources.add(groupServer);
+                ServerSocket server = groupServer;
+                senders.add(new Thread(() -> {
+                    try {
+                        GroupFileTransfer.send(server, source, recipients, algorithm, null, null, TransferListener.NONE);
+                    } catch (IOException e) {
+                        System.err.println("Sender error: " + e.getMessage());
+                    }
+                }));
+            }
+            for (int i = 0; i < recipients; i++) {
+                ServerSocket server = groupServer;
+                if (!group) {
+                    server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+                    resources.add(server);
+                    ServerSocket own = server;
+                    senders.add(new Thread(() -> {
+                        try {
+                            ParallelFileTransfer.send(own, source, 1, algorithm, false, null, null, TransferListener.NONE);
+                        } catch (IOException e) {
+                            System.err.println("Sender error: " + e.getMessage());
+                        }
+                    }));
+                }
+                NetworkEmulator emulator = new NetworkEmulator("127.0.0.1", server.getLocalPort(), configs[i]);
+                emulator.start();
+                resources.add(emulator);
+                ports[i] = emulator.getPort();
+            }
+
+            long start = System.nanoTime();
+            senders.forEach(Thread::start);
+            long[] times = new long[recipients];
+            ExecutorService receivers = Executors.newFixedThreadPool(recipients);
+            List<Future<?>> done = new ArrayList<>();
+            for (int i = 0; i < recipients; i++) {
+                int index = i;
+                done.add(receivers.submit(() -> {
+                    File target = File.createTempFile("bench-recv", ".bin");
+                    try {
+                        ParallelFileTransfer.receive("127.0.0.1", ports[index], target, source.length(), 1,
+                                TransferListener.NONE);
+                        times[index] = (System.nanoTime() - start) / 1_000_000;
+                        if (Files.mismatch(source.toPath(), target.toPath()) != -1) {
+                            times[index] = -times[index];
+                        }
+                    } catch (IOException e) {
+                        times[index] = -(System.nanoTime() - start) / 1_000_000;
+                        System.err.println("Receiver error: " + e.getMessage());
+                    } finally {
+                        target.delete();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get(TRANSFER_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            receivers.shutdown();
+            for (Thread sender : senders) {
+                sender.join(TRANSFER_TIMEOUT);
+            }
+            return times;
+        } finally {
+            for (Closeable resource : resources) {
+                resource.close();
+            }
+        }
+    }
+}
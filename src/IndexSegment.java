@@ -0,0 +1,367 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.IntConsumer;
+
+// One immutable piece of the search index on disk, covering the documents minDoc..maxDoc.
+// The file is memory-mapped and read in place, nothing but the mapping is kept on the heap.
+//
+//   header      magic, minDoc, maxDoc, termCount, tableOffset (int each), 12 bytes unused
+//   postings    per term: blocks of BLOCK document ids as varint deltas, then its skip
+//               table of (last doc, end offset) ints, one pair per block
+//   dictionary  per term, sorted by UTF-8 bytes: length (short), bytes, blocksStart,
+//               skipStart, docCount, blockCount (int each)
+//   table       offset of every dictionary entry, for binary search
+//
+// The skip table lets a lookup decode only the block that can hold the document it is
+// after, so intersecting a rare term with a common one costs about as much as the rare one.
+// Offsets are ints, SearchIndex keeps segments below 1 GB.
+public class IndexSegment {
+
+    static final int BLOCK = 128;
+    private static final int MAGIC = 0x43484958; // "CHIX"
+    private static final int HEADER = 32;
+
+    private final File file;
+    private final MappedByteBuffer map;
+    private final int minDoc;
+    private final int maxDoc;
+    private final int termCount;
+    private final int tableOffset;
+
+    private IndexSegment(File file) throws IOException {
+        this.file = file;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        if (map.capacity() < HEADER || map.getInt(0) != MAGIC) {
+            throw new IOException("Not an index segment: " + file);
+        }
+        minDoc = map.getInt(4);
+        maxDoc = map.getInt(8);
+        termCount = map.getInt(12);
+        tableOffset = map.getInt(16);
+    }
+
+    public static IndexSegment open(File file) throws IOException {
+        return new IndexSegment(file);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getMinDoc() {
+        return minDoc;
+    }
+
+    public int getMaxDoc() {
+        return maxDoc;
+    }
+
+    public long getBytes() {
+        return map.capacity();
+    }
+
+    // Null if no document in this segment has the term
+    public SearchIndex.Postings postings(String term) {
+        int index = find(term.getBytes(StandardCharsets.UTF_8));
+        return index < 0 ? null : new BlockPostings(entry(index));
+    }
+
+    private int find(byte[] term) {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareTerm(entry(mid), term);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int entry(int index) {
+        return map.getInt(tableOffset + 4 * index);
+    }
+
+    private int compareTerm(int entry, byte[] term) {
+        int length = map.getShort(entry) & 0xFFFF;
+        int n = Math.min(length, term.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = Integer.compare(map.get(entry + 2 + i) & 0xFF, term[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, term.length);
+    }
+
+    private byte[] termBytes(int entry) {
+        byte[] term = new byte[map.getShort(entry) & 0xFFFF];
+        for (int i = 0; i < term.length; i++) {
+            term[i] = map.get(entry + 2 + i);
+        }
+        return term;
+    }
+
+    private int readVarint(int[] position) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = map.get(position[0]++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    // Postings of one term, read straight from the mapping
+    private class BlockPostings implements SearchIndex.Postings {
+        private final int blocksStart;
+        private final int skipStart;
+        private final int docCount;
+        private final int blockCount;
+        private final int[] docs = new int[BLOCK];
+        private int loadedBlock = -1;
+        private int loadedCount = 0;
+
+        BlockPostings(int entry) {
+            int fields = entry + 2 + (map.getShort(entry) & 0xFFFF);
+            blocksStart = map.getInt(fields);
+            skipStart = map.getInt(fields + 4);
+            docCount = map.getInt(fields + 8);
+            blockCount = map.getInt(fields + 12);
+        }
+
+        @Override
+        public int size() {
+            return docCount;
+        }
+
+        @Override
+        public int floor(int target) {
+            // First block ending at or after target
+            int low = 0;
+            int high = blockCount - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (lastDoc(mid) < target) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (lastDoc(low) <= target) {
+                return lastDoc(low);
+            }
+            load(low);
+            int index = Arrays.binarySearch(docs, 0, loadedCount, target);
+            if (index >= 0) {
+                return docs[index];
+            }
+            int before = -index - 2;
+            if (before >= 0) {
+                return docs[before];
+            }
+            return low == 0 ? -1 : lastDoc(low - 1);
+        }
+
+        void forEach(IntConsumer action) {
+            for (int block = 0; block < blockCount; block++) {
+                load(block);
+                for (int i = 0; i < loadedCount; i++) {
+                    action.accept(docs[i]);
+                }
+            }
+        }
+
+        private int lastDoc(int block) {
+            return map.getInt(skipStart + 8 * block);
+        }
+
+        private void load(int block) {
+            if (block == loadedBlock) {
+                return;
+            }
+            int[] position = {block == 0 ? blocksStart : map.getInt(skipStart + 8 * (block - 1) + 4)};
+            int end = map.getInt(skipStart + 8 * block + 4);
+            int doc = block == 0 ? -1 : lastDoc(block - 1);
+            int n = 0;
+            while (position[0] < end) {
+                doc += readVarint(position);
+                docs[n++] = doc;
+            }
+            loadedBlock = block;
+            loadedCount = n;
+        }
+    }
+
+    // Writes `segments` (adjacent, in document order) into one new segment
+    public static void merge(List<IndexSegment> segments, File target) throws IOException {
+        PriorityQueue<TermCursor> cursors = new PriorityQueue<>((a, b) -> {
+            int cmp = Arrays.compareUnsigned(a.term, b.term);
+            return cmp != 0 ? cmp : Integer.compare(a.order, b.order);
+        });
+        for (int i = 0; i < segments.size(); i++) {
+            TermCursor cursor = new TermCursor(segments.get(i), i);
+            if (cursor.next()) {
+                cursors.add(cursor);
+            }
+        }
+        try (Writer writer = new Writer(target, segments.get(0).minDoc, segments.get(segments.size() - 1).maxDoc)) {
+            List<TermCursor> same = new ArrayList<>();
+            while (!cursors.isEmpty()) {
+                // Segments holding the smallest term come off the queue in document order
+                same.clear();
+                same.add(cursors.poll());
+                byte[] term = same.get(0).term;
+                while (!cursors.isEmpty() && Arrays.equals(cursors.peek().term, term)) {
+                    same.add(cursors.poll());
+                }
+                writer.startTerm(term);
+                for (TermCursor cursor : same) {
+                    cursor.postings().forEach(writer::add);
+                    if (cursor.next()) {
+                        cursors.add(cursor);
+                    }
+                }
+                writer.endTerm();
+            }
+        }
+    }
+
+    private static class TermCursor {
+        final IndexSegment segment;
+        final int order;
+        int index = -1;
+        byte[] term;
+
+        TermCursor(IndexSegment segment, int order) {
+            this.segment = segment;
+            this.order = order;
+        }
+
+        boolean next() {
+            if (++index >= segment.termCount) {
+                return false;
+            }
+            term = segment.termBytes(segment.entry(index));
+            return true;
+        }
+
+        BlockPostings postings() {
+            return segment.new BlockPostings(segment.entry(index));
+        }
+    }
+
+    // Streams a segment to disk, terms must come in UTF-8 byte order and documents in
+    // increasing order. Only the dictionary is held in memory until the end.
+    static class Writer implements Closeable {
+        private final File file;
+        private final int minDoc;
+        private final int maxDoc;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        private final DataOutputStream dictionaryOut = new DataOutputStream(dictionary);
+        private final List<Integer> entries = new ArrayList<>();
+
+        private byte[] term;
+        private int blocksStart;
+        private int docCount;
+        private int lastDoc;
+        private int[] skip = new int[16];
+        private int skipLength;
+
+        Writer(File file, int minDoc, int maxDoc) throws IOException {
+            this.file = file;
+            this.minDoc = minDoc;
+            this.maxDoc = maxDoc;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out.write(new byte[HEADER]);
+        }
+
+        void startTerm(byte[] term) {
+            this.term = term;
+            blocksStart = out.size();
+            docCount = 0;
+            lastDoc = -1;
+            skipLength = 0;
+        }
+
+        void add(int doc) {
+            try {
+                writeVarint(doc - lastDoc);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            lastDoc = doc;
+            if (++docCount % BLOCK == 0) {
+                endBlock();
+            }
+        }
+
+        private void endBlock() {
+            if (skipLength == skip.length) {
+                skip = Arrays.copyOf(skip, skip.length * 2);
+            }
+            skip[skipLength++] = lastDoc;
+            skip[skipLength++] = out.size();
+        }
+
+        void endTerm() throws IOException {
+            if (docCount == 0) {
+                return;
+            }
+            if (docCount % BLOCK != 0) {
+                endBlock();
+            }
+            int skipStart = out.size();
+            for (int i = 0; i < skipLength; i++) {
+                out.writeInt(skip[i]);
+            }
+            entries.add(dictionaryOut.size());
+            dictionaryOut.writeShort(term.length);
+            dictionaryOut.write(term);
+            dictionaryOut.writeInt(blocksStart);
+            dictionaryOut.writeInt(skipStart);
+            dictionaryOut.writeInt(docCount);
+            dictionaryOut.writeInt(skipLength / 2);
+        }
+
+        private void writeVarint(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        @Override
+        public void close() throws IOException {
+            int dictionaryStart = out.size();
+            dictionary.writeTo(out);
+            int tableOffset = out.size();
+            for (int entry : entries) {
+                out.writeInt(dictionaryStart + entry);
+            }
+            out.close();
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.writeInt(MAGIC);
+                raf.writeInt(minDoc);
+                raf.writeInt(maxDoc);
+                raf.writeInt(entries.size());
+                raf.writeInt(tableOffset);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.*;
+import java.util.*;
+
+// Client side of MessageTrace: the timestamps of the last messages received, in a ring of
+// primitive columns like TransferTelemetry, split into the stages of the path. The
+// diagnostics pane shows a histogram and percentiles of each stage over the latest WINDOW
+// messages; the whole ring can be exported as CSV.
+//
+// Also keeps the offset of the server's clock, from the /clock exchange with the lowest
+// round trip among the last few.
+public class LatencyTracker {
+
+    public static final String[] STAGES = {"client to server", "server relay", "server to client", "client display", "end to end"};
+    // Upper bounds of the histogram buckets in ms, the last bucket takes everything above
+    public static final double[] BUCKETS = {0.1, 0.25, 0.5, 1, 2.5, 5, 10, 25, 50, 100, 250, 500, 1000};
+    public static final int WINDOW = 1000;
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int CLOCK_SAMPLES = 12;
+
+    private final String[] ids = new String[CAPACITY];
+    // Server clock, microseconds since the epoch
+    private final long[] sent = new long[CAPACITY];
+    private final long[] received = new long[CAPACITY];
+    private final long[] fannedOut = new long[CAPACITY];
+    private final long[] read = new long[CAPACITY];
+    private final long[] displayed = new long[CAPACITY];
+    private long recorded = 0;
+
+    private final long[] clockRtts = new long[CLOCK_SAMPLES];
+    private final long[] clockOffsets = new long[CLOCK_SAMPLES];
+    private int clockSamples = 0;
+    private volatile long offset = 0; // Server clock minus ours
+
+    // A "/clock" answer: our time when we asked, the server's, and ours now
+    public synchronized void clockSample(long asked, long server, long answered) {
+        int i = clockSamples++ % CLOCK_SAMPLES;
+        clockRtts[i] = answered - asked;
+        clockOffsets[i] = server - (asked + answered) / 2;
+        int best = 0;
+        for (int j = 1; j < Math.min(clockSamples, CLOCK_SAMPLES); j++) {
+            if (clockRtts[j] < clockRtts[best]) {
+                best = j;
+            }
+        }
+        offset = clockOffsets[best];
+    }
+
+    // Now on the server's clock
+    public long serverNow() {
+        return MessageTrace.now() + offset;
+    }
+
+    public synchronized void record(String id, long sentAt, long receivedAt, long fannedOutAt, long readAt,
+                                    long displayedAt) {
+        int i = (int) (recorded++ & (CAPACITY - 1));
+        ids[i] = id;
+        sent[i] = sentAt;
+        received[i] = receivedAt;
+        fannedOut[i] = fannedOutAt;
+        read[i] = readAt;
+        displayed[i] = displayedAt;
+    }
+
+    public synchronized long getRecorded() {
+        return recorded;
+    }
+
+    // Microseconds the message at slot i spent in a stage; negative when the clock offset
+    // was off by more than the stage took
+    private long duration(int stage, int i) {
+        switch (stage) {
+            case 0: return received[i] - sent[i];
+            case 1: return fannedOut[i] - received[i];
+            case 2: return read[i] - fannedOut[i];
+            case 3: return displayed[i] - read[i];
+            default: return displayed[i] - sent[i];
+        }
+    }
+
+    // Sorted durations of a stage over the window, clamped at 0
+    private long[] window(int stage) {
+        int n = (int) Math.min(recorded, WINDOW);
+        long[] values = new long[n];
+        for (int k = 0; k < n; k++) {
+            values[k] = Math.max(0, duration(stage, (int) ((recorded - 1 - k) & (CAPACITY - 1))));
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    // Percent of the window's messages in each bucket, BUCKETS.length + 1 of them
+    public synchronized double[] histogram(int stage) {
+        long[] values = window(stage);
+        double[] shares = new double[BUCKETS.length + 1];
+        int bucket = 0;
+        for (long value : values) {
+            while (bucket < BUCKETS.length && value > BUCKETS[bucket] * 1000) {
+                bucket++;
+            }
+            shares[bucket] += 100.0 / values.length;
+        }
+        return shares;
+    }
+
+    // Microseconds, per quantile (e.g. 0.5, 0.99); -1 without samples
+    public synchronized long[] percentiles(int stage, double... quantiles) {
+        long[] values = window(stage);
+        long[] result = new long[quantiles.length];
+        for (int q = 0; q < quantiles.length; q++) {
+            result[q] = values.length == 0 ? -1 : values[(int) Math.min(values.length - 1, quantiles[q] * values.length)];
+        }
+        return result;
+    }
+
+    // Every retained message, oldest first, times in microseconds on the server's clock
+    public synchronized void exportCsv(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            out.println("id,sent_us,received_us,fanned_out_us,read_us,displayed_us,"
+                    + "client_to_server_us,server_relay_us,server_to_client_us,client_display_us,end_to_end_us");
+            for (long r = Math.max(0, recorded - CAPACITY); r < recorded; r++) {
+                int i = (int) (r & (CAPACITY - 1));
+                out.print(ids[i] + "," + sent[i] + "," + received[i] + "," + fannedOut[i] + "," + read[i] + "," + displayed[i]);
+                for (int stage = 0; stage < STAGES.length; stage++) {
+                    out.print("," + duration(stage, i));
+                }
+                out.println();
+            }
+        }
+    }
+}
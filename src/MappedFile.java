@@ -0,0 +1,71 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Checksum;
+
+// A file mapped read-only once and read by any number of threads at their own offsets,
+// for sending one file to many recipients: the pages come from disk the first time any
+// reader touches them and from the page cache for every other one, with no read call and
+// no copy into a per-stream buffer on the way. Mapped in regions of REGION_SIZE, a single
+// MappedByteBuffer is limited to 2 GB.
+//
+// The mapping goes away when the GC collects it; close() only drops our references.
+public class MappedFile implements Closeable {
+
+    // A multiple of ChunkManifest.DEFAULT_CHUNK_SIZE, so chunks never straddle two regions
+    private static final long REGION_SIZE = 1L << 30;
+
+    private final long size;
+    private MappedByteBuffer[] regions;
+
+    public MappedFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            size = channel.size();
+            regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+            for (int i = 0; i < regions.length; i++) {
+                long offset = i * REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(REGION_SIZE, size - offset));
+            }
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    // Copies length bytes at offset into dst at its position, and advances it. Only absolute
+    // gets on the shared buffers, so concurrent readers never disturb each other.
+    public void read(long offset, ByteBuffer dst, int length) throws IOException {
+        if (offset < 0 || offset + length > size) {
+            throw new EOFException("Read of " + length + " bytes at " + offset + " beyond " + size);
+        }
+        while (length > 0) {
+            MappedByteBuffer region = regions[(int) (offset / REGION_SIZE)];
+            int inRegion = (int) (offset % REGION_SIZE);
+            int n = Math.min(length, region.capacity() - inRegion);
+            dst.put(dst.position(), region, inRegion, n);
+            dst.position(dst.position() + n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    // Feeds length bytes at offset to checksum, straight from the mapping
+    public void update(Checksum checksum, long offset, long length) {
+        while (length > 0) {
+            MappedByteBuffer region = regions[(int) (offset / REGION_SIZE)];
+            int inRegion = (int) (offset % REGION_SIZE);
+            int n = (int) Math.min(length, region.capacity() - inRegion);
+            checksum.update(region.slice(inRegion, n));
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void close() {
+        regions = new MappedByteBuffer[0];
+    }
+}
@@ -0,0 +1,32 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+// The ranges of a file as they are, copied from a MappedFile that other senders share
+public class MappedFileSource implements SegmentSource {
+
+    private final MappedFile file;
+    private final ByteRanges ranges;
+    private long position = 0;
+
+    public MappedFileSource(MappedFile file, ByteRanges ranges) {
+        this.file = file;
+        this.ranges = ranges;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (position >= ranges.getTotalLength()) {
+            return -1;
+        }
+        // Segments never cross a range boundary
+        int length = (int) Math.min(dst.remaining(), ranges.remainingInRange(position));
+        file.read(ranges.fileOffset(position), dst, length);
+        position += length;
+        return length;
+    }
+
+    @Override
+    public long getFileBytesRead() {
+        return position;
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.*;
+
+// Messages longer than the server accepts in one line travel as fragments,
+//
+//   /part <id> <index>/<count> <text>
+//
+// sent one after the other as ordinary public or private messages, so the server relays,
+// records and queues each one like any other message and never holds more than a line.
+// The receiving client puts them back together per sender. A message that only looks like
+// a fragment is sent as a fragment of one, so it is never mistaken for part of another.
+public class MessageParts {
+
+    public static final String PREFIX = "/part ";
+    public static final int MAX_PARTS = 256;
+    // Room for the "/part" header in front of each fragment's text
+    public static final int HEADER_LENGTH = 32;
+    // Messages being reassembled at once, the oldest is dropped beyond that
+    private static final int MAX_PENDING = 8;
+
+    // Null when the text does not fit in MAX_PARTS fragments of `capacity` characters
+    public static List<String> split(String text, int id, int capacity) {
+        if (text.length() <= capacity && !text.startsWith(PREFIX)) {
+            return Collections.singletonList(text);
+        }
+        List<String> pieces = new ArrayList<>();
+        for (int start = 0; start < text.length(); ) {
+            int end = Math.min(start + capacity, text.length());
+            // Never between the two halves of a surrogate pair
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1)) && end - 1 > start) {
+                end--;
+            }
+            pieces.add(text.substring(start, end));
+            start = end;
+            if (pieces.size() > MAX_PARTS) {
+                return null;
+            }
+        }
+        List<String> parts = new ArrayList<>(pieces.size());
+        for (int i = 0; i < pieces.size(); i++) {
+            parts.add(PREFIX + id + " " + (i + 1) + "/" + pieces.size() + " " + pieces.get(i));
+        }
+        return parts;
+    }
+
+    public static boolean isPart(String text) {
+        return text.startsWith(PREFIX);
+    }
+
+    // Collects the fragments of the messages from every sender, not thread-safe
+    public static class Assembler {
+        private final Map<String, Pending> pending = new LinkedHashMap<String, Pending>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Pending> eldest) {
+                return size() > MAX_PENDING;
+            }
+        };
+
+        private static class Pending {
+            final String[] pieces;
+            int received;
+
+            Pending(int count) {
+                pieces = new String[count];
+            }
+        }
+
+        // The whole message once its last fragment is in, otherwise null. A malformed
+        // fragment comes back as it is.
+        public String add(String sender, String part) {
+            String[] fields = part.substring(PREFIX.length()).split(" ", 3);
+            int slash = fields.length == 3 ? fields[1].indexOf('/') : -1;
+            int index;
+            int count;
+            try {
+                if (slash < 0) {
+                    return part;
+                }
+                index = Integer.parseInt(fields[1].substring(0, slash));
+                count = Integer.parseInt(fields[1].substring(slash + 1));
+            } catch (NumberFormatException e) {
+                return part;
+            }
+            if (count < 1 || count > MAX_PARTS || index < 1 || index > count) {
+                return part;
+            }
+            if (count == 1) {
+                return fields[2];
+            }
+            String key = sender + "\n" + fields[0];
+            Pending message = pending.get(key);
+            if (message == null || message.pieces.length != count) {
+                message = new Pending(count);
+                pending.put(key, message);
+            }
+            if (message.pieces[index - 1] == null) {
+                message.pieces[index - 1] = fields[2];
+                message.received++;
+            }
+            if (message.received < count) {
+                return null;
+            }
+            pending.remove(key);
+            return String.join("", message.pieces);
+        }
+    }
+}
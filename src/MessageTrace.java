@@ -0,0 +1,70 @@
+// Timestamps a chat message collects on its way, to tell a slow sender, server or receiver
+// apart. The client sends a message as
+//
+//   /trace <id> <sent> <line>
+//
+// and every recipient gets it as
+//
+//   /trace <id> <sent> <received> <fannedOut> <line>
+//
+// where received is when the server read the line and fannedOut when it wrote it to that
+// recipient. Times are microseconds since the epoch on the server's clock: a client learns
+// the difference to its own with "/clock <its time>", answered with "/clock <its time>
+// <server time>", and converts before sending and after receiving. Nodes of a cluster are
+// assumed to have the same clock, NTP-close.
+public final class MessageTrace {
+
+    public static final String PREFIX = "/trace ";
+    public static final String CLOCK = "/clock ";
+    // Room a client leaves in a line for the "/trace" header
+    public static final int HEADER_LENGTH = 48;
+
+    // Wall clock read once, nanoTime since: microseconds without a system call for the date
+    private static final long ORIGIN_MICROS = System.currentTimeMillis() * 1000;
+    private static final long ORIGIN_NANOS = System.nanoTime();
+
+    final String id;
+    final long sent;
+    final long received;
+
+    MessageTrace(String id, long sent, long received) {
+        this.id = id;
+        this.sent = sent;
+        this.received = received;
+    }
+
+    public static long now() {
+        return ORIGIN_MICROS + (System.nanoTime() - ORIGIN_NANOS) / 1000;
+    }
+
+    // Id and send time as the client sent them, received now; null if they do not parse
+    public static MessageTrace received(String id, String sent) {
+        try {
+            return new MessageTrace(id, Long.parseLong(sent), now());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // For the bus, "" for no trace
+    public static String encode(MessageTrace trace) {
+        return trace == null ? "" : trace.id + " " + trace.sent + " " + trace.received;
+    }
+
+    public static MessageTrace decode(String encoded) {
+        String[] fields = encoded.split(" ");
+        if (fields.length != 3) {
+            return null;
+        }
+        try {
+            return new MessageTrace(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Put in front of the line for one recipient
+    String header(long fannedOut) {
+        return PREFIX + id + " " + sent + " " + received + " " + fannedOut + " ";
+    }
+}
@@ -0,0 +1,281 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Local relay between TCPRenoReceiver and TCPRenoSender that impairs the link.
+// It understands the transfer framing, so whole segments and ACKs are delayed, dropped
+// or reordered instead of corrupting the byte stream. Control frames are only delayed. All randomness comes from a seeded
+// RNG, so a run with the same seed and traffic is reproducible.
+//
+// The receiver connects to getPort(), the emulator connects on to the sender's port.
+public class NetworkEmulator implements Closeable {
+
+    public static class Config {
+        public long latencyMs = 0; // One-way delay, RTT is twice this
+        public long jitterMs = 0; // Uniform +/- jitter added to the latency
+        public long bandwidthBytesPerSec = 0; // 0 = unlimited
+        public int queueLimitBytes = 0; // Bottleneck buffer for drop-tail, 0 = unlimited
+        public double lossRate = 0; // Independent (Bernoulli) loss per frame
+
+        // Bursty loss, Gilbert-Elliott model. Enabled when burstEnterRate > 0.
+        public double burstEnterRate = 0; // P(good -> bad) per frame
+        public double burstExitRate = 0.3; // P(bad -> good) per frame
+        public double burstLossRate = 0.5; // Loss probability while in the bad state
+
+        public double reorderRate = 0; // Fraction of frames held back
+        public long reorderDelayMs = 10; // Extra delay for held back frames
+
+        public long seed = 42;
+
+        @Override
+        public String toString() {
+            return "latency=" + latencyMs + "ms jitter=" + jitterMs + "ms bw=" + bandwidthBytesPerSec
+                    + "B/s loss=" + lossRate + " burst=" + burstEnterRate + " reorder=" + reorderRate
+                    + " seed=" + seed;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final String targetHost;
+    private final int targetPort;
+    private final Config config;
+    private final List<Closeable> resources = new CopyOnWriteArrayList<>();
+    private final ExecutorService threads = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "emulator");
+        t.setDaemon(true);
+        return t;
+    });
+    private int connectionCount = 0;
+
+    // Statistics over all directions and connections
+    private final AtomicLong framesForwarded = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong framesReordered = new AtomicLong();
+
+    public NetworkEmulator(String targetHost, int targetPort, Config config) throws IOException {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.config = config;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void start() {
+        threads.execute(() -> {
+            try {
+                while (!serverSocket.isClosed()) {
+                    Socket downstream = serverSocket.accept();
+                    Socket upstream = new Socket(targetHost, targetPort);
+                    downstream.setTcpNoDelay(true);
+                    upstream.setTcpNoDelay(true);
+                    resources.add(downstream);
+                    resources.add(upstream);
+
+                    // Separate RNG per direction so one side's traffic does not shift the other's losses
+                    long seed = config.seed + 2L * connectionCount++;
+                    // ACKs travel receiver -> sender, segments travel sender -> receiver
+                    startPipe(downstream, upstream, false, seed);
+                    startPipe(upstream, downstream, true, seed + 1);
+                }
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Emulator accept error: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void startPipe(Socket from, Socket to, boolean segmentFrames, long seed) throws IOException {
+        Pipe pipe = new Pipe(new DataInputStream(new BufferedInputStream(from.getInputStream())), to,
+                segmentFrames, new Random(seed));
+        threads.execute(pipe::readLoop);
+        threads.execute(pipe::writeLoop);
+    }
+
+    public long getFramesForwarded() {
+        return framesForwarded.get();
+    }
+
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    public long getFramesReordered() {
+        return framesReordered.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Closeable resource : resources) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                // Already closed by the peer
+            }
+        }
+        threads.shutdownNow();
+    }
+
+    private static class Frame implements Delayed {
+        final byte[] bytes;
+        final long deliverAtNanos;
+        final long order;
+
+        Frame(byte[] bytes, long deliverAtNanos, long order) {
+            this.bytes = bytes;
+            this.deliverAtNanos = deliverAtNanos;
+            this.order = order;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deliverAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            Frame other = (Frame) o;
+            int cmp = Long.compare(deliverAtNanos, other.deliverAtNanos);
+            return cmp != 0 ? cmp : Long.compare(order, other.order);
+        }
+    }
+
+    // One direction of one connection: a reader that schedules frames and a writer that releases them
+    private class Pipe {
+        private final DataInputStream in;
+        private final Socket to;
+        private final OutputStream out;
+        private final boolean segmentFrames;
+        private final Random random;
+        private final DelayQueue<Frame> queue = new DelayQueue<>();
+
+        private boolean inBurst = false;
+        // nanoTime has an arbitrary origin, so these start from "now" rather than 0
+        private long linkFreeAtNanos = System.nanoTime(); // When the emulated link finishes serializing queued bytes
+        private long lastDeliverAtNanos = System.nanoTime();
+        private long order = 0;
+
+        Pipe(DataInputStream in, Socket to, boolean segmentFrames, Random random) throws IOException {
+            this.in = in;
+            this.to = to;
+            this.out = to.getOutputStream();
+            this.segmentFrames = segmentFrames;
+            this.random = random;
+        }
+
+        void readLoop() {
+            try {
+                while (true) {
+                    byte[] frame = readFrame();
+                    schedule(frame);
+                }
+            } catch (IOException e) {
+                // Peer closed, let the writer drain what is already scheduled (including held back frames)
+                long drainAt = Math.max(lastDeliverAtNanos, System.nanoTime())
+                        + TimeUnit.MILLISECONDS.toNanos(config.reorderDelayMs);
+                queue.put(new Frame(new byte[0], drainAt, Long.MAX_VALUE));
+            }
+        }
+
+        void writeLoop() {
+            try {
+                while (true) {
+                    Frame frame = queue.take();
+                    if (frame.order == Long.MAX_VALUE) {
+                        // Half-close, the other direction may still be carrying traffic
+                        to.shutdownOutput();
+                        return;
+                    }
+                    out.write(frame.bytes);
+                    out.flush();
+                    framesForwarded.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // Peer closed
+            }
+        }
+
+        private byte[] readFrame() throws IOException {
+            int first = in.readInt();
+            int second = in.readInt();
+            // Control frames (handshake, manifest) carry a payload in both directions
+            int payloadLength = segmentFrames || first == ParallelFileTransfer.CONTROL_FRAME ? second : 0;
+            byte[] frame = new byte[8 + payloadLength];
+            frame[0] = (byte) (first >>> 24);
+            frame[1] = (byte) (first >>> 16);
+            frame[2] = (byte) (first >>> 8);
+            frame[3] = (byte) first;
+            frame[4] = (byte) (second >>> 24);
+            frame[5] = (byte) (second >>> 16);
+            frame[6] = (byte) (second >>> 8);
+            frame[7] = (byte) second;
+            in.readFully(frame, 8, payloadLength);
+            return frame;
+        }
+
+        private void schedule(byte[] frame) {
+            long now = System.nanoTime();
+            boolean control = frame[0] == (byte) 0x80 && frame[1] == 0 && frame[2] == 0 && frame[3] == 0;
+
+            // The transfer protocol has no retransmission for control frames, only data and ACKs are lost
+            if (!control && isLost()) {
+                framesDropped.incrementAndGet();
+                return;
+            }
+
+            // Bottleneck link: frames are serialized one after another at the configured rate
+            long departAt = now;
+            if (config.bandwidthBytesPerSec > 0) {
+                long backlogNanos = Math.max(0, linkFreeAtNanos - now);
+                if (config.queueLimitBytes > 0
+                        && backlogNanos * config.bandwidthBytesPerSec / 1_000_000_000L > config.queueLimitBytes) {
+                    framesDropped.incrementAndGet(); // Drop-tail
+                    return;
+                }
+                long serializeNanos = frame.length * 1_000_000_000L / config.bandwidthBytesPerSec;
+                linkFreeAtNanos = Math.max(linkFreeAtNanos, now) + serializeNanos;
+                departAt = linkFreeAtNanos;
+            }
+
+            long delayMs = config.latencyMs;
+            if (config.jitterMs > 0) {
+                delayMs += (long) ((random.nextDouble() * 2 - 1) * config.jitterMs);
+            }
+            long deliverAt = departAt + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+
+            if (!control && config.reorderRate > 0 && random.nextDouble() < config.reorderRate) {
+                // Held back frames may be overtaken by later ones
+                deliverAt += TimeUnit.MILLISECONDS.toNanos(config.reorderDelayMs);
+                framesReordered.incrementAndGet();
+            } else {
+                // Jitter alone must not reorder, the link stays FIFO
+                deliverAt = Math.max(deliverAt, lastDeliverAtNanos);
+                lastDeliverAtNanos = deliverAt;
+            }
+
+            queue.put(new Frame(frame, deliverAt, order++));
+        }
+
+        private boolean isLost() {
+            if (config.burstEnterRate > 0) {
+                if (inBurst) {
+                    inBurst = random.nextDouble() >= config.burstExitRate;
+                } else {
+                    inBurst = random.nextDouble() < config.burstEnterRate;
+                }
+                if (inBurst && random.nextDouble() < config.burstLossRate) {
+                    return true;
+                }
+            }
+            return config.lossRate > 0 && random.nextDouble() < config.lossRate;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+// TCP NewReno (RFC 6582): stays in fast recovery across partial ACKs so that
+// several losses in one window are repaired without waiting for a timeout
+public class NewRenoCongestionController extends RenoCongestionController {
+
+    private int recover = -1; // Highest sequence number sent when fast recovery started
+
+    @Override
+    public synchronized boolean onAck(int ackNum, int ackedSegments, long sampleRtt) {
+        if (!inFastRecovery) {
+            return super.onAck(ackNum, ackedSegments, sampleRtt);
+        }
+
+        if (ackNum >= recover) {
+            // Full ACK: everything outstanding at the time of the loss is acknowledged
+            cwnd = ssthresh;
+            inFastRecovery = false;
+            return false;
+        }
+
+        // Partial ACK: deflate by the amount acknowledged, add back one segment and
+        // ask the sender to retransmit the next hole right away
+        cwnd = Math.max(cwnd - ackedSegments + 1, 1);
+        return true;
+    }
+
+    @Override
+    public synchronized void onLoss(int highestSent) {
+        if (inFastRecovery) {
+            return;
+        }
+        recover = highestSent;
+        super.onLoss(highestSent);
+    }
+
+    @Override
+    public synchronized void onTimeout() {
+        super.onTimeout();
+        recover = -1;
+    }
+
+    @Override
+    public String getName() {
+        return "NewReno";
+    }
+}
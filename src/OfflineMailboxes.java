@@ -0,0 +1,420 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Private messages for users who are not logged in, kept until they are. All mailboxes
+// share append-only spool files (spool-N.dat, a new one every SPOOL_FILE_BYTES):
+//
+//   [length:int][MESSAGE][time:long][recipient][sender][text]
+//   [length:int][DROP_THROUGH][recipient][ref:long]  the mailbox's messages up to ref are gone
+//   [length:int][DROP][recipient][count:int]          older spools: the first count messages
+//
+// DROP_THROUGH names the last message dropped by where it is in the spool. A count would
+// be wrong after a restart if some of the messages it covered were in a spool file that has
+// been deleted since: it would take newer messages with it.
+//
+// In memory a mailbox is only the spool position, time and length of each message in
+// primitive arrays, plus the text of its first HOT_MESSAGES messages so a short absence is
+// delivered without reading the disk. A million queued messages cost 20 MB of arrays, not
+// a million objects. After a restart the mailboxes are rebuilt by reading the spool from the start;
+// a spool file is deleted once it is the oldest and none of its messages is queued any more.
+//
+// A mailbox holds at most MAX_MESSAGES messages and MAX_BYTES bytes, messages older than
+// MAX_AGE are dropped. All mailboxes together hold at most MAX_TOTAL_BYTES: anyone can
+// write to any name, including ones that never log in.
+public class OfflineMailboxes implements Closeable {
+
+    private static final int MAX_MESSAGES = 1000;
+    private static final long MAX_BYTES = 256 * 1024;
+    private static final long MAX_TOTAL_BYTES = 256L * 1024 * 1024;
+    private static final long MAX_AGE = TimeUnit.DAYS.toMillis(7);
+    private static final int HOT_MESSAGES = 4;
+    private static final int HOT_TOTAL = 16_384;
+    private static final long SPOOL_FILE_BYTES = 64L * 1024 * 1024;
+    private static final long FLUSH_INTERVAL = 1000;
+    private static final long SWEEP_INTERVAL = 60_000;
+
+    private static final byte MESSAGE = 0;
+    private static final byte DROP = 1;
+    private static final byte DROP_THROUGH = 2;
+
+    private final File directory;
+    private final Map<String, Mailbox> mailboxes = new HashMap<>();
+    // Spool file number -> messages in it still queued
+    private final TreeMap<Integer, Integer> live = new TreeMap<>();
+    private final Map<Integer, FileChannel> readers = new HashMap<>();
+    private final ScheduledExecutorService timer;
+
+    private int spoolNumber;
+    private DataOutputStream spool;
+    private long spoolSize;
+    private boolean dirty = false;
+    private int hotMessages = 0;
+    private long queued = 0;
+    private long queuedBytes = 0;
+    private boolean full = false; // Logged once each time it fills up
+
+    public OfflineMailboxes(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        List<Integer> numbers = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith("spool-") && name.endsWith(".dat")) {
+                    numbers.add(Integer.parseInt(name.substring(6, name.length() - 4)));
+                }
+            }
+        }
+        Collections.sort(numbers);
+        for (int number : numbers) {
+            live.put(number, 0);
+            spoolSize = replay(number);
+            spoolNumber = number;
+        }
+        deleteDeadSpools();
+        if (!live.containsKey(spoolNumber)) {
+            spoolSize = 0;
+            live.put(spoolNumber, 0);
+        }
+        spool = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spoolFile(spoolNumber), true), 1 << 16));
+        ServerLog.info("Offline mailboxes: {n} messages for {n} users in {}", directory, queued, mailboxes.size());
+
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mailbox-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        timer.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    // Rebuilds the mailboxes from one spool file, returns the length of its complete records
+    // (a crash can leave half a record at the end, it is cut off)
+    private long replay(int number) throws IOException {
+        File file = spoolFile(number);
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                int length;
+                byte[] body;
+                try {
+                    length = in.readInt();
+                    body = new byte[length];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = record.readByte();
+                if (type == MESSAGE) {
+                    long time = record.readLong();
+                    String recipient = record.readUTF();
+                    mailboxes.computeIfAbsent(recipient, r -> new Mailbox()).add(ref(number, position), time, 4 + length);
+                    live.merge(number, 1, Integer::sum);
+                    queued++;
+                    queuedBytes += 4 + length;
+                } else {
+                    String recipient = record.readUTF();
+                    Mailbox mailbox = mailboxes.get(recipient);
+                    if (mailbox != null) {
+                        int count;
+                        if (type == DROP_THROUGH) {
+                            // Refs grow with every append, the mailbox is in spool order
+                            long through = record.readLong();
+                            count = 0;
+                            while (count < mailbox.size && mailbox.refs[count] <= through) {
+                                count++;
+                            }
+                        } else {
+                            count = Math.min(record.readInt(), mailbox.size);
+                        }
+                        removeFirst(recipient, mailbox, count, false);
+                    }
+                }
+                position += 4 + length;
+            }
+        }
+        if (position < file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(position);
+            }
+        }
+        return position;
+    }
+
+    // Queues a message, false if the recipient's mailbox or the spool is full
+    public synchronized boolean store(String sender, String recipient, String text) {
+        Mailbox mailbox = mailboxes.computeIfAbsent(recipient, r -> new Mailbox());
+        long now = System.currentTimeMillis();
+        expire(recipient, mailbox, now);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + text.length());
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(MESSAGE);
+            record.writeLong(now);
+            record.writeUTF(recipient);
+            record.writeUTF(sender);
+            record.writeUTF(text);
+            if (mailbox.size >= MAX_MESSAGES || mailbox.bytes + 4 + bytes.size() > MAX_BYTES) {
+                return false;
+            }
+            if (queuedBytes + 4 + bytes.size() > MAX_TOTAL_BYTES) {
+                if (!full) {
+                    full = true;
+                    ServerLog.warn("Offline mailboxes hold {} bytes, not queueing more", String.valueOf(queuedBytes));
+                }
+                return false;
+            }
+            full = false;
+            long ref = append(bytes);
+            boolean hot = mailbox.hotCount == mailbox.size && mailbox.size < HOT_MESSAGES && hotMessages < HOT_TOTAL;
+            mailbox.add(ref, now, 4 + bytes.size());
+            if (hot) {
+                mailbox.addHot(sender, text);
+                hotMessages++;
+            }
+            live.merge(spoolNumber, 1, Integer::sum);
+            queued++;
+            queuedBytes += 4 + bytes.size();
+            return true;
+        } catch (IOException e) {
+            ServerLog.error("Writing offline mailbox failed: {}", e.getMessage());
+            return false;
+        } finally {
+            if (mailbox.size == 0) {
+                mailboxes.remove(recipient);
+            }
+        }
+    }
+
+    // Everything queued for recipient as {sender, text}, oldest first, and empties the mailbox
+    public synchronized List<String[]> take(String recipient) {
+        Mailbox mailbox = mailboxes.get(recipient);
+        if (mailbox == null) {
+            return Collections.emptyList();
+        }
+        expire(recipient, mailbox, System.currentTimeMillis());
+        List<String[]> messages = new ArrayList<>(mailbox.size);
+        try {
+            if (mailbox.hotCount < mailbox.size) {
+                spool.flush();
+            }
+            for (int i = 0; i < mailbox.size; i++) {
+                if (i < mailbox.hotCount) {
+                    messages.add(new String[]{mailbox.hot[2 * i], mailbox.hot[2 * i + 1]});
+                } else {
+                    messages.add(read(mailbox.refs[i]));
+                }
+            }
+        } catch (IOException e) {
+            // Left queued, the next login tries again
+            ServerLog.error("Reading offline mailbox of {} failed: {}", recipient, e.getMessage());
+            return Collections.emptyList();
+        }
+        removeFirst(recipient, mailbox, mailbox.size, true);
+        return messages;
+    }
+
+    public synchronized boolean hasMail(String recipient) {
+        return mailboxes.containsKey(recipient);
+    }
+
+    public synchronized long getQueuedMessages() {
+        return queued;
+    }
+
+    private void expire(String recipient, Mailbox mailbox, long now) {
+        int expired = 0;
+        while (expired < mailbox.size && now - mailbox.times[expired] > MAX_AGE) {
+            expired++;
+        }
+        if (expired > 0) {
+            removeFirst(recipient, mailbox, expired, true);
+        }
+    }
+
+    private synchronized void sweep() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Mailbox> entry : new ArrayList<>(mailboxes.entrySet())) {
+            expire(entry.getKey(), entry.getValue(), now);
+        }
+    }
+
+    // Drops the first count messages, logging it unless replaying the spool
+    private void removeFirst(String recipient, Mailbox mailbox, int count, boolean log) {
+        if (count == 0) {
+            return;
+        }
+        if (log) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+                DataOutputStream record = new DataOutputStream(bytes);
+                record.writeByte(DROP_THROUGH);
+                record.writeUTF(recipient);
+                record.writeLong(mailbox.refs[count - 1]);
+                append(bytes);
+            } catch (IOException e) {
+                // After a restart the messages come back, better than losing them
+                ServerLog.error("Writing offline mailbox failed: {}", e.getMessage());
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            live.merge((int) (mailbox.refs[i] >>> 40), -1, Integer::sum);
+            queuedBytes -= mailbox.lengths[i];
+        }
+        hotMessages -= mailbox.removeFirst(count);
+        queued -= count;
+        if (mailbox.size == 0) {
+            mailboxes.remove(recipient);
+        }
+        if (log) {
+            deleteDeadSpools(); // After a replay, not in the middle of one
+        }
+    }
+
+    private long append(ByteArrayOutputStream record) throws IOException {
+        if (spoolSize >= SPOOL_FILE_BYTES) {
+            spool.close();
+            spoolNumber++;
+            spoolSize = 0;
+            live.put(spoolNumber, 0);
+            spool = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spoolFile(spoolNumber), true), 1 << 16));
+        }
+        long ref = ref(spoolNumber, spoolSize);
+        spool.writeInt(record.size());
+        record.writeTo(spool);
+        spoolSize += 4 + record.size();
+        dirty = true;
+        return ref;
+    }
+
+    private String[] read(long ref) throws IOException {
+        int number = (int) (ref >>> 40);
+        long position = ref & ((1L << 40) - 1);
+        FileChannel channel = readers.get(number);
+        if (channel == null) {
+            channel = FileChannel.open(spoolFile(number).toPath());
+            readers.put(number, channel);
+        }
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, position);
+        ByteBuffer body = ByteBuffer.allocate(length.getInt(0));
+        readFully(channel, body, position + 4);
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(body.array()));
+        record.readByte();
+        record.readLong();
+        record.readUTF();
+        return new String[]{record.readUTF(), record.readUTF()};
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Spool file is shorter than its mailbox index");
+            }
+        }
+    }
+
+    // Oldest files first, never the one being written
+    private void deleteDeadSpools() {
+        while (!live.isEmpty() && live.firstKey() != spoolNumber && live.firstEntry().getValue() == 0) {
+            int number = live.pollFirstEntry().getKey();
+            FileChannel channel = readers.remove(number);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            spoolFile(number).delete();
+        }
+    }
+
+    private synchronized void flush() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            spool.flush();
+            dirty = false;
+        } catch (IOException e) {
+            ServerLog.error("Writing offline mailbox failed: {}", e.getMessage());
+        }
+    }
+
+    private File spoolFile(int number) {
+        return new File(directory, String.format("spool-%06d.dat", number));
+    }
+
+    private static long ref(int number, long position) {
+        return ((long) number << 40) | position;
+    }
+
+    @Override
+    public synchronized void close() {
+        timer.shutdown();
+        try {
+            spool.close();
+        } catch (IOException e) {
+            ServerLog.error("Writing offline mailbox failed: {}", e.getMessage());
+        }
+    }
+
+    // Queue of one user, oldest first: spool position, time and record length per message
+    private static class Mailbox {
+        long[] refs = new long[4];
+        long[] times = new long[4];
+        int[] lengths = new int[4];
+        int size;
+        long bytes;
+        // Sender and text of the first hotCount messages, allocated with the first of them
+        String[] hot;
+        int hotCount;
+
+        void add(long ref, long time, int length) {
+            if (size == refs.length) {
+                refs = Arrays.copyOf(refs, size * 2);
+                times = Arrays.copyOf(times, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            refs[size] = ref;
+            times[size] = time;
+            lengths[size] = length;
+            size++;
+            bytes += length;
+        }
+
+        void addHot(String sender, String text) {
+            if (hot == null) {
+                hot = new String[2 * HOT_MESSAGES];
+            }
+            hot[2 * hotCount] = sender;
+            hot[2 * hotCount + 1] = text;
+            hotCount++;
+        }
+
+        // Returns how many hot messages went with them
+        int removeFirst(int count) {
+            for (int i = 0; i < count; i++) {
+                bytes -= lengths[i];
+            }
+            System.arraycopy(refs, count, refs, 0, size - count);
+            System.arraycopy(times, count, times, 0, size - count);
+            System.arraycopy(lengths, count, lengths, 0, size - count);
+            size -= count;
+            int hotRemoved = Math.min(count, hotCount);
+            if (hotRemoved > 0) {
+                System.arraycopy(hot, 2 * hotRemoved, hot, 0, 2 * (hotCount - hotRemoved));
+                Arrays.fill(hot, 2 * (hotCount - hotRemoved), 2 * hotCount, null);
+                hotCount -= hotRemoved;
+            }
+            return hotRemoved;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.ArrayDeque;
+
+// Lines waiting to be written to one client, in two lanes. Everything addressed to the
+// client in particular (private messages and file offers, replies, errors, presence and
+// user lists) goes in the priority lane and is written before any public chat that is
+// still waiting, so a direct message does not queue behind a busy room.
+//
+// The public lane is bounded: a client that cannot keep up loses the oldest public lines,
+// which it is told about with a "/dropped <count>" line in their place. The priority lane
+// is only watched, a client that lets too much of it pile up is not reading at all.
+//
+// Any thread may offer; one writer per connection takes, see ClientHandler.writeLoop.
+public class OutboundQueue {
+
+    static final class Entry {
+        final String line;
+        final MessageTrace trace;
+        final boolean numbered; // False for control lines, see ClientHandler.sendControl
+        final boolean priority;
+
+        Entry(String line, MessageTrace trace, boolean numbered, boolean priority) {
+            this.line = line;
+            this.trace = trace;
+            this.numbered = numbered;
+            this.priority = priority;
+        }
+    }
+
+    public static final String DROPPED = "/dropped ";
+
+    private final ArrayDeque<Entry> priority = new ArrayDeque<>();
+    private final ArrayDeque<Entry> chat = new ArrayDeque<>();
+    private final int chatCapacity;
+    private final int priorityLimit;
+    private long dropped = 0; // Public lines dropped since the last notice
+    private long droppedTotal = 0;
+    private boolean closed = false;
+
+    public OutboundQueue(int chatCapacity, int priorityLimit) {
+        this.chatCapacity = chatCapacity;
+        this.priorityLimit = priorityLimit;
+    }
+
+    // False once the lane holds more than its limit
+    public synchronized boolean offerPriority(String line, MessageTrace trace, boolean numbered) {
+        if (closed) {
+            return true;
+        }
+        priority.addLast(new Entry(line, trace, numbered, true));
+        notify();
+        return priority.size() <= priorityLimit;
+    }
+
+    public synchronized void offerPublic(String line, MessageTrace trace) {
+        if (closed) {
+            return;
+        }
+        notify();
+        if (chat.size() >= chatCapacity) {
+            chat.pollFirst();
+            dropped++;
+            droppedTotal++;
+        }
+        chat.addLast(new Entry(line, trace, true, false));
+    }
+
+    // The next line to write, priority first; null when there is none
+    public synchronized Entry poll() {
+        Entry entry = priority.pollFirst();
+        if (entry != null) {
+            return entry;
+        }
+        if (dropped > 0 && !chat.isEmpty()) {
+            // Where the missing lines would have been
+            entry = new Entry(DROPPED + dropped, null, true, false);
+            dropped = 0;
+            return entry;
+        }
+        return chat.pollFirst();
+    }
+
+    // Like poll, but waits for a line; null once closed
+    public synchronized Entry take() throws InterruptedException {
+        Entry entry;
+        while ((entry = poll()) == null) {
+            if (closed) {
+                return null;
+            }
+            wait();
+        }
+        return entry;
+    }
+
+    // The connection is done with: take() returns null, what is still queued is dropped
+    public synchronized void close() {
+        closed = true;
+        priority.clear();
+        chat.clear();
+        notify();
+    }
+
+    public synchronized boolean hasPriority() {
+        return !priority.isEmpty();
+    }
+
+    public synchronized boolean isEmpty() {
+        return priority.isEmpty() && chat.isEmpty();
+    }
+
+    public synchronized long getDroppedTotal() {
+        return droppedTotal;
+    }
+}
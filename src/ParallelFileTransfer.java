@@ -0,0 +1,316 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Moves a file over N connections at once, each with its own TCPRenoSender / TCPRenoReceiver
+// and congestion window, and resumes interrupted transfers from a chunk manifest.
+//
+// All streams connect to the same listening port. Before any data flows:
+//   receiver -> sender, every stream: control frame [index:int][streams:int][codecs:int]
+//   sender -> receiver, stream 0:     control frame [codec:int], the codec picked for this transfer
+//   sender -> receiver, stream 0:     control frame with the ChunkManifest
+//   receiver -> sender, stream 0:     control frame with the bitmap of chunks it still needs
+// Both sides then split the needed chunks into the same per-stream ByteRanges.
+// A connection closed before sending its index means the offer was declined.
+public class ParallelFileTransfer {
+
+    public static final int[] STREAM_CHOICES = {1, 2, 4, 8};
+
+    // Control frames are [CONTROL_FRAME][length][payload]. Data segments and ACKs never
+    // carry this sequence number, and NetworkEmulator forwards control frames without loss.
+    public static final int CONTROL_FRAME = Integer.MIN_VALUE;
+
+    // Codecs, the receiver advertises a bit mask and the sender picks one
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_DEFLATE = 1;
+
+    static final int HANDSHAKE_TIMEOUT = 5000;
+    static final int MANIFEST_TIMEOUT = 120000; // Receiver may be verifying a large partial file
+
+    // Opens the target file at its final size so streams can write at their offsets in any order
+    static FileChannel preallocate(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(size);
+        return raf.getChannel();
+    }
+
+    // Accepts `streams` connections on serverSocket and sends the chunks the receiver is missing.
+    // Returns true when every stream was fully acknowledged.
+    public static boolean send(ServerSocket serverSocket, File file, int streams, String algorithm,
+                               TransferListener listener) throws IOException {
+        return send(serverSocket, file, streams, algorithm, true, null, null, listener);
+    }
+
+    // Same as above, with all streams drawing from one bandwidth share (null = unlimited) and
+    // recording into one telemetry trace (null = none). With compress set the data is deflated
+    // if the receiver supports it.
+    public static boolean send(ServerSocket serverSocket, File file, int streams, String algorithm, boolean compress,
+                               BandwidthScheduler.Share bandwidthShare, TransferTelemetry telemetry,
+                               TransferListener listener) throws IOException {
+        Socket[] sockets = new Socket[streams];
+        int receiverCodecs = ~0;
+        try {
+            for (int i = 0; i < streams; i++) {
+                Socket socket = serverSocket.accept();
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+                DataInputStream dis = new DataInputStream(socket.getInputStream());
+                int index;
+                int receiverStreams;
+                try {
+                    byte[] handshake = readControlFrame(dis);
+                    DataInputStream fields = new DataInputStream(new ByteArrayInputStream(handshake));
+                    index = fields.readInt();
+                    receiverStreams = fields.readInt();
+                    receiverCodecs &= handshake.length >= 12 ? fields.readInt() : CODEC_NONE;
+                } catch (EOFException e) {
+                    socket.close();
+                    throw new IOException("Transfer declined by receiver");
+                }
+                if (receiverStreams != streams || index < 0 || index >= streams || sockets[index] != null) {
+                    socket.close();
+                    throw new IOException("Invalid stream index " + index);
+                }
+                sockets[index] = socket;
+            }
+
+            boolean compressed = compress && (receiverCodecs & CODEC_DEFLATE) != 0;
+            writeControlFrame(new DataOutputStream(sockets[0].getOutputStream()), intPayload(compressed ? CODEC_DEFLATE : CODEC_NONE));
+
+            ChunkManifest manifest = ChunkManifest.compute(file, ChunkManifest.DEFAULT_CHUNK_SIZE);
+            writeControlFrame(new DataOutputStream(sockets[0].getOutputStream()), manifest.toBytes());
+
+            sockets[0].setSoTimeout(MANIFEST_TIMEOUT);
+            BitSet needed = BitSet.valueOf(readControlFrame(new DataInputStream(sockets[0].getInputStream())));
+            ByteRanges[] ranges = manifest.split(needed, streams);
+            if (needed.cardinality() < manifest.getChunkCount()) {
+                System.out.println("Resuming " + file.getName() + ": sending " + needed.cardinality()
+                        + " of " + manifest.getChunkCount() + " chunks");
+            }
+
+            long alreadyThere = manifest.getFileSize() - manifest.bytesIn(needed);
+            AggregateListener aggregate = new AggregateListener(listener, streams, alreadyThere, manifest.getFileSize());
+            ExecutorService pool = Executors.newFixedThreadPool(streams);
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < streams; i++) {
+                int index = i;
+                results.add(pool.submit(() -> {
+                    TCPRenoSender sender = new TCPRenoSender(sockets[index], file, ranges[index],
+                            CongestionController.create(algorithm), aggregate.forStream(index));
+                    sender.setBandwidthShare(bandwidthShare);
+                    sender.setCompressed(compressed);
+                    sender.setTelemetry(telemetry, index);
+                    return sender.sendFileWithCongestionControl();
+                }));
+            }
+            pool.shutdown();
+            return allSucceeded(results);
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    // Opens `streams` connections to the sender and receives into saveFile. If saveFile has a
+    // manifest next to it from an earlier attempt at the same file, only the missing or corrupt
+    // chunks are transferred. Throws if chunks still fail their checksum afterwards; the
+    // manifest is kept so that the next attempt resends just those.
+    public static void receive(String host, int port, File saveFile, long fileSize, int streams,
+                               TransferListener listener) throws IOException {
+        receive(host, port, saveFile, fileSize, streams, false, listener);
+    }
+
+    // Same as above, over TLS when the sender listens with Tls.serverSocket
+    public static void receive(String host, int port, File saveFile, long fileSize, int streams, boolean tls,
+                               TransferListener listener) throws IOException {
+        Socket[] sockets = new Socket[streams];
+        ExecutorService pool = Executors.newFixedThreadPool(streams);
+        try (FileChannel channel = preallocate(saveFile, fileSize)) {
+            for (int i = 0; i < streams; i++) {
+                sockets[i] = tls ? Tls.client(new Socket(host, port), host, port) : new Socket(host, port);
+                ByteArrayOutputStream handshake = new ByteArrayOutputStream();
+                DataOutputStream fields = new DataOutputStream(handshake);
+                fields.writeInt(i);
+                fields.writeInt(streams);
+                fields.writeInt(CODEC_DEFLATE);
+                writeControlFrame(new DataOutputStream(sockets[i].getOutputStream()), handshake.toByteArray());
+            }
+
+            sockets[0].setSoTimeout(MANIFEST_TIMEOUT);
+            DataInputStream control = new DataInputStream(sockets[0].getInputStream());
+            int codec = new DataInputStream(new ByteArrayInputStream(readControlFrame(control))).readInt();
+            if (codec != CODEC_NONE && codec != CODEC_DEFLATE) {
+                throw new IOException("Unsupported codec " + codec);
+            }
+            ChunkManifest manifest = ChunkManifest.fromBytes(readControlFrame(control));
+            sockets[0].setSoTimeout(0);
+            if (manifest.getFileSize() != fileSize) {
+                throw new IOException("Manifest size " + manifest.getFileSize() + " does not match offer " + fileSize);
+            }
+
+            File sidecar = ChunkManifest.sidecarFor(saveFile);
+            BitSet needed;
+            if (manifest.equals(ChunkManifest.load(sidecar))) {
+                // Same file as the interrupted attempt, keep whatever already checks out
+                needed = manifest.findMismatches(channel);
+            } else {
+                needed = manifest.allChunks();
+                manifest.save(sidecar);
+            }
+            writeControlFrame(new DataOutputStream(sockets[0].getOutputStream()), needed.toByteArray());
+
+            ByteRanges[] ranges = manifest.split(needed, streams);
+            long alreadyThere = fileSize - manifest.bytesIn(needed);
+            AggregateListener aggregate = new AggregateListener(listener, streams, alreadyThere, fileSize);
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < streams; i++) {
+                int index = i;
+                results.add(pool.submit(() -> {
+                    TCPRenoReceiver receiver = new TCPRenoReceiver(sockets[index], channel, ranges[index], aggregate.forStream(index));
+                    receiver.setCompressed(codec == CODEC_DEFLATE);
+                    receiver.receiveFileWithFlowControl();
+                    return true;
+                }));
+            }
+            pool.shutdown();
+            if (!allSucceeded(results)) {
+                throw new IOException("One or more streams failed");
+            }
+
+            BitSet corrupt = manifest.findMismatches(channel, needed);
+            if (!corrupt.isEmpty()) {
+                throw new IOException(corrupt.cardinality() + " chunks failed their checksum, send again to repair them");
+            }
+            sidecar.delete();
+        } finally {
+            pool.shutdownNow();
+            for (Socket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    static byte[] intPayload(int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    static void writeControlFrame(DataOutputStream dos, byte[] payload) throws IOException {
+        dos.writeInt(CONTROL_FRAME);
+        dos.writeInt(payload.length);
+        dos.write(payload);
+        dos.flush();
+    }
+
+    // Reads exactly one frame from an unbuffered stream, so nothing meant for the
+    // sender/receiver that takes over the socket afterwards is consumed
+    static byte[] readControlFrame(DataInputStream dis) throws IOException {
+        if (dis.readInt() != CONTROL_FRAME) {
+            throw new IOException("Expected a control frame");
+        }
+        int length = dis.readInt();
+        if (length < 0 || length > 64 * 1024 * 1024) {
+            throw new IOException("Invalid control frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        dis.readFully(payload);
+        return payload;
+    }
+
+    private static boolean allSucceeded(List<Future<Boolean>> results) throws IOException {
+        boolean ok = true;
+        for (Future<Boolean> result : results) {
+            try {
+                ok &= result.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        return ok;
+    }
+
+    // Sums per-stream progress and cwnd into a single view of the transfer
+    static class AggregateListener {
+        private final TransferListener delegate;
+        private final long baseBytes; // Already present from an earlier attempt
+        private final AtomicLong totalBytes;
+        private final AtomicLongArray bytes;
+        private final AtomicIntegerArray cwnds;
+        private volatile boolean started = false;
+
+        AggregateListener(TransferListener delegate, int streams, long baseBytes, long totalBytes) {
+            this.delegate = delegate;
+            this.baseBytes = baseBytes;
+            this.totalBytes = new AtomicLong(totalBytes);
+            this.bytes = new AtomicLongArray(streams);
+            this.cwnds = new AtomicIntegerArray(streams);
+        }
+
+        TransferListener forStream(int index) {
+            return new TransferListener() {
+                @Override
+                public void onProgress(long bytesTransferred, long streamBytes) {
+                    bytes.set(index, bytesTransferred);
+                    started = true;
+                    report();
+                }
+
+                @Override
+                public void onCwnd(int cwnd) {
+                    cwnds.set(index, cwnd);
+                    // Stream 0 paces the chart, it shows the combined window of all streams
+                    if (index == 0) {
+                        int sum = 0;
+                        for (int i = 0; i < cwnds.length(); i++) {
+                            sum += cwnds.get(i);
+                        }
+                        delegate.onCwnd(sum);
+                    }
+                }
+
+                @Override
+                public void onRetransmit(int seqNum) {
+                    delegate.onRetransmit(seqNum);
+                }
+
+                @Override
+                public void onFailure(String reason) {
+                    delegate.onFailure(reason);
+                }
+            };
+        }
+
+        // Bytes that turned out not to be coming after all, e.g. a recipient that declined
+        void shrinkTotal(long bytes) {
+            totalBytes.addAndGet(-bytes);
+            // Before the first progress there is nothing to redraw, and that one also starts the transfer
+            if (started) {
+                report();
+            }
+        }
+
+        private void report() {
+            long sum = baseBytes;
+            for (int i = 0; i < bytes.length(); i++) {
+                sum += bytes.get(i);
+            }
+            delegate.onProgress(sum, totalBytes.get());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Joins, leaves and user list changes collected for WINDOW_MILLIS and announced together:
+// one "a, b and 9998 others joined the chat" and one /userlist for everyone, instead of
+// a message and a full user list to every client per join. With 10k clients reconnecting
+// at once that is a few presence updates rather than 10k lists of 10k names each.
+public class PresenceBatcher {
+
+    public static final long WINDOW_MILLIS = 250;
+
+    // Names spelled out in an announcement, the rest are counted
+    private static final int NAMED = 5;
+
+    private final ScheduledExecutorService timer;
+    private final Set<ClientHandler> joined = new LinkedHashSet<>();
+    private final List<String> left = new ArrayList<>();
+    private boolean userListChanged = false;
+    private boolean scheduled = false;
+
+    public PresenceBatcher() {
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public synchronized void joined(ClientHandler client) {
+        joined.add(client);
+        userListChanged = true;
+        schedule();
+    }
+
+    public synchronized void left(String username) {
+        left.add(username);
+        userListChanged = true;
+        schedule();
+    }
+
+    public synchronized void userListChanged() {
+        userListChanged = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            timer.schedule(this::flush, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        Set<ClientHandler> joinedNow;
+        List<String> leftNow;
+        boolean sendUserList;
+        synchronized (this) {
+            joinedNow = new LinkedHashSet<>(joined);
+            leftNow = new ArrayList<>(left);
+            sendUserList = userListChanged;
+            joined.clear();
+            left.clear();
+            userListChanged = false;
+            scheduled = false;
+        }
+        try {
+            if (!joinedNow.isEmpty()) {
+                List<String> names = new ArrayList<>();
+                for (ClientHandler client : joinedNow) {
+                    names.add(client.getUsername());
+                }
+                // The ones who joined know, they get the user list below
+                ChatServer.announce(describe(names) + " joined the chat", joinedNow);
+            }
+            if (!leftNow.isEmpty()) {
+                ChatServer.announce(describe(leftNow) + " left the chat", Collections.emptySet());
+            }
+            if (sendUserList) {
+                ChatServer.sendUserListToAll();
+            }
+        } catch (RuntimeException e) {
+            ServerLog.error("Presence update failed: {}", e);
+        }
+    }
+
+    // "a", "a and b", "a, b, c, d, e and 7 others"
+    static String describe(List<String> names) {
+        if (names.size() == 1) {
+            return names.get(0);
+        }
+        if (names.size() <= NAMED) {
+            return String.join(", ", names.subList(0, names.size() - 1)) + " and " + names.get(names.size() - 1);
+        }
+        return String.join(", ", names.subList(0, NAMED)) + " and " + (names.size() - NAMED) + " others";
+    }
+}
@@ -0,0 +1,67 @@
+// TCP Reno (RFC 5681): slow start, congestion avoidance, fast retransmit / fast recovery
+public class RenoCongestionController implements CongestionController {
+
+    protected double cwnd = 1; // Congestion window (in segments)
+    protected int ssthresh = 32; // Slow start threshold
+    protected boolean inFastRecovery = false;
+
+    @Override
+    public synchronized boolean onAck(int ackNum, int ackedSegments, long sampleRtt) {
+        if (inFastRecovery) {
+            // Deflate the window once the lost segment has been acknowledged
+            cwnd = ssthresh;
+            inFastRecovery = false;
+            return false;
+        }
+
+        if (cwnd < ssthresh) {
+            // Slow start: one segment per acknowledged segment
+            cwnd += ackedSegments;
+        } else {
+            // Congestion avoidance: roughly one segment per round trip
+            cwnd += (double) ackedSegments / cwnd;
+        }
+        cwnd = Math.min(cwnd, MAX_CWND);
+        return false;
+    }
+
+    @Override
+    public synchronized void onDuplicateAck() {
+        if (inFastRecovery) {
+            // Each further duplicate means another segment has left the network
+            cwnd = Math.min(cwnd + 1, MAX_CWND);
+        }
+    }
+
+    @Override
+    public synchronized void onLoss(int highestSent) {
+        if (inFastRecovery) {
+            return;
+        }
+        ssthresh = Math.max((int) cwnd / 2, 2);
+        cwnd = ssthresh + 3;
+        inFastRecovery = true;
+    }
+
+    @Override
+    public synchronized void onTimeout() {
+        ssthresh = Math.max((int) cwnd / 2, 2);
+        cwnd = 1;
+        inFastRecovery = false;
+    }
+
+    @Override
+    public synchronized int getCwnd() {
+        return Math.max(1, (int) cwnd);
+    }
+
+    @Override
+    public synchronized int getSsthresh() {
+        return ssthresh;
+    }
+
+    @Override
+    public String getName() {
+        return "Reno";
+    }
+}
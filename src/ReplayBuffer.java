@@ -0,0 +1,35 @@
+// The last messages sent to one client, numbered from 1 in the order they were sent,
+// so a client that lost its connection can be sent only what it missed. Holds at most
+// `capacity` messages; older ones are overwritten.
+public class ReplayBuffer {
+
+    private final String[] messages;
+    private long lastId = 0;
+
+    public ReplayBuffer(int capacity) {
+        messages = new String[capacity];
+    }
+
+    public synchronized long append(String message) {
+        lastId++;
+        messages[(int) (lastId % messages.length)] = message;
+        return lastId;
+    }
+
+    public synchronized long getLastId() {
+        return lastId;
+    }
+
+    // Oldest message still held, lastId + 1 when empty
+    public synchronized long getOldestId() {
+        return Math.max(1, lastId - messages.length + 1);
+    }
+
+    // id must be between getOldestId() and getLastId()
+    public synchronized String get(long id) {
+        if (id < getOldestId() || id > lastId) {
+            throw new IllegalArgumentException("Message " + id + " is not held, have " + getOldestId() + ".." + lastId);
+        }
+        return messages[(int) (id % messages.length)];
+    }
+}
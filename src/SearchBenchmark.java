@@ -0,0 +1,125 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+
+// Fills a ChatHistory with synthetic messages (Zipf-distributed words, a share of them
+// private between random users) and measures appends per second and /search latency for
+// rare words, common words, two-word queries and private conversations.
+//
+// Usage: java SearchBenchmark [--messages=2000000] [--vocabulary=50000] [--users=1000]
+//                             [--private=0.05] [--queries=200] [--dir=<temporary>]
+// Given --dir the history is kept, and a second run only measures the searches over it.
+public class SearchBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        int messages = Integer.parseInt(options.getOrDefault("messages", "2000000"));
+        int vocabulary = Integer.parseInt(options.getOrDefault("vocabulary", "50000"));
+        int users = Integer.parseInt(options.getOrDefault("users", "1000"));
+        double privateShare = Double.parseDouble(options.getOrDefault("private", "0.05"));
+        int queries = Integer.parseInt(options.getOrDefault("queries", "200"));
+        boolean keep = options.containsKey("dir");
+        File dir = keep ? new File(options.get("dir")) : Files.createTempDirectory("search-benchmark").toFile();
+
+        // Cumulative Zipf weights, word i is "w" + i
+        double[] cumulative = new double[vocabulary];
+        double total = 0;
+        for (int i = 0; i < vocabulary; i++) {
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+        Random random = new Random(1);
+
+        try (ChatHistory history = new ChatHistory(dir)) {
+            int existing = history.getMessageCount();
+            if (existing < messages) {
+                long start = System.nanoTime();
+                StringBuilder text = new StringBuilder();
+                for (int m = existing; m < messages; m++) {
+                    text.setLength(0);
+                    int words = 4 + random.nextInt(12);
+                    for (int w = 0; w < words; w++) {
+                        text.append(w == 0 ? "" : " ").append('w').append(zipf(cumulative, random));
+                    }
+                    String sender = "user" + random.nextInt(users);
+                    if (random.nextDouble() < privateShare) {
+                        history.recordPrivate(sender, "user" + random.nextInt(users), text.toString());
+                    } else {
+                        history.recordPublic(sender + ": " + text);
+                    }
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("appended %d messages in %.1f s, %.0f messages/s%n",
+                        messages - existing, seconds, (messages - existing) / seconds);
+            }
+            System.out.println(history.getMessageCount() + " messages, index " + directorySize(new File(dir, "index")) / 1024
+                    + " KB, log " + new File(dir, "messages.log").length() / 1024 + " KB");
+
+            measure("rare word", queries, () -> "w" + (vocabulary / 2 + random.nextInt(vocabulary / 2)), history, users, random);
+            measure("common word", queries, () -> "w" + random.nextInt(10), history, users, random);
+            measure("common + medium", queries, () -> "w" + random.nextInt(10) + " w" + (100 + random.nextInt(900)),
+                    history, users, random);
+            measure("two medium words", queries, () -> "w" + (100 + random.nextInt(900)) + " w" + (100 + random.nextInt(900)),
+                    history, users, random);
+            // The sender's name is indexed with private messages
+            measure("private, by name", queries, () -> "user" + random.nextInt(users), history, users, random);
+        } finally {
+            if (!keep) {
+                deleteRecursively(dir);
+            }
+        }
+    }
+
+    private interface QuerySource {
+        String next();
+    }
+
+    private static void measure(String label, int queries, QuerySource source, ChatHistory history, int users,
+                                Random random) throws Exception {
+        long[] nanos = new long[queries];
+        long results = 0;
+        for (int i = 0; i < queries; i++) {
+            String query = source.next();
+            String user = "user" + random.nextInt(users);
+            long start = System.nanoTime();
+            results += history.search(user, query, 20).size();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        System.out.printf("%-18s p50 %7.3f ms  p99 %7.3f ms  max %7.3f ms  (%.1f results per query)%n", label,
+                nanos[queries / 2] / 1e6, nanos[(int) (queries * 0.99)] / 1e6, nanos[queries - 1] / 1e6,
+                (double) results / queries);
+    }
+
+    private static int zipf(double[] cumulative, Random random) {
+        double target = random.nextDouble() * cumulative[cumulative.length - 1];
+        int index = Arrays.binarySearch(cumulative, target);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private static long directorySize(File dir) {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
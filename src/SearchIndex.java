@@ -0,0 +1,371 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+// Incremental inverted index from terms to document ids, for searching chat history.
+// Documents are added in increasing id order into an in-memory segment. Every FLUSH_DOCS
+// documents that segment is frozen (still searchable) and written to disk as an
+// IndexSegment by a background thread, which also merges runs of MERGE_FACTOR segments
+// of similar size into one, so a search touches a few segments rather than thousands.
+// On-disk segments are memory-mapped, the heap holds only the current in-memory segment.
+//
+// The in-memory segments are not persisted: after a restart getMaxDoc() tells the owner
+// from which document on it has to add documents again. Segments holding documents the
+// owner no longer has (docCount and up, lost in a crash) are dropped on opening.
+public class SearchIndex implements Closeable {
+
+    static final int FLUSH_DOCS = 65_536;
+    private static final int MERGE_FACTOR = 8;
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    // Documents of one term in increasing order
+    interface Postings {
+        int size();
+
+        // Largest document <= target, -1 if there is none
+        int floor(int target);
+    }
+
+    private final File directory;
+    private final ExecutorService background;
+
+    private MemorySegment active = new MemorySegment();
+    private List<MemorySegment> frozen = new ArrayList<>();
+    // Oldest first, replaced rather than modified so searches can use a snapshot
+    private volatile List<IndexSegment> segments;
+    private int maxDoc = -1;
+
+    public SearchIndex(File directory, int docCount) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        segments = load(docCount);
+        if (!segments.isEmpty()) {
+            maxDoc = segments.get(segments.size() - 1).getMaxDoc();
+        }
+        background = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "search-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        background.execute(this::mergeSegments);
+    }
+
+    // Segments left by earlier runs. A merge interrupted after writing its result leaves
+    // the inputs as well, those are covered by the larger segment and deleted.
+    private List<IndexSegment> load(int docCount) throws IOException {
+        List<IndexSegment> found = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    file.delete();
+                } else if (file.getName().startsWith("segment-") && file.getName().endsWith(".idx")) {
+                    found.add(IndexSegment.open(file));
+                }
+            }
+        }
+        found.sort(Comparator.comparingInt(IndexSegment::getMinDoc)
+                .thenComparing(Comparator.comparingInt(IndexSegment::getMaxDoc).reversed()));
+        List<IndexSegment> kept = new ArrayList<>();
+        int next = 0;
+        for (IndexSegment segment : found) {
+            if (segment.getMinDoc() < next || segment.getMaxDoc() >= docCount) {
+                segment.getFile().delete();
+            } else if (segment.getMinDoc() > next) {
+                // A gap, everything from there on is added again
+                segment.getFile().delete();
+                next = Integer.MAX_VALUE;
+            } else {
+                kept.add(segment);
+                next = segment.getMaxDoc() + 1;
+            }
+        }
+        return kept;
+    }
+
+    // Highest document added so far, -1 if none
+    public synchronized int getMaxDoc() {
+        return maxDoc;
+    }
+
+    public synchronized void add(int doc, Collection<String> terms) {
+        if (doc <= maxDoc) {
+            throw new IllegalArgumentException("Document " + doc + " is not after " + maxDoc);
+        }
+        active.add(doc, terms);
+        maxDoc = doc;
+        if (active.docs >= FLUSH_DOCS) {
+            MemorySegment full = active;
+            frozen.add(full);
+            active = new MemorySegment();
+            background.execute(() -> flush(full));
+        }
+    }
+
+    // Up to `limit` documents holding all of `terms`, newest first. A document that also
+    // holds `restricted` only counts if it holds `allowed` too, e.g. private messages only
+    // for their participants.
+    public int[] search(List<String> terms, String restricted, String allowed, int limit) {
+        if (terms.isEmpty() || limit <= 0) {
+            return new int[0];
+        }
+        List<String> all = new ArrayList<>(terms);
+        all.add(restricted);
+        all.add(allowed);
+        List<Map<String, Postings>> snapshot = new ArrayList<>();
+        List<IndexSegment> onDisk;
+        synchronized (this) {
+            // The active segment keeps growing, so its lists are copied
+            snapshot.add(active.postings(all, true));
+            for (int i = frozen.size() - 1; i >= 0; i--) {
+                snapshot.add(frozen.get(i).postings(all, false));
+            }
+            onDisk = segments;
+        }
+
+        int[] results = new int[limit];
+        int found = 0;
+        for (Map<String, Postings> segment : snapshot) {
+            found = searchSegment(terms, segment::get, restricted, allowed, results, found);
+        }
+        for (int i = onDisk.size() - 1; i >= 0 && found < limit; i--) {
+            found = searchSegment(terms, onDisk.get(i)::postings, restricted, allowed, results, found);
+        }
+        return Arrays.copyOf(results, found);
+    }
+
+    // Walks the lists backwards from the end, each one jumping to the largest document
+    // not above the current candidate, so only documents present in the rarest list are tried
+    private static int searchSegment(List<String> terms, Function<String, Postings> lookup,
+                                     String restricted, String allowed, int[] results, int found) {
+        if (found >= results.length) {
+            return found;
+        }
+        Postings[] lists = new Postings[terms.size()];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = lookup.apply(terms.get(i));
+            if (lists[i] == null) {
+                return found;
+            }
+        }
+        Arrays.sort(lists, Comparator.comparingInt(Postings::size));
+        Postings restrictedList = lookup.apply(restricted);
+        Postings allowedList = restrictedList == null ? null : lookup.apply(allowed);
+
+        int candidate = Integer.MAX_VALUE;
+        while (found < results.length) {
+            int doc = lists[0].floor(candidate);
+            if (doc < 0) {
+                break;
+            }
+            boolean match = true;
+            for (int i = 1; i < lists.length && match; i++) {
+                int other = lists[i].floor(doc);
+                if (other < 0) {
+                    return found;
+                }
+                if (other != doc) {
+                    candidate = other;
+                    match = false;
+                }
+            }
+            if (!match) {
+                continue;
+            }
+            if (restrictedList == null || restrictedList.floor(doc) != doc
+                    || (allowedList != null && allowedList.floor(doc) == doc)) {
+                results[found++] = doc;
+            }
+            candidate = doc - 1;
+        }
+        return found;
+    }
+
+    private void flush(MemorySegment segment) {
+        try {
+            File file = segmentFile(segment.minDoc, segment.maxDoc);
+            File tmp = new File(file.getPath() + ".tmp");
+            segment.write(tmp);
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmp);
+            }
+            IndexSegment written = IndexSegment.open(file);
+            synchronized (this) {
+                List<IndexSegment> updated = new ArrayList<>(segments);
+                updated.add(written);
+                segments = updated;
+                frozen.remove(segment);
+            }
+        } catch (IOException e) {
+            // Stays in memory and searchable, it is indexed again after a restart
+            ServerLog.error("Writing search index segment failed: {}", e.getMessage());
+            return;
+        }
+        mergeSegments();
+    }
+
+    // Merges the oldest run of MERGE_FACTOR adjacent segments of the same size class
+    // (FLUSH_DOCS, MERGE_FACTOR times that, ...) until there is none left
+    private void mergeSegments() {
+        while (true) {
+            List<IndexSegment> current = segments;
+            int start = -1;
+            for (int i = 0; i + MERGE_FACTOR <= current.size() && start < 0; i++) {
+                int level = level(current.get(i));
+                long bytes = 0;
+                boolean run = true;
+                for (int j = i; j < i + MERGE_FACTOR && run; j++) {
+                    run = level(current.get(j)) == level;
+                    bytes += current.get(j).getBytes();
+                }
+                if (run && bytes < MAX_SEGMENT_BYTES) {
+                    start = i;
+                }
+            }
+            if (start < 0) {
+                return;
+            }
+            List<IndexSegment> inputs = new ArrayList<>(current.subList(start, start + MERGE_FACTOR));
+            try {
+                long began = System.nanoTime();
+                File file = segmentFile(inputs.get(0).getMinDoc(), inputs.get(inputs.size() - 1).getMaxDoc());
+                File tmp = new File(file.getPath() + ".tmp");
+                IndexSegment.merge(inputs, tmp);
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Cannot rename " + tmp);
+                }
+                IndexSegment merged = IndexSegment.open(file);
+                synchronized (this) {
+                    // Only this thread replaces segments, the run is still where it was
+                    List<IndexSegment> updated = new ArrayList<>(segments);
+                    int at = updated.indexOf(inputs.get(0));
+                    updated.subList(at, at + inputs.size()).clear();
+                    updated.add(at, merged);
+                    segments = updated;
+                }
+                // Searches still holding the old ones keep their mappings, the files go now
+                for (IndexSegment input : inputs) {
+                    input.getFile().delete();
+                }
+                ServerLog.info("Search index: merged segments into {} ({n} KB) in {n} ms", file.getName(),
+                        merged.getBytes() / 1024, (System.nanoTime() - began) / 1_000_000);
+            } catch (IOException e) {
+                ServerLog.error("Merging search index segments failed: {}", e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private static int level(IndexSegment segment) {
+        long docs = (long) segment.getMaxDoc() - segment.getMinDoc() + 1;
+        int level = 0;
+        for (long size = FLUSH_DOCS * (long) MERGE_FACTOR; docs >= size; size *= MERGE_FACTOR) {
+            level++;
+        }
+        return level;
+    }
+
+    private File segmentFile(int minDoc, int maxDoc) {
+        return new File(directory, String.format("segment-%010d-%010d.idx", minDoc, maxDoc));
+    }
+
+    // Waits for pending segment writes, the active segment is left to be rebuilt
+    @Override
+    public void close() {
+        background.shutdown();
+        try {
+            background.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Growable list of increasing document ids
+    private static class DocList {
+        int[] docs = new int[4];
+        int size;
+
+        void add(int doc) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            docs[size++] = doc;
+        }
+    }
+
+    private static class ArrayPostings implements Postings {
+        private final int[] docs;
+        private final int size;
+
+        ArrayPostings(int[] docs, int size) {
+            this.docs = docs;
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int floor(int target) {
+            int index = Arrays.binarySearch(docs, 0, size, target);
+            if (index >= 0) {
+                return docs[index];
+            }
+            int before = -index - 2;
+            return before >= 0 ? docs[before] : -1;
+        }
+    }
+
+    private static class MemorySegment {
+        final Map<String, DocList> terms = new HashMap<>();
+        int minDoc = -1;
+        int maxDoc = -1;
+        int docs;
+
+        void add(int doc, Collection<String> docTerms) {
+            for (String term : docTerms) {
+                terms.computeIfAbsent(term, t -> new DocList()).add(doc);
+            }
+            if (minDoc < 0) {
+                minDoc = doc;
+            }
+            maxDoc = doc;
+            docs++;
+        }
+
+        Map<String, Postings> postings(List<String> wanted, boolean copy) {
+            Map<String, Postings> result = new HashMap<>();
+            for (String term : wanted) {
+                DocList list = terms.get(term);
+                if (list != null) {
+                    result.put(term, new ArrayPostings(copy ? Arrays.copyOf(list.docs, list.size) : list.docs, list.size));
+                }
+            }
+            return result;
+        }
+
+        void write(File file) throws IOException {
+            List<byte[]> sorted = new ArrayList<>();
+            for (String term : terms.keySet()) {
+                sorted.add(term.getBytes(StandardCharsets.UTF_8));
+            }
+            sorted.sort(Arrays::compareUnsigned);
+            try (IndexSegment.Writer writer = new IndexSegment.Writer(file, minDoc, maxDoc)) {
+                for (byte[] term : sorted) {
+                    DocList list = terms.get(new String(term, StandardCharsets.UTF_8));
+                    writer.startTerm(term);
+                    for (int i = 0; i < list.size; i++) {
+                        writer.add(list.docs[i]);
+                    }
+                    writer.endTerm();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import java.nio.ByteBuffer;
+
+// In-flight segments of one sender, in a ring indexed by seq & (capacity - 1).
+// Sequence numbers [head, tail) are sent and not yet acknowledged. Each slot keeps its
+// send time and length in primitive arrays and its payload in a fixed slice of one
+// pooled direct buffer, so sending and acknowledging allocate nothing and a cumulative
+// ACK only moves head.
+//
+// The send loop is the only writer of tail and of the slot being filled, the ACK thread
+// the only writer of head. A slot is reused only after its segment has been acknowledged.
+public class SegmentRing implements AutoCloseable {
+
+    private final int mask;
+    private final int segmentSize;
+    private final ByteBuffer storage;
+    private final ByteBuffer[] payloads;
+    private final long[] sentAt;
+    private final int[] lengths;
+
+    private volatile int head = 0;
+    private volatile int tail = 0;
+
+    public SegmentRing(int minCapacity, int segmentSize) {
+        int capacity = Integer.highestOneBit(Math.max(minCapacity, 2) - 1) << 1;
+        this.mask = capacity - 1;
+        this.segmentSize = segmentSize;
+        this.storage = DirectBufferPool.acquire(capacity * segmentSize);
+        this.payloads = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            payloads[i] = storage.slice(i * segmentSize, segmentSize);
+        }
+        this.sentAt = new long[capacity];
+        this.lengths = new int[capacity];
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public int inFlight() {
+        return tail - head;
+    }
+
+    public boolean isFull() {
+        return tail - head > mask;
+    }
+
+    public boolean contains(int seq) {
+        return seq >= head && seq < tail;
+    }
+
+    // Buffer to fill with the next segment (seq == tail), cleared and limited to segmentSize
+    public ByteBuffer nextPayload() {
+        if (isFull()) {
+            throw new IllegalStateException("Segment ring full at " + tail);
+        }
+        ByteBuffer payload = payloads[tail & mask];
+        payload.clear();
+        return payload;
+    }
+
+    // Commits the buffer returned by nextPayload() as segment `tail`, returns its sequence number
+    public int commit(int length, long now) {
+        int seq = tail;
+        lengths[seq & mask] = length;
+        sentAt[seq & mask] = now;
+        tail = seq + 1;
+        return seq;
+    }
+
+    public void markSent(int seq, long now) {
+        sentAt[seq & mask] = now;
+    }
+
+    public long sentAt(int seq) {
+        return sentAt[seq & mask];
+    }
+
+    public int length(int seq) {
+        return lengths[seq & mask];
+    }
+
+    // Copies a segment's payload without touching the slot's position, safe from either thread
+    public void copyPayload(int seq, byte[] dst) {
+        payloads[seq & mask].get(0, dst, 0, lengths[seq & mask]);
+    }
+
+    // Cumulative ACK: everything up to and including seq is delivered
+    public void acknowledgeThrough(int seq) {
+        if (seq >= head) {
+            head = Math.min(seq + 1, tail);
+        }
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    @Override
+    public void close() {
+        DirectBufferPool.release(storage);
+    }
+}
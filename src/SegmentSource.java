@@ -0,0 +1,17 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+// Supplies the bytes a TCPRenoSender puts into its segments
+public interface SegmentSource extends Closeable {
+
+    // Fills dst with the next bytes of the stream, blocking until at least one is
+    // available. Returns the number of bytes added, -1 at the end of the stream.
+    int read(ByteBuffer dst) throws IOException;
+
+    // Bytes of the file covered by what read() has returned so far, for progress
+    long getFileBytesRead();
+
+    @Override
+    default void close() {
+    }
+}
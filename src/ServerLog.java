@@ -0,0 +1,233 @@
+import java.io.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Server logging that never blocks the thread logging. A call claims a slot in a ring of
+// preallocated records with one CAS and stores the template and its arguments; nothing is
+// formatted or concatenated on the caller's thread. One background thread formats the
+// records, writes them to the log in batches and flushes when the ring runs empty. When
+// the ring is full the record is dropped and counted, the writer reports how many.
+//
+// Templates take "{}" for the object arguments and "{n}" for the long ones, each in order:
+//
+//   ServerLog.info("{} resumed, replayed {n} messages", username, count);
+//
+// Chat content (public lines, private messages) goes through chat(): off by default,
+// otherwise one message in `chatSample` is logged.
+public final class ServerLog {
+
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    private static final int CAPACITY = 65_536; // Power of two
+    private static final long MAX_IDLE_PARK = 10_000_000;
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static final Slot[] slots = new Slot[CAPACITY];
+    // Next sequence to claim, and next one the writer reads
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed = 0;
+    private static final LongAdder dropped = new LongAdder();
+
+    private static volatile Level level = Level.INFO;
+    private static volatile int chatSample = 0;
+    private static volatile Writer sink = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), 1 << 16);
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot(i - CAPACITY);
+        }
+        Thread writer = new Thread(ServerLog::writeLoop, "server-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(1000)));
+    }
+
+    private ServerLog() {
+    }
+
+    private static class Slot {
+        // Sequence of the record in it, set last by the producer
+        volatile long sequence;
+        long time;
+        Level level;
+        boolean chat;
+        String thread;
+        String template;
+        Object a, b, c;
+        long n, m;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    // logFile null for standard output; chatSample 0 for no chat content, N for one in N
+    public static void configure(Level threshold, int sample, File logFile) throws IOException {
+        level = threshold;
+        chatSample = sample;
+        if (logFile != null) {
+            sink = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true)), 1 << 16);
+        }
+    }
+
+    public static boolean isEnabled(Level recordLevel) {
+        return recordLevel.ordinal() <= level.ordinal();
+    }
+
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    public static void error(String template) { publish(Level.ERROR, false, template, null, null, null, 0, 0); }
+    public static void error(String template, Object a) { publish(Level.ERROR, false, template, a, null, null, 0, 0); }
+    public static void error(String template, Object a, Object b) { publish(Level.ERROR, false, template, a, b, null, 0, 0); }
+
+    public static void warn(String template, Object a) { publish(Level.WARN, false, template, a, null, null, 0, 0); }
+    public static void warn(String template, Object a, Object b) { publish(Level.WARN, false, template, a, b, null, 0, 0); }
+
+    public static void info(String template, Object a) { publish(Level.INFO, false, template, a, null, null, 0, 0); }
+    public static void info(String template, Object a, Object b) { publish(Level.INFO, false, template, a, b, null, 0, 0); }
+    public static void info(String template, Object a, Object b, Object c) { publish(Level.INFO, false, template, a, b, c, 0, 0); }
+    public static void info(String template, long n) { publish(Level.INFO, false, template, null, null, null, n, 0); }
+    public static void info(String template, Object a, long n) { publish(Level.INFO, false, template, a, null, null, n, 0); }
+    public static void info(String template, Object a, long n, long m) { publish(Level.INFO, false, template, a, null, null, n, m); }
+
+    public static void debug(String template, Object a) { publish(Level.DEBUG, false, template, a, null, null, 0, 0); }
+    public static void debug(String template, Object a, Object b) { publish(Level.DEBUG, false, template, a, b, null, 0, 0); }
+
+    public static void chat(String template, Object a, Object b) { chat(template, a, b, null); }
+
+    public static void chat(String template, Object a, Object b, Object c) {
+        int sample = chatSample;
+        if (sample > 0 && (sample == 1 || ThreadLocalRandom.current().nextInt(sample) == 0)) {
+            publish(Level.INFO, true, template, a, b, c, 0, 0);
+        }
+    }
+
+    private static void publish(Level recordLevel, boolean chat, String template, Object a, Object b, Object c,
+                                long n, long m) {
+        if (recordLevel.ordinal() > level.ordinal()) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = slots[(int) (sequence & (CAPACITY - 1))];
+        slot.time = System.currentTimeMillis();
+        slot.level = recordLevel;
+        slot.chat = chat;
+        slot.thread = Thread.currentThread().getName();
+        slot.template = template;
+        slot.a = a;
+        slot.b = b;
+        slot.c = c;
+        slot.n = n;
+        slot.m = m;
+        slot.sequence = sequence; // Publishes the fields above to the writer
+    }
+
+    private static void writeLoop() {
+        StringBuilder line = new StringBuilder(256);
+        long idlePark = 100_000;
+        long reportedDrops = 0;
+        while (true) {
+            int written = 0;
+            try {
+                Writer out = sink;
+                Slot slot;
+                while ((slot = slots[(int) (consumed & (CAPACITY - 1))]).sequence == consumed) {
+                    line.setLength(0);
+                    format(slot, line);
+                    slot.a = slot.b = slot.c = null;
+                    slot.thread = null;
+                    slot.template = null;
+                    consumed++; // Frees the slot
+                    out.append(line);
+                    written++;
+                }
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    out.write(TIME_FORMAT.format(Instant.now()) + " WARN  [server-log] " + (drops - reportedDrops)
+                            + " log records dropped, the log could not keep up" + System.lineSeparator());
+                    reportedDrops = drops;
+                    written++;
+                }
+                if (written > 0) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Nowhere left to report it; keep consuming so callers never wait
+            }
+            if (written > 0) {
+                idlePark = 100_000;
+            } else {
+                LockSupport.parkNanos(idlePark);
+                idlePark = Math.min(idlePark * 2, MAX_IDLE_PARK);
+            }
+        }
+    }
+
+    // Date and time up to the second, formatted once per second
+    private static long formattedSecond = -1;
+    private static String secondPrefix;
+
+    private static void format(Slot slot, StringBuilder line) {
+        long second = slot.time / 1000;
+        if (second != formattedSecond) {
+            secondPrefix = TIME_FORMAT.format(Instant.ofEpochSecond(second)).substring(0, 19);
+            formattedSecond = second;
+        }
+        int millis = (int) (slot.time % 1000);
+        line.append(secondPrefix).append('.').append((char) ('0' + millis / 100))
+                .append((char) ('0' + millis / 10 % 10)).append((char) ('0' + millis % 10)).append(' ');
+        String label = slot.chat ? "CHAT" : slot.level.name();
+        line.append(label);
+        for (int i = label.length(); i < 6; i++) {
+            line.append(' ');
+        }
+        line.append('[').append(slot.thread).append("] ");
+        String template = slot.template;
+        Object[] objects = {slot.a, slot.b, slot.c};
+        long[] numbers = {slot.n, slot.m};
+        int object = 0;
+        int number = 0;
+        for (int i = 0; i < template.length(); i++) {
+            char ch = template.charAt(i);
+            if (ch == '{' && template.startsWith("{}", i) && object < objects.length) {
+                line.append(objects[object++]);
+                i++;
+            } else if (ch == '{' && template.startsWith("{n}", i) && number < numbers.length) {
+                line.append(numbers[number++]);
+                i += 2;
+            } else {
+                line.append(ch);
+            }
+        }
+        line.append(System.lineSeparator());
+    }
+
+    // Waits up to timeoutMillis for the writer to catch up, for shutdown
+    public static void drain(long timeoutMillis) {
+        long target = claimed.get();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (consumed < target && System.currentTimeMillis() < deadline) {
+            LockSupport.parkNanos(1_000_000);
+        }
+        try {
+            sink.flush();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,165 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+// Receiving side of TCPRenoSender: reorders segments and sends cumulative ACKs with flow control
+public class TCPRenoReceiver {
+    private Socket socket;
+    private FileChannel channel;
+    private final boolean ownsChannel;
+    private final ByteRanges ranges; // Where the received stream goes in the target file
+    private long fileSize;
+    private DataInputStream dis;
+    private DataOutputStream dos;
+    private final TransferListener listener;
+
+    // Flow control parameters
+    private int receiverWindow = 65535;
+    private int bufferSize = 32768; // 32KB buffer
+    private int expectedSeqNum = 0;
+    private Map<Integer, byte[]> receivedSegments = new TreeMap<>();
+
+    // How long to keep re-acknowledging after the last byte, in case the final ACK is lost
+    private int lingerMillis = 1000;
+
+    // Set when the sender deflates the stream, segments then carry compressed frames
+    private DecompressingWriter decompressor;
+
+    public TCPRenoReceiver(Socket socket, File saveFile, long fileSize, TransferListener listener) throws IOException {
+        this(socket, ParallelFileTransfer.preallocate(saveFile, fileSize), true, ByteRanges.of(0, fileSize), listener);
+    }
+
+    // Receives the given ranges into a shared, already allocated file, used for parallel streams
+    // and resumed transfers
+    public TCPRenoReceiver(Socket socket, FileChannel channel, ByteRanges ranges,
+                           TransferListener listener) throws IOException {
+        this(socket, channel, false, ranges, listener);
+    }
+
+    private TCPRenoReceiver(Socket socket, FileChannel channel, boolean ownsChannel, ByteRanges ranges,
+                            TransferListener listener) throws IOException {
+        this.socket = socket;
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.ranges = ranges;
+        this.fileSize = ranges.getTotalLength();
+        this.listener = listener;
+        this.dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.dos = new DataOutputStream(socket.getOutputStream());
+
+        socket.setTcpNoDelay(true);
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.decompressor = compressed ? new DecompressingWriter(channel, ranges) : null;
+    }
+
+    public void receiveFileWithFlowControl() throws IOException {
+        try {
+            long totalBytesReceived = 0;
+
+            while (fileBytesWritten(totalBytesReceived) < fileSize) {
+                // Read segment
+                int seqNum = dis.readInt();
+                int dataLength = dis.readInt();
+                byte[] data = new byte[dataLength];
+                dis.readFully(data);
+
+                if (seqNum == expectedSeqNum) {
+                    // In-order segment
+                    write(data, totalBytesReceived);
+                    totalBytesReceived += dataLength;
+                    expectedSeqNum++;
+
+                    // Check for buffered segments
+                    while (receivedSegments.containsKey(expectedSeqNum)) {
+                        byte[] bufferedData = receivedSegments.remove(expectedSeqNum);
+                        write(bufferedData, totalBytesReceived);
+                        totalBytesReceived += bufferedData.length;
+                        expectedSeqNum++;
+                    }
+
+                    // Send ACK for the last in-order segment received
+                    sendAck(expectedSeqNum - 1);
+                } else if (seqNum > expectedSeqNum) {
+                    // Out-of-order segment
+                    receivedSegments.put(seqNum, data);
+
+                    // Send duplicate ACK for last in-order segment
+                    sendAck(expectedSeqNum - 1);
+                } else {
+                    // Duplicate segment (already received)
+                    sendAck(expectedSeqNum - 1);
+                }
+
+                // Update progress
+                listener.onProgress(fileBytesWritten(totalBytesReceived), fileSize);
+
+                // Update receiver window based on available buffer space
+                updateReceiverWindow();
+            }
+
+            linger();
+        } finally {
+            if (decompressor != null) {
+                decompressor.close();
+            }
+            if (ownsChannel) {
+                channel.close();
+            }
+            socket.close();
+        }
+    }
+
+    // Positional write, streams sharing the channel never move a common file pointer.
+    // The sender never lets a segment cross a range boundary.
+    private void write(byte[] data, long position) throws IOException {
+        if (decompressor != null) {
+            decompressor.write(data, 0, data.length);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long target = ranges.fileOffset(position);
+        while (buffer.hasRemaining()) {
+            target += channel.write(buffer, target);
+        }
+    }
+
+    // Received bytes are file bytes unless they are compressed frames
+    private long fileBytesWritten(long streamBytes) {
+        return decompressor != null ? decompressor.getFileBytesWritten() : streamBytes;
+    }
+
+    // Answer retransmissions of segments whose ACK got lost until the sender goes quiet
+    private void linger() throws IOException {
+        socket.setSoTimeout(lingerMillis);
+        try {
+            while (true) {
+                dis.readInt();
+                int dataLength = dis.readInt();
+                dis.skipBytes(dataLength);
+                sendAck(expectedSeqNum - 1);
+            }
+        } catch (SocketTimeoutException | EOFException e) {
+            // Sender is done
+        }
+    }
+
+    private void sendAck(int ackNum) throws IOException {
+        dos.writeInt(ackNum);
+        dos.writeInt(receiverWindow);
+        dos.flush();
+    }
+
+    private void updateReceiverWindow() {
+        // Simple flow control: reduce window if buffer is getting full
+        int bufferedSegments = receivedSegments.size();
+        if (bufferedSegments > 50) {
+            receiverWindow = Math.max(receiverWindow / 2, 1024);
+        } else if (bufferedSegments < 10) {
+            receiverWindow = Math.min(receiverWindow * 2, 65535);
+        }
+    }
+}
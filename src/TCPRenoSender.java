@@ -0,0 +1,538 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import jdk.jfr.EventType;
+
+// TCP Reno style sender on top of a stream socket.
+// Segments are [seq:int][length:int][data], ACKs are [ackNum:int][window:int].
+public class TCPRenoSender {
+    private Socket socket;
+    private File file;
+    private final ByteRanges ranges; // Parts of the file this sender is responsible for
+    private DataOutputStream dos;
+    private DataInputStream dis;
+    private final TransferListener listener;
+
+    // Congestion control, cwnd and ssthresh live in the controller
+    private final CongestionController congestionController;
+    private int segmentSize = 1024; // Segment size in bytes
+    private int duplicateAcks = 0;
+    private volatile int lastAckedSeq = -1; // Nothing acknowledged yet, the first segment is 0
+    private volatile int nextSeqNum = 0;
+
+    // Timing parameters
+    private long rtt = 100; // Initial RTT estimate (ms)
+    private long rttvar = 50; // RTT variance
+    private long rto = 200; // Retransmission timeout
+    private final double alpha = 0.125; // RTT smoothing factor
+    private final double beta = 0.25; // RTT variance smoothing factor
+    private long timeout = 60000; // Overall transfer timeout (ms)
+
+    // Flow control
+    private int receiverWindow = 65535; // Receiver's advertised window
+    private int effectiveWindow;
+
+    // Share of the machine-wide upload budget, null = unlimited
+    private BandwidthScheduler.Share bandwidthShare;
+
+    private boolean compressed = false;
+
+    // Set when the file is shared with other senders, see GroupFileTransfer
+    private MappedFile mappedFile;
+
+    // Sender state samples, null = not recorded
+    private TransferTelemetry telemetry;
+    private int streamIndex; // Also labels the flight recorder events
+    private long lastSample = 0;
+    private volatile long bytesAcked = 0;
+    private static final long SAMPLE_INTERVAL = 5_000_000L; // ns between telemetry samples
+
+    // Statistics
+    private volatile int retransmissions = 0;
+
+    // Unacknowledged segments, with room for a full window
+    private final SegmentRing inFlight = new SegmentRing(2 * CongestionController.MAX_CWND, segmentSize);
+    private final byte[] writeBuffer = new byte[segmentSize]; // Guarded by writeSegment
+
+    // One retransmission timer per unacknowledged segment, 5ms ticks
+    private final TimerWheel retransmitTimers = new TimerWheel(5_000_000L, 256, 2 * CongestionController.MAX_CWND);
+    private int expiredCount;
+    private int oldestExpired;
+    private long rearmAt;
+    private final IntConsumer onTimerExpired = this::timerExpired; // One instance for every pass
+
+    // The ACK thread wakes the send loop when the window opens
+    private final Object ackSignal = new Object();
+    private boolean ackArrived = false;
+    private static final long MAX_IDLE_WAIT = 100; // ms, even with no timer armed
+    private static final long CWND_REPORT_INTERVAL = 20_000_000L; // ns between chart points
+    private static final long ACK_THREAD_STOP_WAIT = 1000; // ms
+
+    // Looked up once, asking it allocates nothing on the ACK path
+    private static final EventType CWND_CHANGE_EVENT = EventType.getEventType(TransferEvents.CongestionWindowChange.class);
+
+    public TCPRenoSender(Socket socket, File file, CongestionController congestionController,
+                         TransferListener listener) throws IOException {
+        this(socket, file, ByteRanges.of(0, file.length()), congestionController, listener);
+    }
+
+    // Sends only the given ranges of the file, used for parallel streams and resumed transfers
+    public TCPRenoSender(Socket socket, File file, ByteRanges ranges,
+                         CongestionController congestionController, TransferListener listener) throws IOException {
+        this.socket = socket;
+        this.file = file;
+        this.ranges = ranges;
+        this.congestionController = congestionController;
+        this.listener = listener;
+        this.dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.dis = new DataInputStream(socket.getInputStream());
+
+        // Set socket options for better performance
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(5000); // 5 second timeout for reading segments
+        // Don't set socket timeout for ACK reading - let it block
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public void setBandwidthShare(BandwidthScheduler.Share bandwidthShare) {
+        this.bandwidthShare = bandwidthShare;
+    }
+
+    public void setTelemetry(TransferTelemetry telemetry, int stream) {
+        this.telemetry = telemetry;
+        this.streamIndex = stream;
+    }
+
+    // Deflate the stream through a CompressingSource, the receiver must be set to match
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    // Reads from a mapping shared with other senders instead of opening the file itself.
+    // Not together with compression.
+    public void setMappedFile(MappedFile mappedFile) {
+        this.mappedFile = mappedFile;
+    }
+
+    // Returns true when every segment was acknowledged before the timeout
+    public boolean sendFileWithCongestionControl() throws IOException {
+        TransferEvents.Stream event = new TransferEvents.Stream();
+        event.begin();
+        boolean completed = false;
+        try {
+            completed = transmit();
+            return completed;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.file = file.getName();
+                event.stream = streamIndex;
+                event.algorithm = congestionController.getName();
+                event.compressed = compressed;
+                event.bytes = bytesAcked;
+                event.segments = nextSeqNum;
+                event.retransmissions = retransmissions;
+                event.completed = completed;
+                event.commit();
+            }
+        }
+    }
+
+    private boolean transmit() throws IOException {
+        Thread ackReceiver = null;
+        try (FileChannel channel = mappedFile == null ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null;
+             SegmentSource source = mappedFile != null ? new MappedFileSource(mappedFile, ranges)
+                     : compressed ? new CompressingSource(channel, ranges) : new FileRangeSource(channel, ranges)) {
+            int bytesRead;
+            boolean sourceDone = false;
+            long fileSize = ranges.getTotalLength();
+
+            // Start ACK receiver thread
+            ackReceiver = new Thread(this::receiveAcks);
+            ackReceiver.setDaemon(true);
+            ackReceiver.start();
+
+            // Give ACK receiver time to start
+            Thread.sleep(100);
+
+            long startTime = System.currentTimeMillis();
+            long lastCwndReport = 0;
+            while (!sourceDone) {
+                // Check for overall timeout
+                if (System.currentTimeMillis() - startTime > timeout) {
+                    System.out.println("Transfer timeout - breaking");
+                    break;
+                }
+
+                int cwnd = congestionController.getCwnd();
+
+                // Calculate effective window (minimum of congestion window and receiver window)
+                effectiveWindow = Math.min(cwnd * segmentSize, receiverWindow);
+                int thispacket=1;
+                // Send segments within the window
+                boolean sentSomething = false;
+                while (canSendSegment() && thispacket <= cwnd) {
+                    // Read straight into the segment's slot in the ring
+                    bytesRead = source.read(inFlight.nextPayload());
+                    if (bytesRead < 0) {
+                        sourceDone = true;
+                        break;
+                    }
+
+                    if (bandwidthShare != null) {
+                        bandwidthShare.acquire(bytesRead);
+                    }
+                    sendSegment(bytesRead);
+                    thispacket ++;
+                    sentSomething = true;
+                    // Update progress
+                    listener.onProgress(source.getFileBytesRead(), fileSize);
+                }
+
+                long now = System.nanoTime();
+                if (now - lastCwndReport >= CWND_REPORT_INTERVAL) {
+                    listener.onCwnd(congestionController.getCwnd());
+                    lastCwndReport = now;
+                }
+                sample(now, false);
+
+                // Handle retransmissions
+                handleRetransmissions();
+
+                // Window full: sleep until an ACK opens it or the next timer is due
+                if (!sourceDone && (!sentSomething || !canSendSegment())) {
+                    awaitAckOrTimer();
+                }
+            }
+
+            // Keep repairing losses until the final ACK arrives
+            while (lastAckedSeq < nextSeqNum - 1 && ackReceiver.isAlive()
+                    && System.currentTimeMillis() - startTime <= timeout) {
+                handleRetransmissions();
+                sample(System.nanoTime(), false);
+                awaitAckOrTimer();
+            }
+
+            sample(System.nanoTime(), true);
+
+            if (source instanceof CompressingSource) {
+                CompressingSource stage = (CompressingSource) source;
+                System.out.println("Compressed " + stage.getBytesIn() + " -> " + stage.getBytesOut() + " bytes ("
+                        + stage.getStoredBlocks() + " blocks stored)");
+            }
+
+            return lastAckedSeq == nextSeqNum - 1 && sourceDone;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            // The ring's buffer goes back to the pool only once the ACK thread, which reads it
+            // for fast retransmits, is gone. One that does not stop in time keeps it.
+            if (ackReceiver == null || stopAckReceiver(ackReceiver)) {
+                inFlight.close();
+            }
+        }
+    }
+
+    // Nothing reads the socket after the transfer, shutting its input ends a blocked readInt
+    private boolean stopAckReceiver(Thread ackReceiver) {
+        ackReceiver.interrupt();
+        try {
+            socket.shutdownInput();
+        } catch (IOException ignored) {
+        }
+        try {
+            ackReceiver.join(ACK_THREAD_STOP_WAIT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !ackReceiver.isAlive();
+    }
+
+    public int getRetransmissions() {
+        return retransmissions;
+    }
+
+    public CongestionController getCongestionController() {
+        return congestionController;
+    }
+
+    private boolean canSendSegment() {
+        int segmentsInFlight = nextSeqNum - (lastAckedSeq + 1);
+        return segmentsInFlight < congestionController.getCwnd() && !inFlight.isFull();
+    }
+
+    // The send loop and the ACK thread both write, keep segments from interleaving.
+    // The socket is a plain stream, so the payload goes through one reused heap array.
+    private synchronized void writeSegment(int seqNum) throws IOException {
+        int length = inFlight.length(seqNum);
+        inFlight.copyPayload(seqNum, writeBuffer);
+        dos.writeInt(seqNum);
+        dos.writeInt(length);
+        dos.write(writeBuffer, 0, length);
+        dos.flush();
+    }
+
+    // Sends the segment just read into inFlight.nextPayload() as nextSeqNum
+    private void sendSegment(int length) throws IOException {
+        // Keep it in the ring for potential retransmission
+        int seqNum = inFlight.commit(length, System.currentTimeMillis());
+        writeSegment(seqNum);
+
+        //System.out.println("Sending segment: " + seqNum + ", cwnd: " + cwnd + ", lastAcked: " + lastAckedSeq);
+
+        armRetransmitTimer(seqNum);
+        nextSeqNum++;
+    }
+
+    private void receiveAcks() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    int ackNum = dis.readInt();
+                    int advertisedWindow = dis.readInt();
+
+                    //System.out.println("Received ACK: " + ackNum + ", lastAcked: " + lastAckedSeq);
+
+                    receiverWindow = advertisedWindow;
+
+                    if (ackNum > lastAckedSeq) {
+                        // New ACK received
+                        handleNewAck(ackNum);
+                    } else if (ackNum == lastAckedSeq) {
+                        // Duplicate ACK
+                        handleDuplicateAck(ackNum);
+                    }
+                    signalAck();
+                } catch (EOFException e) {
+                    // Receiver closed the connection
+                    break;
+                } catch (IOException e) {
+                    if (!Thread.currentThread().isInterrupted()) {
+                        //System.out.println("ACK read error: " + e.getMessage());
+                        Thread.sleep(10); // Brief pause before retrying
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.out.println("ACK receiver thread ended: " + e.getMessage());
+        } finally {
+            signalAck(); // The send loop notices the thread is gone
+        }
+    }
+
+    private void sample(long now, boolean force) {
+        if (telemetry != null && (force || now - lastSample >= SAMPLE_INTERVAL)) {
+            lastSample = now;
+            telemetry.record(streamIndex, congestionController.getCwnd(), congestionController.getSsthresh(),
+                    nextSeqNum - (lastAckedSeq + 1), rtt, rto, bytesAcked, retransmissions);
+        }
+    }
+
+    private void signalAck() {
+        synchronized (ackSignal) {
+            ackArrived = true;
+            ackSignal.notify();
+        }
+    }
+
+    private void awaitAckOrTimer() throws InterruptedException {
+        long waitNanos = TimeUnit.MILLISECONDS.toNanos(MAX_IDLE_WAIT);
+        long deadline = retransmitTimers.nextDeadline();
+        if (deadline != Long.MAX_VALUE) {
+            waitNanos = Math.min(waitNanos, deadline - System.nanoTime());
+        }
+        synchronized (ackSignal) {
+            if (!ackArrived && waitNanos > 0) {
+                TimeUnit.NANOSECONDS.timedWait(ackSignal, waitNanos);
+            }
+            ackArrived = false;
+        }
+    }
+
+    private void armRetransmitTimer(int seqNum) {
+        retransmitTimers.schedule(seqNum, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(rto));
+    }
+
+    private void handleNewAck(int ackNum) {
+        // Only process if this is a new ACK (ackNum > lastAckedSeq)
+        if (ackNum <= lastAckedSeq) {
+            return;
+        }
+
+        // Calculate RTT and update RTO for the acknowledged segment
+        long sampleRtt = -1;
+        if (inFlight.contains(ackNum)) {
+            sampleRtt = System.currentTimeMillis() - inFlight.sentAt(ackNum);
+            updateRtt(sampleRtt);
+        }
+        int ackedSegments = ackNum - lastAckedSeq;
+
+        // Stop the timers of ALL acknowledged segments up to ackNum and count their bytes,
+        // then release them with one move of the ring's head
+        long acked = bytesAcked;
+        for (int seq = lastAckedSeq + 1; seq <= ackNum; seq++) {
+            retransmitTimers.cancel(seq);
+            acked += inFlight.length(seq);
+        }
+        inFlight.acknowledgeThrough(ackNum);
+        bytesAcked = acked;
+
+        // Update last acknowledged sequence number
+        lastAckedSeq = ackNum;
+        duplicateAcks = 0;
+
+        //System.out.println("Cleaned up segments up to: " + ackNum + ", remaining: " + segmentTimestamps.size());
+
+        // Partial ACK during recovery (NewReno): the next hole is retransmitted right away
+        int previousCwnd = cwndBeforeChange();
+        boolean partialAck = congestionController.onAck(ackNum, ackedSegments, sampleRtt);
+        cwndChanged(previousCwnd, "ack");
+        if (partialAck) {
+            fastRetransmit(ackNum + 1, "partial ack");
+        }
+    }
+
+    private void handleDuplicateAck(int ackNum) {
+        duplicateAcks++;
+        int previousCwnd = cwndBeforeChange();
+        congestionController.onDuplicateAck();
+
+        if (duplicateAcks == 3) {
+            // Enter fast recovery, then fast retransmit
+            congestionController.onLoss(nextSeqNum - 1);
+            cwndChanged(previousCwnd, "3 duplicate acks");
+            fastRetransmit(ackNum + 1, "fast retransmit");
+        } else {
+            cwndChanged(previousCwnd, "duplicate ack");
+        }
+    }
+
+    private void fastRetransmit(int seqNum, String cause) {
+        if (inFlight.contains(seqNum)) {
+            try {
+                System.out.println("Fast retransmitting segment: " + seqNum);
+                writeSegment(seqNum);
+                retransmissions++;
+                listener.onRetransmit(seqNum);
+                retransmitted(seqNum, cause);
+                // Update timestamp for retransmitted segment
+                inFlight.markSent(seqNum, System.currentTimeMillis());
+                armRetransmitTimer(seqNum);
+            } catch (IOException e) {
+                System.out.println("Error in fast retransmit: " + e.getMessage());
+            }
+        }
+    }
+
+    // Fires every timer that is due in one pass. All of them count as a single timeout:
+    // the controller reacts once, the RTO backs off once, and only the oldest segment is
+    // resent right away. The rest get a fresh timer at the backed-off RTO, by then the
+    // cumulative ACK for the oldest usually covers them.
+    private void handleRetransmissions() {
+        expiredCount = 0;
+        oldestExpired = Integer.MAX_VALUE;
+        long backedOffRto = Math.min(rto * 2, 10000); // Cap at 10 seconds
+        rearmAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backedOffRto);
+        retransmitTimers.expire(System.nanoTime(), onTimerExpired);
+        if (expiredCount > 0) {
+            handleTimeout(oldestExpired, expiredCount);
+            // Exponential backoff
+            rto = backedOffRto;
+        }
+    }
+
+    // For each timer handleRetransmissions finds due
+    private void timerExpired(int seqNum) {
+        // Only segments that are not yet acknowledged
+        if (seqNum > lastAckedSeq) {
+            expiredCount++;
+            oldestExpired = Math.min(oldestExpired, seqNum);
+            retransmitTimers.schedule(seqNum, rearmAt);
+        }
+    }
+
+    private void handleTimeout(int seqNum, int expired) {
+        System.out.println("Timeout for segment: " + seqNum + " (" + expired + " timers expired, lastAcked: " + lastAckedSeq + ")");
+
+        int previousCwnd = cwndBeforeChange();
+        congestionController.onTimeout();
+        cwndChanged(previousCwnd, "timeout");
+        duplicateAcks = 0;
+
+        // Retransmit the oldest timed-out segment
+        if (inFlight.contains(seqNum)) {
+            try {
+                System.out.println("Timeout retransmitting segment: " + seqNum);
+                writeSegment(seqNum);
+                retransmissions++;
+                listener.onRetransmit(seqNum);
+                retransmitted(seqNum, "timeout");
+
+                // Update timestamp for retransmitted segment
+                inFlight.markSent(seqNum, System.currentTimeMillis());
+            } catch (IOException e) {
+                System.out.println("Error in timeout retransmit: " + e.getMessage());
+            }
+        }
+    }
+
+    private void retransmitted(int seqNum, String cause) {
+        TransferEvents.Retransmit event = new TransferEvents.Retransmit();
+        if (event.shouldCommit()) {
+            event.stream = streamIndex;
+            event.seqNum = seqNum;
+            event.cause = cause;
+            event.cwnd = congestionController.getCwnd();
+            event.rto = rto;
+            event.commit();
+        }
+    }
+
+    // Reads the window only while the event is being recorded, otherwise the ACK path pays nothing
+    private int cwndBeforeChange() {
+        return CWND_CHANGE_EVENT.isEnabled() ? congestionController.getCwnd() : -1;
+    }
+
+    private void cwndChanged(int previousCwnd, String cause) {
+        if (previousCwnd < 0) {
+            return;
+        }
+        TransferEvents.CongestionWindowChange event = new TransferEvents.CongestionWindowChange();
+        if (event.shouldCommit()) {
+            int cwnd = congestionController.getCwnd();
+            if (cwnd != previousCwnd) {
+                event.stream = streamIndex;
+                event.algorithm = congestionController.getName();
+                event.cause = cause;
+                event.previous = previousCwnd;
+                event.cwnd = cwnd;
+                event.ssthresh = congestionController.getSsthresh();
+                event.commit();
+            }
+        }
+    }
+
+    private void updateRtt(long sampleRtt) {
+        if (rtt == 0) {
+            rtt = sampleRtt;
+            rttvar = sampleRtt / 2;
+        } else {
+            rttvar = (long) ((1 - beta) * rttvar + beta * Math.abs(sampleRtt - rtt));
+            rtt = (long) ((1 - alpha) * rtt + alpha * sampleRtt);
+        }
+
+        rto = rtt + 4 * rttvar;
+        rto = Math.max(rto, 200); // Minimum RTO of 200ms
+        rto = Math.min(rto, 60000); // Maximum RTO of 60 seconds
+    }
+}
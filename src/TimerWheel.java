@@ -0,0 +1,218 @@
+import java.util.*;
+import java.util.function.IntConsumer;
+
+// Hashed timing wheel for timers keyed by an int id (a sequence number, a connection slot).
+// Each slot of the wheel covers one tick and holds an intrusive doubly linked list of
+// timers, so arming, re-arming and cancelling are O(1) and never allocate. Expiry walks
+// only the slots whose ticks have passed and hands every due id to the caller in one batch.
+//
+// Timers are stored in plain arrays indexed by the low bits of the id. Ids that are close
+// together (a window of sequence numbers) never collide; if two live ids do, the arrays grow.
+public class TimerWheel {
+
+    private static final int NONE = -1;
+
+    private final long tickNanos;
+    private final int slotMask;
+    private final int[] slotHeads;
+
+    // Timer nodes, indexed by id & nodeMask
+    private int nodeMask;
+    private int[] ids;
+    private boolean[] armed;
+    private long[] deadlines;
+    private int[] next;
+    private int[] prev;
+    private int[] slotOf;
+
+    private final long originNanos;
+    private long currentTick = 0; // Slots before this tick have been expired
+    private int size = 0;
+    private long earliestDeadline = Long.MAX_VALUE; // Never later than the real earliest deadline
+
+    private int[] batch = new int[16];
+
+    public TimerWheel(long tickNanos, int slots, int capacity) {
+        this.tickNanos = tickNanos;
+        int slotCount = Integer.highestOneBit(Math.max(slots, 2) - 1) << 1;
+        this.slotMask = slotCount - 1;
+        this.slotHeads = new int[slotCount];
+        Arrays.fill(slotHeads, NONE);
+        this.originNanos = System.nanoTime();
+        allocateNodes(Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1);
+    }
+
+    // Arms the timer for id, replacing its previous deadline if it was already armed
+    public synchronized void schedule(int id, long deadlineNanos) {
+        int node = id & nodeMask;
+        while (armed[node] && ids[node] != id) {
+            grow();
+            node = id & nodeMask;
+        }
+        if (armed[node]) {
+            unlink(node);
+        } else {
+            armed[node] = true;
+            ids[node] = id;
+            size++;
+        }
+        deadlines[node] = deadlineNanos;
+        link(node, Math.max(tickOf(deadlineNanos), currentTick));
+        earliestDeadline = Math.min(earliestDeadline, deadlineNanos);
+    }
+
+    public synchronized void cancel(int id) {
+        int node = id & nodeMask;
+        if (armed[node] && ids[node] == id) {
+            unlink(node);
+            armed[node] = false;
+            size--;
+        }
+    }
+
+    public synchronized boolean isArmed(int id) {
+        int node = id & nodeMask;
+        return armed[node] && ids[node] == id;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Earliest time a timer may fire, Long.MAX_VALUE when nothing is armed. Cancelling
+    // does not move it, so a caller sleeping until then can wake early but never late.
+    public synchronized long nextDeadline() {
+        return earliestDeadline;
+    }
+
+    // Disarms every timer that is due at `now` and then runs action for each of them,
+    // outside the lock so the action can re-arm timers or do I/O
+    public void expire(long now, IntConsumer action) {
+        int[] due;
+        int count = 0;
+        synchronized (this) {
+            if (now < earliestDeadline) {
+                return;
+            }
+            long nowTick = tickOf(now);
+            // Every slot is visited at most once, however long it has been
+            long lastTick = Math.min(nowTick, currentTick + slotMask);
+            for (long tick = currentTick; tick <= lastTick; tick++) {
+                int node = slotHeads[(int) (tick & slotMask)];
+                while (node != NONE) {
+                    int following = next[node];
+                    if (deadlines[node] <= now) {
+                        unlink(node);
+                        armed[node] = false;
+                        size--;
+                        if (count == batch.length) {
+                            batch = Arrays.copyOf(batch, count * 2);
+                        }
+                        batch[count++] = ids[node];
+                    }
+                    node = following;
+                }
+            }
+            currentTick = nowTick;
+            earliestDeadline = findEarliestDeadline();
+            if (count == 0) {
+                return;
+            }
+            due = Arrays.copyOf(batch, count);
+        }
+        for (int id : due) {
+            action.accept(id);
+        }
+    }
+
+    // Start of the first occupied slot from the current tick on. Timers a full turn of the
+    // wheel or more away share slots with nearer ones, so this is a lower bound.
+    private long findEarliestDeadline() {
+        if (size == 0) {
+            return Long.MAX_VALUE;
+        }
+        for (long tick = currentTick; tick <= currentTick + slotMask; tick++) {
+            int node = slotHeads[(int) (tick & slotMask)];
+            if (node != NONE) {
+                long earliest = Long.MAX_VALUE;
+                for (; node != NONE; node = next[node]) {
+                    earliest = Math.min(earliest, deadlines[node]);
+                }
+                // Later rounds can hide in this slot, never report past the slot's own tick
+                return Math.min(earliest, originNanos + (tick + 1) * tickNanos);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private long tickOf(long nanos) {
+        return Math.max(0, (nanos - originNanos) / tickNanos);
+    }
+
+    private void link(int node, long tick) {
+        int slot = (int) (tick & slotMask);
+        int head = slotHeads[slot];
+        slotOf[node] = slot;
+        prev[node] = NONE;
+        next[node] = head;
+        if (head != NONE) {
+            prev[head] = node;
+        }
+        slotHeads[slot] = node;
+    }
+
+    private void unlink(int node) {
+        if (prev[node] != NONE) {
+            next[prev[node]] = next[node];
+        } else {
+            slotHeads[slotOf[node]] = next[node];
+        }
+        if (next[node] != NONE) {
+            prev[next[node]] = prev[node];
+        }
+    }
+
+    private void allocateNodes(int capacity) {
+        nodeMask = capacity - 1;
+        ids = new int[capacity];
+        armed = new boolean[capacity];
+        deadlines = new long[capacity];
+        next = new int[capacity];
+        prev = new int[capacity];
+        slotOf = new int[capacity];
+    }
+
+    // Doubles the node arrays and re-links every armed timer under its new index
+    private void grow() {
+        int[] oldIds = ids;
+        boolean[] oldArmed = armed;
+        long[] oldDeadlines = deadlines;
+        Arrays.fill(slotHeads, NONE);
+        int capacity = oldIds.length;
+        while (true) {
+            capacity *= 2;
+            allocateNodes(capacity);
+            if (rehash(oldIds, oldArmed, oldDeadlines)) {
+                return;
+            }
+            Arrays.fill(slotHeads, NONE);
+        }
+    }
+
+    private boolean rehash(int[] oldIds, boolean[] oldArmed, long[] oldDeadlines) {
+        for (int i = 0; i < oldIds.length; i++) {
+            if (!oldArmed[i]) {
+                continue;
+            }
+            int node = oldIds[i] & nodeMask;
+            if (armed[node]) {
+                return false;
+            }
+            armed[node] = true;
+            ids[node] = oldIds[i];
+            deadlines[node] = oldDeadlines[i];
+            link(node, Math.max(tickOf(oldDeadlines[i]), currentTick));
+        }
+        return true;
+    }
+}
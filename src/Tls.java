@@ -0,0 +1,97 @@
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.*;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+// TLS settings for the chat and transfer channels. The key and certificate come from a
+// PKCS12 keystore, chat.p12 in the working directory unless -Dtls.keystore says otherwise
+// (password from -Dtls.password, default "changeit"). A self-signed one for local use:
+//
+//   keytool -genkeypair -alias chat -keyalg EC -groupname secp256r1 -dname CN=localhost \
+//       -ext san=dns:localhost,ip:127.0.0.1 -validity 365 -storetype PKCS12 -keystore chat.p12 -storepass changeit
+//
+// Whoever accepts the connection (the chat server, a client offering a file) is the TLS
+// server and presents that key. The connecting side trusts the certificates in
+// -Dtls.truststore, the same keystore by default, and checks the host name against them.
+//
+// Each side keeps one SSLContext for the life of the process. The context's session cache
+// lets a client that reconnects to the same host and port resume its session with an
+// abbreviated handshake, which keeps reconnect storms cheap.
+public class Tls {
+
+    public static final String PROTOCOL = "TLSv1.3";
+
+    private static SSLContext serverContext;
+    private static SSLContext clientContext;
+
+    public static synchronized SSLContext serverContext() throws IOException {
+        if (serverContext == null) {
+            serverContext = createContext(true);
+        }
+        return serverContext;
+    }
+
+    public static synchronized SSLContext clientContext() throws IOException {
+        if (clientContext == null) {
+            clientContext = createContext(false);
+        }
+        return clientContext;
+    }
+
+    private static SSLContext createContext(boolean server) throws IOException {
+        char[] password = System.getProperty("tls.password", "changeit").toCharArray();
+        String keystore = System.getProperty("tls.keystore", "chat.p12");
+        try {
+            SSLContext context = SSLContext.getInstance(PROTOCOL);
+            if (server) {
+                KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                keys.init(load(keystore, password), password);
+                context.init(keys.getKeyManagers(), null, null);
+            } else {
+                TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trust.init(load(System.getProperty("tls.truststore", keystore), password));
+                context.init(null, trust.getTrustManagers(), null);
+            }
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS setup failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static KeyStore load(String file, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(file)) {
+            store.load(in, password);
+        }
+        return store;
+    }
+
+    // Server side of a connection that was just accepted
+    public static TlsSocket server(Socket socket) throws IOException {
+        SSLEngine engine = serverContext().createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsSocket(socket, engine);
+    }
+
+    // Client side of a connection to host:port, which is also the session cache key
+    public static TlsSocket client(Socket socket, String host, int port) throws IOException {
+        SSLEngine engine = clientContext().createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return new TlsSocket(socket, engine);
+    }
+
+    // Listening socket whose accepted connections are TLS, with the handshake left to the
+    // first read or write so accepting never blocks on a slow peer
+    public static ServerSocket serverSocket(int port) throws IOException {
+        return new ServerSocket(port) {
+            @Override
+            public Socket accept() throws IOException {
+                return server(super.accept());
+            }
+        };
+    }
+}
@@ -0,0 +1,227 @@
+import javax.net.ssl.SSLEngine;
+import java.io.*;
+import java.net.*;
+import java.nio.file.Files;
+import java.util.*;
+
+// Measures what TLS costs on loopback: handshakes per second (plaintext connect, full TLS
+// handshake, resumed TLS handshake), bulk throughput over one connection, and a parallel
+// file transfer, each against plaintext. Without --keystore a self-signed certificate for
+// localhost is generated with keytool into a temporary directory.
+//
+// Usage: java TlsBenchmark [--connections=500] [--bulk=256] [--file=64] [--streams=4] [--keystore=chat.p12]
+// (bulk and file sizes in MB)
+public class TlsBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        int connections = Integer.parseInt(options.getOrDefault("connections", "500"));
+        long bulkBytes = Long.parseLong(options.getOrDefault("bulk", "256")) * 1024 * 1024;
+        long fileBytes = Long.parseLong(options.getOrDefault("file", "64")) * 1024 * 1024;
+        int streams = Integer.parseInt(options.getOrDefault("streams", "4"));
+
+        File tmp = Files.createTempDirectory("tls-benchmark").toFile();
+        try {
+            String keystore = options.get("keystore");
+            if (keystore == null) {
+                keystore = generateKeystore(tmp);
+            }
+            System.setProperty("tls.keystore", keystore);
+
+            System.out.println("handshakes, " + connections + " connections each");
+            double plain = handshakes(connections, Mode.PLAIN);
+            double full = handshakes(connections, Mode.FULL);
+            double resumed = handshakes(connections, Mode.RESUMED);
+            System.out.printf("  plaintext   %8.0f/s%n", plain);
+            System.out.printf("  TLS full    %8.0f/s%n", full);
+            System.out.printf("  TLS resumed %8.0f/s  (%.1fx full)%n", resumed, resumed / full);
+
+            System.out.println("bulk, " + bulkBytes / (1024 * 1024) + " MB over one connection");
+            double plainBulk = bulk(bulkBytes, false);
+            double tlsBulk = bulk(bulkBytes, true);
+            System.out.printf("  plaintext   %8.1f MB/s%n", plainBulk);
+            System.out.printf("  TLS         %8.1f MB/s  (%.0f%%)%n", tlsBulk, 100 * tlsBulk / plainBulk);
+
+            if (fileBytes > 0) {
+                System.out.println("file transfer, " + fileBytes / (1024 * 1024) + " MB over " + streams + " streams");
+                File source = new File(tmp, "source.bin");
+                writeRandomFile(source, fileBytes);
+                double plainFile = fileTransfer(source, new File(tmp, "plain.bin"), streams, false);
+                double tlsFile = fileTransfer(source, new File(tmp, "tls.bin"), streams, true);
+                System.out.printf("  plaintext   %8.1f MB/s%n", plainFile);
+                System.out.printf("  TLS         %8.1f MB/s  (%.0f%%)%n", tlsFile, 100 * tlsFile / plainFile);
+            }
+        } finally {
+            File[] files = tmp.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    private enum Mode { PLAIN, FULL, RESUMED }
+
+    private static String generateKeystore(File dir) throws IOException, InterruptedException {
+        File keystore = new File(dir, "chat.p12");
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "chat",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost",
+                "-ext", "san=dns:localhost,ip:127.0.0.1", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", keystore.getPath(),
+                "-storepass", System.getProperty("tls.password", "changeit"))
+                .redirectErrorStream(true)
+                .start();
+        String output = new String(process.getInputStream().readAllBytes());
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed: " + output);
+        }
+        return keystore.getPath();
+    }
+
+    // Connect, exchange one byte each way and close, `count` times in a row. The byte back
+    // from the server also carries the TLS 1.3 session ticket the next connection resumes with.
+    private static double handshakes(int count, Mode mode) throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress())) {
+            int port = serverSocket.getLocalPort();
+            int warmup = Math.max(1, count / 10);
+            Thread server = new Thread(() -> {
+                for (int i = 0; i < warmup + count; i++) {
+                    try (Socket socket = mode == Mode.PLAIN ? serverSocket.accept() : Tls.server(serverSocket.accept())) {
+                        InputStream in = socket.getInputStream();
+                        if (in.read() < 0) {
+                            continue;
+                        }
+                        socket.getOutputStream().write(1);
+                        in.read(); // Wait for the client to close
+                    } catch (IOException e) {
+                        System.out.println("server: " + e);
+                    }
+                }
+            });
+            server.setDaemon(true);
+            server.start();
+
+            // Warm up, which also leaves a session to resume from
+            for (int i = 0; i < warmup; i++) {
+                connect(port, mode);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                connect(port, mode);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            server.join();
+            return count / seconds;
+        }
+    }
+
+    private static void connect(int port, Mode mode) throws IOException {
+        Socket plain = new Socket("127.0.0.1", port);
+        Socket socket = plain;
+        if (mode == Mode.RESUMED) {
+            socket = Tls.client(plain, "localhost", port);
+        } else if (mode == Mode.FULL) {
+            // An engine without a peer host and port never looks in the session cache
+            SSLEngine engine = Tls.clientContext().createSSLEngine();
+            engine.setUseClientMode(true);
+            socket = new TlsSocket(plain, engine);
+        }
+        try (Socket closing = socket) {
+            closing.getOutputStream().write(1);
+            if (closing.getInputStream().read() < 0) {
+                throw new EOFException("Server closed the connection");
+            }
+        }
+    }
+
+    private static double bulk(long bytes, boolean tls) throws Exception {
+        try (ServerSocket serverSocket = tls ? Tls.serverSocket(0) : new ServerSocket(0)) {
+            int port = serverSocket.getLocalPort();
+            Thread server = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    InputStream in = socket.getInputStream();
+                    byte[] buffer = new byte[64 * 1024];
+                    long received = 0;
+                    while (received < bytes) {
+                        int n = in.read(buffer);
+                        if (n < 0) {
+                            break;
+                        }
+                        received += n;
+                    }
+                    socket.getOutputStream().write(1);
+                    socket.getOutputStream().flush();
+                } catch (IOException e) {
+                    System.out.println("server: " + e);
+                }
+            });
+            server.setDaemon(true);
+            server.start();
+
+            Socket plain = new Socket("127.0.0.1", port);
+            try (Socket socket = tls ? Tls.client(plain, "localhost", port) : plain) {
+                if (socket instanceof TlsSocket) {
+                    ((TlsSocket) socket).startHandshake(); // Not part of the throughput
+                }
+                byte[] buffer = new byte[64 * 1024];
+                new Random(1).nextBytes(buffer);
+                OutputStream out = socket.getOutputStream();
+                long start = System.nanoTime();
+                for (long sent = 0; sent < bytes; sent += buffer.length) {
+                    out.write(buffer, 0, (int) Math.min(buffer.length, bytes - sent));
+                }
+                out.flush();
+                if (socket.getInputStream().read() < 0) {
+                    throw new EOFException("Server closed the connection");
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                server.join();
+                return bytes / (1024.0 * 1024.0) / seconds;
+            }
+        }
+    }
+
+    private static double fileTransfer(File source, File target, int streams, boolean tls) throws Exception {
+        target.delete();
+        try (ServerSocket serverSocket = tls ? Tls.serverSocket(0) : new ServerSocket(0)) {
+            int port = serverSocket.getLocalPort();
+            boolean[] sent = new boolean[1];
+            Thread sender = new Thread(() -> {
+                try {
+                    sent[0] = ParallelFileTransfer.send(serverSocket, source, streams, "reno", false,
+                            null, null, TransferListener.NONE);
+                } catch (IOException e) {
+                    System.out.println("sender: " + e);
+                }
+            });
+            sender.start();
+            long start = System.nanoTime();
+            ParallelFileTransfer.receive("localhost", port, target, source.length(), streams, tls, TransferListener.NONE);
+            sender.join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (!sent[0] || target.length() != source.length()) {
+                throw new IOException("Transfer incomplete");
+            }
+            return source.length() / (1024.0 * 1024.0) / seconds;
+        }
+    }
+
+    private static void writeRandomFile(File file, long size) throws IOException {
+        Random random = new Random(1);
+        byte[] buffer = new byte[1024 * 1024];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+    }
+}
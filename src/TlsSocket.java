@@ -0,0 +1,476 @@
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+// TLS on top of an already connected socket, driven by an SSLEngine, so the chat and
+// transfer code keeps using plain Socket streams. Reading and writing have separate locks
+// (SSLEngine allows wrap and unwrap at the same time), so a thread blocked reading never
+// holds up one that is writing. The handshake runs on the first read or write, or when
+// startHandshake is called.
+//
+// The record buffers are heap buffers, the data comes from and goes to byte[] streams and
+// the JDK ciphers work on arrays. They are pooled per connection set and returned on close.
+// Writes put up to WRITE_RECORDS records into one socket write.
+public class TlsSocket extends Socket {
+
+    private static final int WRITE_RECORDS = 4;
+    private static final int MAX_POOLED = 64;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    // [netIn, appIn, netOut] of closed connections
+    private static final BlockingQueue<ByteBuffer[]> pool = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    private final Socket socket;
+    private final SSLEngine engine;
+    private final InputStream rawIn;
+    private final OutputStream rawOut;
+    private final int packetSize;
+
+    private final Object handshakeLock = new Object();
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile boolean handshakeDone = false;
+    private IOException handshakeFailure;
+    private long handshakeNanos;
+    private volatile boolean closed = false;
+    private boolean inputDone = false;
+
+    private ByteBuffer netIn;  // Records from the socket, write mode
+    private ByteBuffer appIn;  // Decrypted and not read yet, read mode
+    private ByteBuffer netOut; // Records for the socket, write mode
+
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return TlsSocket.this.read(b, off, len);
+        }
+
+        // Without waiting for a read in progress, 0 is a fair estimate meanwhile. Under the
+        // lock, an open socket still has its own buffers.
+        @Override
+        public int available() throws IOException {
+            if (!readLock.tryLock()) {
+                checkOpen();
+                return 0;
+            }
+            try {
+                checkOpen();
+                return appIn.remaining();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsSocket.this.close();
+        }
+    };
+
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            TlsSocket.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsSocket.this.close();
+        }
+    };
+
+    public TlsSocket(Socket socket, SSLEngine engine) throws IOException {
+        this.socket = socket;
+        this.engine = engine;
+        this.rawIn = socket.getInputStream();
+        this.rawOut = socket.getOutputStream();
+        // Records are already gathered into as few writes as possible, Nagle would only hold
+        // back the last write of a handshake flight until the delayed ACK
+        socket.setTcpNoDelay(true);
+        SSLSession session = engine.getSession();
+        packetSize = session.getPacketBufferSize();
+        ByteBuffer[] buffers = pool.poll();
+        if (buffers == null || buffers[0].capacity() < 2 * packetSize
+                || buffers[1].capacity() < session.getApplicationBufferSize()
+                || buffers[2].capacity() < WRITE_RECORDS * packetSize) {
+            buffers = new ByteBuffer[]{ByteBuffer.allocate(2 * packetSize),
+                    ByteBuffer.allocate(session.getApplicationBufferSize()),
+                    ByteBuffer.allocate(WRITE_RECORDS * packetSize)};
+        }
+        netIn = buffers[0].clear();
+        appIn = buffers[1].clear().flip();
+        netOut = buffers[2].clear();
+    }
+
+    public void startHandshake() throws IOException {
+        synchronized (handshakeLock) {
+            if (handshakeDone) {
+                return;
+            }
+            if (handshakeFailure != null) {
+                throw handshakeFailure;
+            }
+            checkOpen();
+            long start = System.nanoTime();
+            try {
+                engine.beginHandshake();
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                while (status != SSLEngineResult.HandshakeStatus.FINISHED
+                        && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                    switch (status) {
+                        case NEED_WRAP:
+                            // A flight is several records, send them together
+                            status = wrap(EMPTY).getHandshakeStatus();
+                            if (status != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                                flushNetOut();
+                            }
+                            break;
+                        case NEED_TASK:
+                            runTasks();
+                            status = engine.getHandshakeStatus();
+                            break;
+                        default: {
+                            SSLEngineResult result = unwrap();
+                            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                                throw new EOFException("Connection closed during TLS handshake");
+                            }
+                            if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && fill() < 0) {
+                                throw new EOFException("Connection closed during TLS handshake");
+                            }
+                            status = result.getHandshakeStatus();
+                            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                                runTasks();
+                                status = engine.getHandshakeStatus();
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                handshakeFailure = e;
+                throw e;
+            }
+            handshakeNanos = System.nanoTime() - start;
+            handshakeDone = true;
+        }
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        startHandshake();
+        readLock.lock();
+        try {
+            checkOpen();
+            while (!appIn.hasRemaining()) {
+                if (inputDone) {
+                    return -1;
+                }
+                SSLEngineResult result = unwrap();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    inputDone = true;
+                } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && fill() < 0) {
+                    inputDone = true; // Closed without close_notify
+                }
+                afterUnwrap(result);
+            }
+            int n = Math.min(len, appIn.remaining());
+            appIn.get(b, off, n);
+            return n;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    // Post-handshake messages (session tickets, key updates, close_notify) may need an answer
+    private void afterUnwrap(SSLEngineResult result) throws IOException {
+        SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+        while (status == SSLEngineResult.HandshakeStatus.NEED_TASK || status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+                status = engine.getHandshakeStatus();
+            } else {
+                writeLock.lock();
+                try {
+                    checkOpen();
+                    status = wrap(EMPTY).getHandshakeStatus();
+                    if (status != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                        flushNetOut();
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        }
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        startHandshake();
+        writeLock.lock();
+        try {
+            checkOpen();
+            ByteBuffer src = ByteBuffer.wrap(b, off, len);
+            while (src.hasRemaining()) {
+                if (wrap(src).getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SocketException("TLS connection closed");
+                }
+                if (!src.hasRemaining() || netOut.remaining() < packetSize) {
+                    flushNetOut();
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private SSLEngineResult unwrap() throws SSLException {
+        netIn.flip();
+        appIn.compact();
+        try {
+            while (true) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    return result;
+                }
+                appIn = enlarge(appIn, appIn.position() + engine.getSession().getApplicationBufferSize());
+            }
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+    }
+
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        while (true) {
+            SSLEngineResult result = engine.wrap(src, netOut);
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                }
+                return result;
+            }
+            if (netOut.position() > 0) {
+                flushNetOut();
+            } else {
+                netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+            }
+        }
+    }
+
+    private void flushNetOut() throws IOException {
+        if (netOut.position() > 0) {
+            rawOut.write(netOut.array(), netOut.arrayOffset(), netOut.position());
+            netOut.clear();
+        }
+    }
+
+    // Reads whatever the socket has into netIn, -1 at end of stream
+    private int fill() throws IOException {
+        if (!netIn.hasRemaining()) {
+            netIn = enlarge(netIn, netIn.capacity() + engine.getSession().getPacketBufferSize());
+        }
+        int n = rawIn.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+        if (n > 0) {
+            netIn.position(netIn.position() + n);
+        }
+        return n;
+    }
+
+    // Copy of a write-mode buffer with more room
+    private static ByteBuffer enlarge(ByteBuffer buffer, int capacity) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(capacity, buffer.capacity()));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void checkOpen() throws SocketException {
+        if (closed) {
+            throw new SocketException("Socket closed");
+        }
+    }
+
+    public SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    // Time spent in the handshake, 0 before it completed
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        checkOpen();
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        checkOpen();
+        return out;
+    }
+
+    // Sends close_notify unless a writer is busy (possibly stuck on a dead peer), closes
+    // the socket, which ends any blocked read or write, then gives the buffers back
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (handshakeDone && writeLock.tryLock()) {
+            try {
+                engine.closeOutbound();
+                wrap(EMPTY);
+                flushNetOut();
+            } catch (IOException ignored) {
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        socket.close();
+        synchronized (handshakeLock) {
+            readLock.lock();
+            writeLock.lock();
+            try {
+                pool.offer(new ByteBuffer[]{netIn, appIn, netOut});
+                // Another connection may have them by now
+                netIn = null;
+                appIn = null;
+                netOut = null;
+            } finally {
+                writeLock.unlock();
+                readLock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed || socket.isClosed();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return socket.isConnected();
+    }
+
+    @Override
+    public boolean isBound() {
+        return socket.isBound();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        writeLock.lock();
+        try {
+            checkOpen();
+            engine.closeOutbound();
+            wrap(EMPTY);
+            flushNetOut();
+        } finally {
+            writeLock.unlock();
+        }
+        socket.shutdownOutput();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        socket.shutdownInput();
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public int getSoTimeout() throws SocketException {
+        return socket.getSoTimeout();
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        socket.setTcpNoDelay(on);
+    }
+
+    @Override
+    public boolean getTcpNoDelay() throws SocketException {
+        return socket.getTcpNoDelay();
+    }
+
+    @Override
+    public void setKeepAlive(boolean on) throws SocketException {
+        socket.setKeepAlive(on);
+    }
+
+    @Override
+    public void setSendBufferSize(int size) throws SocketException {
+        socket.setSendBufferSize(size);
+    }
+
+    @Override
+    public void setReceiveBufferSize(int size) throws SocketException {
+        socket.setReceiveBufferSize(size);
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return socket.getInetAddress();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return socket.getLocalAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return socket.getPort();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return socket.getLocalSocketAddress();
+    }
+
+    @Override
+    public String toString() {
+        return "TLS " + socket;
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs file transfers through NetworkEmulator over a matrix of
+// file size x loss rate x RTT x congestion control algorithm x stream count x compression
+// and reports completion time, goodput and retransmissions.
+//
+// Usage: java TransferBenchmark [--sizes=256,1024] [--loss=0,0.01,0.05] [--rtt=10,50]
+//            [--algorithms=Reno,NewReno,CUBIC,BBR] [--streams=1] [--compression=off] [--content=random]
+//            [--jitter=0] [--bandwidth=0] [--queue=0] [--burst=0] [--reorder=0] [--seed=42] [--csv=results.csv]
+//            [--trace=dir]
+// Sizes are in KB, RTT and jitter in ms, bandwidth in KB/s, queue in KB.
+// Content is random (incompressible) or text (log lines, compresses well).
+// With --trace every run's sender telemetry is written to dir as CSV.
+public class TransferBenchmark {
+
+    private static final long TRANSFER_TIMEOUT = 120000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+
+        String[] sizes = options.getOrDefault("sizes", "256,1024").split(",");
+        String[] lossRates = options.getOrDefault("loss", "0,0.01,0.05").split(",");
+        String[] rtts = options.getOrDefault("rtt", "10,50").split(",");
+        String[] algorithms = options.getOrDefault("algorithms", String.join(",", CongestionController.ALGORITHMS)).split(",");
+        String[] streamCounts = options.getOrDefault("streams", "1").split(",");
+        String[] compressions = options.getOrDefault("compression", "off").split(",");
+        boolean text = options.getOrDefault("content", "random").equals("text");
+        File traceDir = options.containsKey("trace") ? new File(options.get("trace")) : null;
+        if (traceDir != null) {
+            traceDir.mkdirs();
+        }
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+
+        PrintWriter csv = null;
+        if (options.containsKey("csv")) {
+            csv = new PrintWriter(new FileWriter(options.get("csv")));
+            csv.println("algorithm,streams,compression,size_kb,loss,rtt_ms,time_ms,goodput_kbps,retransmissions,dropped,ok");
+        }
+
+        // The sender logs every retransmission, keep the report readable
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        report.printf("%-8s %7s %4s %8s %6s %6s %10s %12s %8s %8s %4s%n",
+                "algo", "streams", "comp", "size_kb", "loss", "rtt", "time_ms", "goodput_kBps", "retx", "dropped", "ok");
+
+        for (String size : sizes) {
+            File source = createTestFile(Integer.parseInt(size.trim()) * 1024L, seed, text);
+            for (String loss : lossRates) {
+                for (String rtt : rtts) {
+                    for (String algorithm : algorithms) {
+                      for (String streams : streamCounts) {
+                       for (String compression : compressions) {
+                        NetworkEmulator.Config config = new NetworkEmulator.Config();
+                        config.latencyMs = Long.parseLong(rtt.trim()) / 2;
+                        config.lossRate = Double.parseDouble(loss.trim());
+                        config.jitterMs = Long.parseLong(options.getOrDefault("jitter", "0"));
+                        config.bandwidthBytesPerSec = Long.parseLong(options.getOrDefault("bandwidth", "0")) * 1024;
+                        config.queueLimitBytes = Integer.parseInt(options.getOrDefault("queue", "0")) * 1024;
+                        config.burstEnterRate = Double.parseDouble(options.getOrDefault("burst", "0"));
+                        config.reorderRate = Double.parseDouble(options.getOrDefault("reorder", "0"));
+                        config.seed = seed;
+
+                        TransferTelemetry telemetry = traceDir != null ? new TransferTelemetry() : null;
+                        Result result = runTransfer(source, algorithm.trim(), Integer.parseInt(streams.trim()),
+                                compression.trim().equals("on"), telemetry, config);
+                        if (telemetry != null) {
+                            telemetry.exportCsv(new File(traceDir, String.join("-", algorithm.trim(), streams.trim(),
+                                    compression.trim(), size.trim(), loss.trim(), rtt.trim()) + ".csv"));
+                        }
+                        double goodput = result.timeMs > 0 ? source.length() / 1024.0 / (result.timeMs / 1000.0) : 0;
+
+                        report.printf("%-8s %7s %4s %8s %6s %6s %10d %12.1f %8d %8d %4s%n",
+                                algorithm.trim(), streams.trim(), compression.trim(), size.trim(), loss.trim(), rtt.trim(), result.timeMs, goodput,
+                                result.retransmissions, result.dropped, result.ok ? "yes" : "NO");
+                        if (csv != null) {
+                            csv.printf(Locale.ROOT, "%s,%s,%s,%s,%s,%s,%d,%.1f,%d,%d,%b%n",
+                                    algorithm.trim(), streams.trim(), compression.trim(), size.trim(), loss.trim(), rtt.trim(), result.timeMs, goodput,
+                                    result.retransmissions, result.dropped, result.ok);
+                            csv.flush();
+                        }
+                       }
+                      }
+                    }
+                }
+            }
+            source.delete();
+        }
+
+        if (csv != null) {
+            csv.close();
+        }
+        System.setOut(report);
+    }
+
+    static class Result {
+        long timeMs;
+        int retransmissions;
+        long dropped;
+        boolean ok;
+    }
+
+    static Result runTransfer(File source, String algorithm, int streams, boolean compress,
+                              TransferTelemetry telemetry, NetworkEmulator.Config config) throws Exception {
+        File target = File.createTempFile("bench-recv", ".bin");
+        target.deleteOnExit();
+        Result result = new Result();
+
+        try (ServerSocket senderServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+             NetworkEmulator emulator = new NetworkEmulator("127.0.0.1", senderServer.getLocalPort(), config)) {
+            emulator.start();
+
+            AtomicInteger retransmissions = new AtomicInteger();
+            TransferListener senderListener = new TransferListener() {
+                @Override
+                public void onRetransmit(int seqNum) {
+                    retransmissions.incrementAndGet();
+                }
+            };
+            boolean[] senderCompleted = new boolean[1];
+            Thread senderThread = new Thread(() -> {
+                try {
+                    senderCompleted[0] = ParallelFileTransfer.send(senderServer, source, streams, algorithm, compress,
+                            null, telemetry, senderListener);
+                } catch (IOException e) {
+                    System.err.println("Sender error: " + e.getMessage());
+                }
+            });
+
+            long start = System.nanoTime();
+            senderThread.start();
+
+            try {
+                ParallelFileTransfer.receive("127.0.0.1", emulator.getPort(), target, source.length(), streams,
+                        TransferListener.NONE);
+            } catch (IOException e) {
+                System.err.println("Receiver error: " + e.getMessage());
+            }
+            senderThread.join(TRANSFER_TIMEOUT);
+            result.timeMs = (System.nanoTime() - start) / 1_000_000;
+
+            result.retransmissions = retransmissions.get();
+            result.dropped = emulator.getFramesDropped();
+            result.ok = senderCompleted[0] && Files.mismatch(source.toPath(), target.toPath()) == -1;
+        } finally {
+            target.delete();
+        }
+        return result;
+    }
+
+    static File createTestFile(long size, long seed, boolean text) throws IOException {
+        File file = File.createTempFile("bench-send", ".bin");
+        file.deleteOnExit();
+        Random random = new Random(seed);
+        byte[] block = new byte[64 * 1024];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            long remaining = size;
+            while (remaining > 0) {
+                if (text) {
+                    fillWithLogLines(block, random);
+                } else {
+                    random.nextBytes(block);
+                }
+                int n = (int) Math.min(block.length, remaining);
+                out.write(block, 0, n);
+                remaining -= n;
+            }
+        }
+        return file;
+    }
+
+    private static final String[] LEVELS = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+    private static final String[] EVENTS = {"user joined", "message delivered", "file offer sent",
+            "segment retransmitted", "connection reset by peer", "ack timeout"};
+
+    private static void fillWithLogLines(byte[] block, Random random) {
+        StringBuilder sb = new StringBuilder(block.length + 200);
+        while (sb.length() < block.length) {
+            sb.append("2024-05-").append(10 + random.nextInt(20)).append(' ')
+                    .append(random.nextInt(24)).append(':').append(random.nextInt(60)).append(':').append(random.nextInt(60))
+                    .append(' ').append(LEVELS[random.nextInt(LEVELS.length)])
+                    .append(" client=").append(random.nextInt(500))
+                    .append(" seq=").append(random.nextInt(100000))
+                    .append(' ').append(EVENTS[random.nextInt(EVENTS.length)]).append('\n');
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, block, 0, block.length);
+    }
+}
@@ -0,0 +1,88 @@
+import jdk.jfr.*;
+
+// Java Flight Recorder events for file transfers, see ChatEvents for how to record them.
+// Retransmit and CongestionWindowChange fire on the segment path and are cheap only while
+// disabled; turn them on for a focused recording rather than a continuous one.
+public class TransferEvents {
+
+    @Name("transfer.Stream")
+    @Label("Transfer Stream")
+    @Description("One TCPRenoSender sending its share of a file")
+    @Category({"Chat", "Transfers"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static class Stream extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Stream")
+        int stream;
+
+        @Label("Algorithm")
+        String algorithm;
+
+        @Label("Compressed")
+        boolean compressed;
+
+        @Label("Bytes Acknowledged")
+        @DataAmount
+        long bytes;
+
+        @Label("Segments")
+        int segments;
+
+        @Label("Retransmissions")
+        int retransmissions;
+
+        @Label("Completed")
+        boolean completed;
+    }
+
+    @Name("transfer.Retransmit")
+    @Label("Segment Retransmit")
+    @Category({"Chat", "Transfers"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static class Retransmit extends Event {
+        @Label("Stream")
+        int stream;
+
+        @Label("Sequence Number")
+        int seqNum;
+
+        @Label("Cause")
+        String cause;
+
+        @Label("Congestion Window")
+        int cwnd;
+
+        @Label("RTO")
+        @Timespan(Timespan.MILLISECONDS)
+        long rto;
+    }
+
+    @Name("transfer.CongestionWindowChange")
+    @Label("Congestion Window Change")
+    @Category({"Chat", "Transfers"})
+    @Enabled(false)
+    @StackTrace(false)
+    public static class CongestionWindowChange extends Event {
+        @Label("Stream")
+        int stream;
+
+        @Label("Algorithm")
+        String algorithm;
+
+        @Label("Cause")
+        String cause;
+
+        @Label("Previous Window")
+        int previous;
+
+        @Label("Window")
+        int cwnd;
+
+        @Label("Slow Start Threshold")
+        int ssthresh;
+    }
+}
@@ -0,0 +1,21 @@
+// Callbacks from TCPRenoSender / TCPRenoReceiver, invoked on the transfer thread.
+// UI implementations are responsible for hopping onto the FX thread.
+public interface TransferListener {
+
+    TransferListener NONE = new TransferListener() {};
+
+    default void onProgress(long bytesTransferred, long totalBytes) {
+    }
+
+    // Called once per sender round with the current congestion window
+    default void onCwnd(int cwnd) {
+    }
+
+    // Sender retransmitted a segment, after a timeout or three duplicate ACKs
+    default void onRetransmit(int seqNum) {
+    }
+
+    // One part of the transfer failed while the rest goes on, e.g. one recipient of a group send
+    default void onFailure(String reason) {
+    }
+}
@@ -0,0 +1,272 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+// Runs any number of file sends and receives side by side. Every outgoing transfer
+// listens on its own ephemeral port, so offers no longer collide on a fixed port.
+// Transfers wait in a priority queue for one of a bounded number of slots and share
+// the upload budget through BandwidthScheduler, weighted by priority.
+//
+// Sends and receives have slots of their own. A send holds its slot while it waits for the
+// peer to accept; were receives queued behind such sends, two users offering each other
+// files would each wait for a receive the other cannot start until the offers time out.
+public class TransferManager {
+
+    public enum Direction { SEND, RECEIVE }
+
+    public enum State { QUEUED, WAITING_FOR_PEER, ACTIVE, COMPLETED, FAILED }
+
+    public enum Priority {
+        HIGH(4), NORMAL(2), LOW(1);
+
+        final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    // How long an outgoing offer waits for the recipient to accept
+    private static final int ACCEPT_TIMEOUT = 120000;
+
+    private final ThreadPoolExecutor sendPool;
+    private final ThreadPoolExecutor receivePool;
+    private final BandwidthScheduler bandwidthScheduler;
+    private final Map<Integer, Transfer> transfers = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final AtomicLong submitOrder = new AtomicLong();
+    private final Consumer<Transfer> stateListener;
+
+    // maxConcurrent sends and as many receives
+    public TransferManager(int maxConcurrent, long uploadBytesPerSecond, Consumer<Transfer> stateListener) {
+        this.sendPool = newPool(maxConcurrent, "transfer-send");
+        this.receivePool = newPool(maxConcurrent, "transfer-receive");
+        this.bandwidthScheduler = new BandwidthScheduler(uploadBytesPerSecond);
+        this.stateListener = stateListener;
+    }
+
+    public class Transfer {
+        private final int id;
+        private final Direction direction;
+        private final String fileName;
+        private final String peer;
+        private final Priority priority;
+        private volatile State state = State.QUEUED;
+        private volatile String error;
+        private final TransferTelemetry telemetry;
+
+        Transfer(Direction direction, String fileName, String peer, Priority priority) {
+            this.id = nextId.getAndIncrement();
+            this.direction = direction;
+            this.fileName = fileName;
+            this.peer = peer;
+            this.priority = priority;
+            this.telemetry = direction == Direction.SEND ? new TransferTelemetry() : null;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Direction getDirection() {
+            return direction;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getPeer() {
+            return peer;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        // Sender state over time, sends only
+        public TransferTelemetry getTelemetry() {
+            return telemetry;
+        }
+
+        private void setState(State state) {
+            this.state = state;
+            if (state == State.COMPLETED || state == State.FAILED) {
+                transfers.remove(id);
+            }
+            stateListener.accept(this);
+        }
+
+        private void fail(String error) {
+            this.error = error;
+            setState(State.FAILED);
+        }
+    }
+
+    // Queues an outgoing transfer. Once it gets a slot it binds an ephemeral port, hands the
+    // port to offerSender (which announces it to the recipient) and waits for the receiver.
+    // With tls set the receiver has to connect with TLS.
+    public Transfer submitSend(File file, String recipient, int streams, String algorithm, boolean compress,
+                               boolean tls, Priority priority, IntConsumer offerSender, TransferListener listener) {
+        Transfer transfer = new Transfer(Direction.SEND, file.getName(), recipient, priority);
+        submit(transfer, () -> {
+            try (ServerSocket serverSocket = tls ? Tls.serverSocket(0) : new ServerSocket(0);
+                 BandwidthScheduler.Share share = bandwidthScheduler.register(priority.weight)) {
+                serverSocket.setSoTimeout(ACCEPT_TIMEOUT);
+                transfer.setState(State.WAITING_FOR_PEER);
+                offerSender.accept(serverSocket.getLocalPort());
+
+                if (ParallelFileTransfer.send(serverSocket, file, streams, algorithm, compress, share,
+                        transfer.getTelemetry(), tracking(transfer, listener))) {
+                    transfer.setState(State.COMPLETED);
+                } else {
+                    transfer.fail("Transfer timed out");
+                }
+            } catch (SocketTimeoutException e) {
+                transfer.fail("Not accepted by " + recipient);
+            } catch (IOException e) {
+                transfer.fail(e.getMessage());
+            }
+        });
+        return transfer;
+    }
+
+    // Like submitSend, to several recipients at once through GroupFileTransfer: the same port
+    // is offered to each of them and every one that accepts gets its own stream. Completed
+    // when everyone who accepted got the whole file.
+    public Transfer submitGroupSend(File file, List<String> recipients, String algorithm, boolean tls,
+                                    Priority priority, IntConsumer offerSender, TransferListener listener) {
+        String peers = recipients.size() == 1 ? recipients.get(0) : recipients.size() + " users";
+        Transfer transfer = new Transfer(Direction.SEND, file.getName(), peers, priority);
+        submit(transfer, () -> {
+            try (ServerSocket serverSocket = tls ? Tls.serverSocket(0) : new ServerSocket(0);
+                 BandwidthScheduler.Share share = bandwidthScheduler.register(priority.weight)) {
+                serverSocket.setSoTimeout(ACCEPT_TIMEOUT);
+                transfer.setState(State.WAITING_FOR_PEER);
+                offerSender.accept(serverSocket.getLocalPort());
+
+                GroupFileTransfer.Result result = GroupFileTransfer.send(serverSocket, file, recipients.size(),
+                        algorithm, share, transfer.getTelemetry(), tracking(transfer, listener));
+                if (result.accepted > 0 && result.completed == result.accepted) {
+                    transfer.setState(State.COMPLETED);
+                } else {
+                    transfer.fail(result.completed + " of " + result.accepted + " recipients got the file");
+                }
+            } catch (SocketTimeoutException e) {
+                transfer.fail("Not accepted by anyone");
+            } catch (IOException e) {
+                transfer.fail(e.getMessage());
+            }
+        });
+        return transfer;
+    }
+
+    public Transfer submitReceive(String host, int port, File saveFile, long fileSize, int streams, boolean tls,
+                                  String sender, Priority priority, TransferListener listener) {
+        Transfer transfer = new Transfer(Direction.RECEIVE, saveFile.getName(), sender, priority);
+        submit(transfer, () -> {
+            try {
+                transfer.setState(State.ACTIVE);
+                ParallelFileTransfer.receive(host, port, saveFile, fileSize, streams, tls, listener);
+                transfer.setState(State.COMPLETED);
+            } catch (IOException e) {
+                transfer.fail(e.getMessage());
+            }
+        });
+        return transfer;
+    }
+
+    // Queued and running, finished ones only reach the state listener
+    public Collection<Transfer> getTransfers() {
+        return transfers.values();
+    }
+
+    public void shutdown() {
+        sendPool.shutdownNow();
+        receivePool.shutdownNow();
+    }
+
+    private static ThreadPoolExecutor newPool(int threads, String name) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    // Passes everything on to listener, and marks the transfer active on the first progress
+    private TransferListener tracking(Transfer transfer, TransferListener listener) {
+        return new TransferListener() {
+            private volatile boolean started = false;
+
+            @Override
+            public void onProgress(long bytesTransferred, long totalBytes) {
+                if (!started) {
+                    started = true;
+                    transfer.setState(State.ACTIVE);
+                }
+                listener.onProgress(bytesTransferred, totalBytes);
+            }
+
+            @Override
+            public void onCwnd(int cwnd) {
+                listener.onCwnd(cwnd);
+            }
+
+            @Override
+            public void onRetransmit(int seqNum) {
+                listener.onRetransmit(seqNum);
+            }
+
+            @Override
+            public void onFailure(String reason) {
+                listener.onFailure(reason);
+            }
+        };
+    }
+
+    private void submit(Transfer transfer, Runnable work) {
+        transfers.put(transfer.getId(), transfer);
+        stateListener.accept(transfer);
+        ThreadPoolExecutor pool = transfer.getDirection() == Direction.SEND ? sendPool : receivePool;
+        pool.execute(new PrioritizedTask(transfer.getPriority(), submitOrder.getAndIncrement(), work));
+    }
+
+    // Queue entry: higher priority first, FIFO within a priority
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final Priority priority;
+        private final long order;
+        private final Runnable work;
+
+        PrioritizedTask(Priority priority, long order, Runnable work) {
+            this.priority = priority;
+            this.order = order;
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            work.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            int cmp = Integer.compare(priority.ordinal(), other.priority.ordinal());
+            return cmp != 0 ? cmp : Long.compare(order, other.order);
+        }
+    }
+}
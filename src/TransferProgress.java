@@ -0,0 +1,113 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Progress of one transfer for the UI. The transfer thread only stores into counters,
+// once per segment and without allocating; the UI calls sample() at its own pace (about
+// 10 Hz) and reads the smoothed throughput, ETA and retransmission rate from there, so a
+// fast transfer no longer queues an FX task per segment.
+public class TransferProgress implements TransferListener {
+
+    public static final long SAMPLE_INTERVAL_MS = 100;
+
+    // Time constant of the exponential smoothing, long enough to ride over a recovery
+    private static final double SMOOTHING_SECONDS = 2.0;
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong retransmissions = new AtomicLong();
+    private volatile long totalBytes;
+
+    // Sampling side, UI thread only
+    private long lastNanos;
+    private long lastBytes;
+    private long lastRetransmissions;
+    private double throughput; // bytes/s
+    private double retransmitRate; // per second
+    private boolean sampled = false;
+
+    @Override
+    public void onProgress(long bytesTransferred, long totalBytes) {
+        if (this.totalBytes != totalBytes) {
+            this.totalBytes = totalBytes;
+        }
+        bytes.lazySet(bytesTransferred);
+    }
+
+    @Override
+    public void onRetransmit(int seqNum) {
+        retransmissions.incrementAndGet();
+    }
+
+    // Folds in what happened since the last call
+    public void sample(long nowNanos) {
+        long currentBytes = bytes.get();
+        long currentRetransmissions = retransmissions.get();
+        // Rates start from the first progress seen, which already includes what a resumed
+        // transfer had before
+        if (lastBytes > 0 && nowNanos > lastNanos) {
+            double seconds = (nowNanos - lastNanos) / 1e9;
+            double alpha = 1 - Math.exp(-seconds / SMOOTHING_SECONDS);
+            double rate = (currentBytes - lastBytes) / seconds;
+            double retransmitted = (currentRetransmissions - lastRetransmissions) / seconds;
+            // No history yet: take the first rate as it is instead of climbing from zero
+            throughput = sampled ? throughput + alpha * (rate - throughput) : rate;
+            retransmitRate = sampled ? retransmitRate + alpha * (retransmitted - retransmitRate) : retransmitted;
+            sampled = true;
+        }
+        lastNanos = nowNanos;
+        lastBytes = currentBytes;
+        lastRetransmissions = currentRetransmissions;
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    // 0 to 1, as of the last sample
+    public double getFraction() {
+        long total = totalBytes;
+        return total > 0 ? Math.min(1.0, (double) lastBytes / total) : 0;
+    }
+
+    public double getThroughput() {
+        return throughput;
+    }
+
+    // Seconds left at the smoothed throughput, -1 while that is unknown
+    public long getEtaSeconds() {
+        if (throughput < 1) {
+            return -1;
+        }
+        return (long) Math.ceil(Math.max(0, totalBytes - lastBytes) / throughput);
+    }
+
+    public double getRetransmitRate() {
+        return retransmitRate;
+    }
+
+    // For the transfers pane, e.g. "4.2 MB/s, 0:37 left, 3.0 retx/s"
+    public String summary(boolean withRetransmissions) {
+        long eta = getEtaSeconds();
+        String text = formatRate(throughput) + ", " + (eta < 0 ? "--:--" : formatDuration(eta)) + " left";
+        if (withRetransmissions) {
+            text += String.format(", %.1f retx/s", retransmitRate);
+        }
+        return text;
+    }
+
+    static String formatRate(double bytesPerSecond) {
+        if (bytesPerSecond >= 1 << 20) {
+            return String.format("%.1f MB/s", bytesPerSecond / (1 << 20));
+        }
+        return String.format("%.0f KB/s", bytesPerSecond / 1024);
+    }
+
+    static String formatDuration(long seconds) {
+        if (seconds >= 3600) {
+            return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+        }
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+}
@@ -0,0 +1,221 @@
+import java.io.*;
+import java.util.*;
+
+// Samples of sender state for one transfer (all of its streams) in a fixed-size ring of
+// primitive columns, so memory stays bounded however long the transfer runs; past the
+// capacity the oldest samples are overwritten. The chart gets an LTTB-downsampled view
+// and the whole retained trace can be exported as CSV or in a compact binary form.
+public class TransferTelemetry {
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    // Chartable series
+    public static final String[] METRICS = {"cwnd", "ssthresh", "in flight", "RTT (ms)", "RTO (ms)", "goodput (kB/s)"};
+
+    private static final int MAGIC = 0x54544C31; // "TTL1"
+
+    private final long startNanos = System.nanoTime();
+    private final int mask;
+    private final long[] times; // ns since start
+    private final byte[] streams;
+    private final int[] cwnds;
+    private final int[] ssthreshes;
+    private final int[] inFlights;
+    private final int[] rtts; // ms, smoothed
+    private final int[] rtos; // ms
+    private final long[] bytesAcked; // cumulative per stream
+    private final int[] retransmissions; // cumulative per stream
+    private long recorded = 0;
+
+    public TransferTelemetry() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TransferTelemetry(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = size - 1;
+        times = new long[size];
+        streams = new byte[size];
+        cwnds = new int[size];
+        ssthreshes = new int[size];
+        inFlights = new int[size];
+        rtts = new int[size];
+        rtos = new int[size];
+        bytesAcked = new long[size];
+        retransmissions = new int[size];
+    }
+
+    public synchronized void record(int stream, int cwnd, int ssthresh, int inFlight, long rtt, long rto,
+                                    long acked, int retransmitted) {
+        int i = (int) (recorded & mask);
+        times[i] = System.nanoTime() - startNanos;
+        streams[i] = (byte) stream;
+        cwnds[i] = cwnd;
+        ssthreshes[i] = ssthresh;
+        inFlights[i] = inFlight;
+        rtts[i] = (int) rtt;
+        rtos[i] = (int) rto;
+        bytesAcked[i] = acked;
+        retransmissions[i] = retransmitted;
+        recorded++;
+    }
+
+    // Samples currently held, at most the capacity
+    public synchronized int size() {
+        return (int) Math.min(recorded, mask + 1);
+    }
+
+    public synchronized long getRecorded() {
+        return recorded;
+    }
+
+    // Index into the columns of the i-th oldest retained sample
+    private int slot(int i) {
+        long first = recorded - Math.min(recorded, mask + 1);
+        return (int) ((first + i) & mask);
+    }
+
+    // One metric over time (seconds) for the whole transfer, reduced to at most maxPoints
+    // with LTTB. Window metrics are summed over the streams, using each stream's latest sample;
+    // RTT and RTO are the maximum over the streams.
+    public synchronized double[][] chartSeries(String metric, int maxPoints) {
+        int n = size();
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        int streamCount = 0;
+        for (int i = 0; i < n; i++) {
+            streamCount = Math.max(streamCount, streams[slot(i)] + 1);
+        }
+        double[] latest = new double[Math.max(streamCount, 1)];
+        long[] previousAcked = new long[latest.length];
+        long[] previousTime = new long[latest.length];
+        Arrays.fill(previousTime, -1);
+        for (int i = 0; i < n; i++) {
+            int s = slot(i);
+            int stream = streams[s];
+            double value;
+            switch (metric) {
+                case "ssthresh": value = ssthreshes[s]; break;
+                case "in flight": value = inFlights[s]; break;
+                case "RTT (ms)": value = rtts[s]; break;
+                case "RTO (ms)": value = rtos[s]; break;
+                case "goodput (kB/s)":
+                    value = previousTime[stream] < 0 ? latest[stream]
+                            : goodput(bytesAcked[s] - previousAcked[stream], times[s] - previousTime[stream], latest[stream]);
+                    previousAcked[stream] = bytesAcked[s];
+                    previousTime[stream] = times[s];
+                    break;
+                default: value = cwnds[s];
+            }
+            latest[stream] = value;
+            double combined = 0;
+            for (double v : latest) {
+                combined = metric.startsWith("RT") ? Math.max(combined, v) : combined + v;
+            }
+            xs[i] = times[s] / 1e9;
+            ys[i] = combined;
+        }
+
+        int[] keep = largestTriangleThreeBuckets(xs, ys, n, maxPoints);
+        double[][] result = new double[2][keep.length];
+        for (int i = 0; i < keep.length; i++) {
+            result[0][i] = xs[keep[i]];
+            result[1][i] = ys[keep[i]];
+        }
+        return result;
+    }
+
+    // Rates over very short gaps are noise, keep the last value until 50ms have passed
+    private static double goodput(long bytes, long nanos, double last) {
+        return nanos < 50_000_000L ? last : bytes / 1024.0 / (nanos / 1e9);
+    }
+
+    // Largest-Triangle-Three-Buckets: keeps the first and last point and, from each of
+    // threshold - 2 buckets in between, the point forming the largest triangle with the
+    // point kept before it and the average of the next bucket. Peaks survive, unlike
+    // plain decimation.
+    static int[] largestTriangleThreeBuckets(double[] xs, double[] ys, int n, int threshold) {
+        if (threshold >= n || threshold < 3) {
+            int[] all = new int[n];
+            for (int i = 0; i < n; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        int[] sampled = new int[threshold];
+        int count = 0;
+        sampled[count++] = 0;
+        double every = (double) (n - 2) / (threshold - 2);
+        int a = 0;
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            int avgStart = (int) ((bucket + 1) * every) + 1;
+            int avgEnd = Math.min((int) ((bucket + 2) * every) + 1, n);
+            double avgX = 0;
+            double avgY = 0;
+            for (int j = avgStart; j < avgEnd; j++) {
+                avgX += xs[j];
+                avgY += ys[j];
+            }
+            int avgLength = Math.max(avgEnd - avgStart, 1);
+            avgX /= avgLength;
+            avgY /= avgLength;
+
+            int rangeStart = (int) (bucket * every) + 1;
+            int rangeEnd = (int) ((bucket + 1) * every) + 1;
+            double maxArea = -1;
+            int chosen = rangeStart;
+            for (int j = rangeStart; j < rangeEnd; j++) {
+                double area = Math.abs((xs[a] - avgX) * (ys[j] - ys[a]) - (xs[a] - xs[j]) * (avgY - ys[a]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    chosen = j;
+                }
+            }
+            sampled[count++] = chosen;
+            a = chosen;
+        }
+        sampled[count++] = n - 1;
+        return Arrays.copyOf(sampled, count);
+    }
+
+    public synchronized void exportCsv(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            out.println("time_ms,stream,cwnd,ssthresh,in_flight,rtt_ms,rto_ms,bytes_acked,retransmissions");
+            for (int i = 0; i < size(); i++) {
+                int s = slot(i);
+                out.printf(Locale.ROOT, "%.3f,%d,%d,%d,%d,%d,%d,%d,%d%n", times[s] / 1e6, streams[s], cwnds[s],
+                        ssthreshes[s], inFlights[s], rtts[s], rtos[s], bytesAcked[s], retransmissions[s]);
+            }
+        }
+    }
+
+    // [magic][count:int] then per sample [time_ns:long][stream:byte][cwnd:int][ssthresh:int]
+    // [in_flight:int][rtt_ms:int][rto_ms:int][bytes_acked:long][retransmissions:int], big-endian
+    public synchronized void exportBinary(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(size());
+            for (int i = 0; i < size(); i++) {
+                int s = slot(i);
+                out.writeLong(times[s]);
+                out.writeByte(streams[s]);
+                out.writeInt(cwnds[s]);
+                out.writeInt(ssthreshes[s]);
+                out.writeInt(inFlights[s]);
+                out.writeInt(rtts[s]);
+                out.writeInt(rtos[s]);
+                out.writeLong(bytesAcked[s]);
+                out.writeInt(retransmissions[s]);
+            }
+        }
+    }
+
+    // Writes CSV for .csv files and the binary format for anything else
+    public void export(File file) throws IOException {
+        if (file.getName().toLowerCase().endsWith(".csv")) {
+            exportCsv(file);
+        } else {
+            exportBinary(file);
+        }
+    }
+}